@@ -0,0 +1,57 @@
+package uploader;
+
+import java.util.Random;
+
+import uploader.mechanisms.UploadMechanism;
+
+/**
+ * Retries transient failures with capped exponential backoff and full jitter:
+ * after the nth consecutive failure the upload waits a random time between 0
+ * and min(maxDelay, baseDelay * 2^(n-1)).  The jitter keeps many uploads which
+ * failed together (e.g., when the network dropped) from all retrying at once.
+ *
+ * Failures which are known to be permanent (see
+ * UploadTask.isErrorPermanent()) are never retried, nor is an
+ * upload which has already failed maxAttempts times in a row.
+ *
+ * @author David Underhill
+ */
+public class BackoffRetryPolicy implements RetryPolicy {
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private final int maxAttempts;
+    private final Random rand = new Random();
+
+    /** retries up to 8 times, waiting up to 1s, 2s, 4s, ... (at most 5 minutes) */
+    public BackoffRetryPolicy() {
+        this(1000, 5 * 60 * 1000, 8);
+    }
+
+    /**
+     * @param baseDelayMs  the most to wait before the first retry
+     * @param maxDelayMs   the most to wait before any retry
+     * @param maxAttempts  the number of consecutive failures after which to give up
+     */
+    public BackoffRetryPolicy(long baseDelayMs, long maxDelayMs, int maxAttempts) {
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.maxAttempts = maxAttempts;
+    }
+
+    public long getRetryDelay(UploadTask t, UploadMechanism mech) {
+        if(t.isErrorPermanent())
+            return -1;
+
+        int n = t.getNumConsecutiveFailures();
+        if(n >= maxAttempts)
+            return -1;
+
+        // baseDelay * 2^(n-1), without overflowing
+        long cap = baseDelayMs;
+        for(int i=1; i<n && cap<maxDelayMs; i++)
+            cap *= 2;
+        cap = Math.min(cap, maxDelayMs);
+
+        return (long)(rand.nextDouble() * cap);
+    }
+}
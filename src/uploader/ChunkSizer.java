@@ -0,0 +1,42 @@
+package uploader;
+
+/**
+ * Picks how many bytes an uploader sends per chunk.  Each upload starts with
+ * small chunks so progress shows up right away.  The chunk size then doubles
+ * while chunks take well under TARGET_CHUNK_TIME_MS and halves when they take
+ * well over it.  Thus fast links are sent megabyte chunks (far less per-chunk
+ * bookkeeping) while slow links still report progress (and notice being
+ * canceled or paused) several times a second.
+ *
+ * Not thread-safe: each upload uses its own ChunkSizer.
+ *
+ * @author David Underhill
+ */
+class ChunkSizer {
+    public static final long MIN_CHUNK_SIZE = 4096;
+    public static final long MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    /** how long we'd like sending each chunk to take */
+    private static final long TARGET_CHUNK_TIME_NS = 100L * 1000L * 1000L;
+
+    private long chunkSize = MIN_CHUNK_SIZE;
+
+    /** returns the number of bytes to send in the next chunk */
+    public long getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Adjusts the chunk size given how long it took to send bytes (which was
+     * the most recent chunk).
+     */
+    public void chunkSent(long bytes, long elapsed_ns) {
+        if(bytes < chunkSize)
+            return; // a short chunk (e.g., the last one) says little about the link
+
+        if(elapsed_ns < TARGET_CHUNK_TIME_NS / 2)
+            chunkSize = Math.min(chunkSize * 2, MAX_CHUNK_SIZE);
+        else if(elapsed_ns > TARGET_CHUNK_TIME_NS * 2)
+            chunkSize = Math.max(chunkSize / 2, MIN_CHUNK_SIZE);
+    }
+}
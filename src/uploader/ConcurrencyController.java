@@ -0,0 +1,133 @@
+package uploader;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Adjusts the number of upload threads an UploadEngine uses with an AIMD
+ * (additive increase, multiplicative decrease) scheme.  Every sample interval
+ * it looks at the aggregate upload throughput and the fraction of uploads
+ * which failed during the interval:
+ *
+ *   - If too many uploads failed, or throughput fell after we last added a
+ *     thread, then the number of threads is cut multiplicatively.
+ *   - Otherwise, if there is more work queued than threads to do it, one more
+ *     thread is added.
+ *
+ * The number of threads always stays within [minThreads, maxThreads].
+ *
+ * @author David Underhill
+ */
+class ConcurrencyController {
+    /** how often to re-evaluate the number of threads to use */
+    private static final long SAMPLE_INTERVAL_MS = 2000;
+
+    /** the fraction of uploads which may fail in an interval before we back off */
+    private static final double MAX_ERROR_RATE = 0.1;
+
+    /** how much throughput may drop after an increase before we back off */
+    private static final double THROUGHPUT_DROP_TOLERANCE = 0.1;
+
+    /** how much to scale the number of threads by when backing off */
+    private static final double DECREASE_FACTOR = 0.5;
+
+    private final UploadEngine engine;
+    private final UploadQueue queue;
+    private final int minThreads;
+    private final int maxThreads;
+
+    /** runs the control loop (daemon thread so it won't keep the JVM alive) */
+    private final Timer timer = new Timer(true);
+
+    // state from the previous sample
+    private long lastSampleTime;
+    private long lastBytesUploaded;
+    private int lastNumUploaded;
+    private int lastNumFailures;
+    private double lastRate_Bps = 0;
+    private boolean lastChangeWasIncrease = false;
+
+    public ConcurrencyController(UploadEngine engine, UploadQueue queue, int minThreads, int maxThreads) {
+        if(minThreads < 1 || maxThreads < minThreads)
+            throw new IllegalArgumentException("need 1 <= minThreads <= maxThreads");
+        this.engine = engine;
+        this.queue = queue;
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+    }
+
+    /** starts the control loop */
+    public void start() {
+        takeBaseline();
+        timer.schedule(new TimerTask() {
+            public void run() {
+                sample();
+            }
+        }, SAMPLE_INTERVAL_MS, SAMPLE_INTERVAL_MS);
+    }
+
+    /** stops the control loop */
+    public void stop() {
+        timer.cancel();
+    }
+
+    public int getMinThreads() {
+        return minThreads;
+    }
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    /** remembers the current counters so the next sample measures from now */
+    private void takeBaseline() {
+        lastSampleTime = System.currentTimeMillis();
+        lastBytesUploaded = queue.getTotalBytesUploaded();
+        lastNumUploaded = queue.getNumUploaded();
+        lastNumFailures = queue.getTotalFailures();
+    }
+
+    /** one iteration of the control loop */
+    private void sample() {
+        long now = System.currentTimeMillis();
+        long bytes = queue.getTotalBytesUploaded();
+        int uploaded = queue.getNumUploaded();
+        int failures = queue.getTotalFailures();
+
+        long elapsed = now - lastSampleTime;
+        double rate_Bps = (elapsed > 0) ? (1000.0 * (bytes - lastBytesUploaded)) / elapsed : 0;
+        int numDone = uploaded - lastNumUploaded;
+        int numFailed = failures - lastNumFailures;
+        takeBaseline();
+
+        // nothing to learn about the link if we aren't using it
+        if(!queue.isUploadingEnabled() || queue.getNumItemsLeftToUpload() == 0) {
+            lastRate_Bps = 0;
+            lastChangeWasIncrease = false;
+            return;
+        }
+
+        int n = engine.getNumUploaderThreads();
+        double errorRate = (numDone + numFailed > 0) ? numFailed / (double)(numDone + numFailed) : 0;
+        boolean throughputDropped = lastChangeWasIncrease && rate_Bps < lastRate_Bps * (1.0 - THROUGHPUT_DROP_TOLERANCE);
+
+        int target = n;
+        if(errorRate > MAX_ERROR_RATE || throughputDropped) {
+            // multiplicative decrease (but always drop by at least one thread)
+            target = Math.min(n - 1, (int)(n * DECREASE_FACTOR));
+            lastChangeWasIncrease = false;
+        }
+        else if(queue.getNumItemsLeftToUpload() > n) {
+            // additive increase: there is work waiting for another thread
+            target = n + 1;
+            lastChangeWasIncrease = true;
+        }
+        else
+            lastChangeWasIncrease = false;
+
+        target = Math.max(minThreads, Math.min(maxThreads, target));
+        if(target != n)
+            engine.setNumUploaderThreads(target);
+        lastRate_Bps = rate_Bps;
+    }
+}
@@ -0,0 +1,28 @@
+package uploader;
+
+import java.util.Comparator;
+
+/**
+ * Uploads items with the highest priority first.  Among items with the same
+ * priority, the one with the earliest deadline goes first (items without a
+ * deadline go last).  Priorities and deadlines are specified when an item is
+ * added via UploadEngine.addFileToUpload(File, int, long).
+ *
+ * @author David Underhill
+ */
+public class DeadlineUploadScheduler extends PriorityUploadScheduler {
+    public DeadlineUploadScheduler() {
+        super(new Comparator() {
+            public int compare(Object o1, Object o2) {
+                UploadTask i1 = (UploadTask)o1;
+                UploadTask i2 = (UploadTask)o2;
+                if(i1.getPriority() != i2.getPriority())
+                    return (i1.getPriority() > i2.getPriority()) ? -1 : 1;
+
+                long d1 = i1.getDeadline();
+                long d2 = i2.getDeadline();
+                return (d1 < d2) ? -1 : ((d1 == d2) ? 0 : 1);
+            }
+        });
+    }
+}
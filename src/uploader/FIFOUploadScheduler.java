@@ -0,0 +1,21 @@
+package uploader;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Uploads items in the order they were queued.  This is the default policy.
+ * Both add() and poll() are lock-free and O(1).
+ *
+ * @author David Underhill
+ */
+public class FIFOUploadScheduler implements UploadScheduler {
+    private final ConcurrentLinkedQueue items = new ConcurrentLinkedQueue();
+
+    public void add(UploadTask item) {
+        items.offer(item);
+    }
+
+    public UploadTask poll() {
+        return (UploadTask)items.poll();
+    }
+}
@@ -0,0 +1,272 @@
+package uploader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.swing.filechooser.FileFilter;
+
+/**
+ * Finds the files to upload among a list of files and folders (e.g., ones the
+ * user picked or dropped) and adds them to an UploadEngine, all in the
+ * background so that the Swing EDT never waits on the file system.  Folders
+ * are walked recursively, several at a time, and the files the filter
+ * accepts are added to the engine in batches as they are found (so uploads
+ * start before the walk ends).  Files which are empty or too big to upload
+ * are skipped.
+ *
+ * Canceling stops the walk; files which have already been added stay in the
+ * upload queue.
+ *
+ * Thread-safe.
+ *
+ * @author David Underhill
+ */
+public class FileIngester {
+    /** receives a callback when an ingester finishes */
+    public interface Listener {
+        /**
+         * Called (from a background thread) when the ingester has added all
+         * of the files it will add, because it is done or was canceled.
+         */
+        public void ingestionFinished(FileIngester ingester);
+    }
+
+    /** how many folders are listed at once */
+    public static final int NUM_THREADS = 4;
+
+    /** the most files added to the engine at once */
+    private static final int BATCH_SIZE = 256;
+
+    /** the longest a found file waits to be added (so the queue fills steadily even while folders are slow to list) */
+    private static final long MAX_BATCH_DELAY_MS = 250;
+
+    private final UploadEngine engine;
+    private final FileFilter filter;
+    private final File[] roots;
+    private final Listener listener;
+
+    /** lists folders (created by start()) */
+    private ExecutorService pool;
+
+    /** adds partial batches which have waited too long (created by start()) */
+    private Timer flushTimer;
+
+    /** folders being (or waiting to be) listed, plus 1 until the roots have been handled */
+    private final AtomicInteger pending = new AtomicInteger(1);
+
+    /** the canonical paths of the folders we've seen (so links can't make us loop) */
+    private final HashSet foldersSeen = new HashSet();
+
+    /** files found but not yet added to the engine */
+    private ArrayList batch = new ArrayList(BATCH_SIZE);
+    private long batchStarted;
+
+    /** held while a batch is added to the engine so batches go in one at a time */
+    private final Object admitLock = new Object();
+
+    private volatile boolean canceled = false;
+    private volatile boolean done = false;
+    private final AtomicInteger numFoldersScanned = new AtomicInteger(0);
+    private final AtomicInteger numFilesAdded = new AtomicInteger(0);
+    private final AtomicInteger numFilesTooBig = new AtomicInteger(0);
+
+    /**
+     * Creates an ingester which will add the files in roots (and the files
+     * in the folders in roots, recursively) to engine.
+     *
+     * @param filter    which files to add (null for all of them)
+     * @param listener  notified when ingestion ends (may be null)
+     */
+    public FileIngester(UploadEngine engine, FileFilter filter, File[] roots, Listener listener) {
+        this.engine = engine;
+        this.filter = filter;
+        this.roots = roots.clone();
+        this.listener = listener;
+    }
+
+    /** Starts finding and adding files in the background. */
+    public synchronized void start() {
+        if(pool != null)
+            throw new IllegalStateException("already started");
+
+        flushTimer = new Timer("FileIngester-flush", true);
+        pool = Executors.newFixedThreadPool(NUM_THREADS, new ThreadFactory() {
+            private final AtomicInteger n = new AtomicInteger(0);
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "FileIngester-" + n.incrementAndGet());
+                t.setDaemon(true);
+                t.setPriority(Thread.NORM_PRIORITY - 1);
+                return t;
+            }
+        });
+        pool.execute(new Runnable() {
+            public void run() {
+                try {
+                    for(int i=0; i<roots.length && !canceled; i++)
+                        consider(roots[i]);
+                }
+                finally {
+                    taskDone();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops looking for files.  Files which have already been added to the
+     * engine stay there.
+     */
+    public void cancel() {
+        canceled = true;
+    }
+
+    /** returns true if cancel() has been called */
+    public boolean isCanceled() {
+        return canceled;
+    }
+
+    /** returns true once every file which will be added has been added */
+    public boolean isDone() {
+        return done;
+    }
+
+    /** returns the number of folders listed so far */
+    public int getNumFoldersScanned() {
+        return numFoldersScanned.get();
+    }
+
+    /** returns the number of files added to the engine so far */
+    public int getNumFilesAdded() {
+        return numFilesAdded.get();
+    }
+
+    /** returns the number of files skipped because they are too big to upload */
+    public int getNumFilesTooBig() {
+        return numFilesTooBig.get();
+    }
+
+    /** queues f to be added (if the filter accepts it) or walked (if it is a folder) */
+    private void consider(File f) {
+        if(f.isDirectory()) {
+            final File dir = f;
+            pending.incrementAndGet();
+            pool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        scan(dir);
+                    }
+                    finally {
+                        taskDone();
+                    }
+                }
+            });
+        }
+        else if(f.isFile() && (filter == null || filter.accept(f)))
+            found(f);
+    }
+
+    /** considers each entry in dir (in name order) */
+    private void scan(File dir) {
+        if(canceled)
+            return;
+
+        String path;
+        try {
+            path = dir.getCanonicalPath();
+        }
+        catch(IOException e) {
+            path = dir.getAbsolutePath();
+        }
+        synchronized(foldersSeen) {
+            if(!foldersSeen.add(path))
+                return; // already walked (e.g., via a link)
+        }
+
+        File[] files = dir.listFiles();
+        numFoldersScanned.incrementAndGet();
+        if(files == null)
+            return; // unreadable
+
+        Arrays.sort(files);
+        for(int i=0; i<files.length && !canceled; i++)
+            consider(files[i]);
+    }
+
+    /** adds f to the current batch, and adds the batch to the engine if it is due */
+    private void found(File f) {
+        ArrayList full = null;
+        synchronized(this) {
+            if(batch.isEmpty()) {
+                // add it when it's due even if no more files are found by then
+                batchStarted = System.currentTimeMillis();
+                final ArrayList b = batch;
+                flushTimer.schedule(new TimerTask() {
+                    public void run() {
+                        flush(b);
+                    }
+                }, MAX_BATCH_DELAY_MS);
+            }
+            batch.add(f);
+            if(batch.size() >= BATCH_SIZE || System.currentTimeMillis() - batchStarted >= MAX_BATCH_DELAY_MS) {
+                full = batch;
+                batch = new ArrayList(BATCH_SIZE);
+            }
+        }
+        if(full != null)
+            admit(full);
+    }
+
+    /** adds b to the engine if it is still the current batch */
+    private void flush(ArrayList b) {
+        synchronized(this) {
+            if(batch != b)
+                return; // already added
+            batch = new ArrayList(BATCH_SIZE);
+        }
+        admit(b);
+    }
+
+    /** adds files to the engine as one batch (unless we've been canceled) */
+    private void admit(ArrayList files) {
+        synchronized(admitLock) {
+            if(canceled || files.isEmpty())
+                return;
+
+            // note which are too big (the engine skips them and empty files)
+            int numTooBig = 0;
+            for(int i=0; i<files.size(); i++)
+                if(((File)files.get(i)).length() > UploadEngine.MAX_FILE_SIZE_ALLOWED_MB*1024*1024)
+                    numTooBig += 1;
+
+            numFilesAdded.addAndGet(engine.addFilesToUpload(files).size());
+            numFilesTooBig.addAndGet(numTooBig);
+        }
+    }
+
+    /** notes that a task is done; the last one adds the last batch and finishes up */
+    private void taskDone() {
+        if(pending.decrementAndGet() != 0)
+            return;
+
+        ArrayList last;
+        synchronized(this) {
+            last = batch;
+            batch = new ArrayList(0);
+        }
+        admit(last);
+        flushTimer.cancel();
+        pool.shutdown();
+        done = true;
+        if(listener != null)
+            listener.ingestionFinished(this);
+    }
+}
@@ -0,0 +1,45 @@
+package uploader;
+
+import java.util.Comparator;
+import java.util.concurrent.PriorityBlockingQueue;
+
+/**
+ * Uploads items in the order defined by a Comparator (the "smallest" item is
+ * uploaded first).  Items are kept in a binary heap, so add() and poll() are
+ * O(log n) no matter how many items are queued.  Items which compare equal are
+ * uploaded in the order they were queued.
+ *
+ * @author David Underhill
+ */
+public class PriorityUploadScheduler implements UploadScheduler {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final PriorityBlockingQueue items;
+
+    /**
+     * Constructs a scheduler which orders items with cmp.  cmp must not depend
+     * on anything which can change while an item is queued.
+     */
+    public PriorityUploadScheduler(final Comparator cmp) {
+        items = new PriorityBlockingQueue(INITIAL_CAPACITY, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                int ret = cmp.compare(o1, o2);
+                if(ret != 0)
+                    return ret;
+
+                // break ties in favor of whichever was queued first
+                long s1 = ((UploadTask)o1).getQueueSequenceNumber();
+                long s2 = ((UploadTask)o2).getQueueSequenceNumber();
+                return (s1 < s2) ? -1 : ((s1 == s2) ? 0 : 1);
+            }
+        });
+    }
+
+    public void add(UploadTask item) {
+        items.offer(item);
+    }
+
+    public UploadTask poll() {
+        return (UploadTask)items.poll();
+    }
+}
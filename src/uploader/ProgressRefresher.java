@@ -0,0 +1,79 @@
+package uploader;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.Timer;
+
+/**
+ * Coalesces progress updates from upload threads into at most one UI refresh
+ * per frame (about 30 per second).  Upload threads only record that an item or
+ * the overall statistics changed (a couple of atomic operations, and nothing
+ * at all if the item is already waiting to be refreshed).  When the frame
+ * timer fires on the Swing EDT, each dirty item is repainted once and the
+ * footer text is rebuilt once, no matter how many chunks were sent since the
+ * last frame.  No timer runs while nothing is changing.
+ *
+ * @author David Underhill
+ */
+class ProgressRefresher implements ActionListener {
+    /** minimum time between UI refreshes (~30Hz) */
+    private static final int FRAME_INTERVAL_MS = 33;
+
+    private final UploadManager manager;
+
+    /** items whose progress changed since the last frame */
+    private final ConcurrentLinkedQueue dirtyItems = new ConcurrentLinkedQueue();
+
+    /** whether the overall statistics changed since the last frame */
+    private final AtomicBoolean statsDirty = new AtomicBoolean(false);
+
+    /** whether the frame timer has been started and not yet fired */
+    private final AtomicBoolean framePending = new AtomicBoolean(false);
+
+    /** fires once per frame on the Swing EDT */
+    private final Timer timer;
+
+    public ProgressRefresher(UploadManager manager) {
+        this.manager = manager;
+        this.timer = new Timer(FRAME_INTERVAL_MS, this);
+        this.timer.setRepeats(false);
+        this.timer.setCoalesce(true);
+    }
+
+    /** Notes that item's progress changed.  Thread-safe. */
+    public void itemChanged(UploadItem item) {
+        if(item.markProgressDirty()) {
+            dirtyItems.offer(item);
+            scheduleFrame();
+        }
+    }
+
+    /** Notes that the overall statistics changed.  Thread-safe. */
+    public void statsChanged() {
+        if(!statsDirty.get() && statsDirty.compareAndSet(false, true))
+            scheduleFrame();
+    }
+
+    private void scheduleFrame() {
+        if(framePending.compareAndSet(false, true))
+            timer.restart();
+    }
+
+    /** Refreshes everything which changed since the last frame.  Runs on the Swing EDT. */
+    public void actionPerformed(ActionEvent e) {
+        // anything marked dirty after this point will schedule another frame
+        framePending.set(false);
+
+        UploadItem item;
+        while((item = (UploadItem)dirtyItems.poll()) != null) {
+            item.clearProgressDirty();
+            item.refreshProgress();
+        }
+
+        if(statsDirty.compareAndSet(true, false))
+            manager.refreshProgressTexts();
+    }
+}
@@ -0,0 +1,26 @@
+package uploader;
+
+import uploader.mechanisms.UploadMechanism;
+
+/**
+ * Decides whether (and when) UploadEngine automatically retries a failed
+ * upload.  Uploads which are not retried are put on the failed list, where
+ * the user can retry them manually.
+ *
+ * Implementations must be thread-safe: getRetryDelay() is called by whichever
+ * upload thread saw the failure.
+ *
+ * @author David Underhill
+ */
+public interface RetryPolicy {
+    /**
+     * Returns how long to wait (in milliseconds) before retrying t, or -1 if t
+     * should not be retried.  t.getErrorText() describes the failure and
+     * t.getNumConsecutiveFailures() counts it.
+     *
+     * @param mech  the mechanism which failed to upload t (it may know more
+     *              about the failure); null if t was uploaded by a
+     *              SelectorTransport rather than an UploadMechanism
+     */
+    public long getRetryDelay(UploadTask t, UploadMechanism mech);
+}
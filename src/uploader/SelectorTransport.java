@@ -0,0 +1,225 @@
+package uploader;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import uploader.mechanisms.NonBlockingHTTPUploader;
+
+/**
+ * Drives many uploads at once from a single thread: each upload is a
+ * non-blocking NonBlockingHTTPUploader.Upload whose channel is registered
+ * with this transport's Selector, so the thread only does work for the
+ * connections which are ready.  This is the alternative to one Uploader
+ * thread (and one UploadMechanism) per upload in flight.
+ *
+ * Like an Uploader, the transport owns the byte accounting for each task it
+ * takes from the queue until that task's upload finishes, fails, or is
+ * noticed to have been canceled.
+ *
+ * @author David Underhill
+ */
+class SelectorTransport implements Runnable {
+    /** longest to wait in select() before checking for cancellations and pauses */
+    private static final long HOUSEKEEPING_INTERVAL_MS = 100;
+
+    /** one upload in flight */
+    private static class InFlight {
+        final UploadTask task;
+        final NonBlockingHTTPUploader.Upload upload;
+        SelectionKey key;
+        final long startTime = System.currentTimeMillis();
+        long pausedTime = 0;
+
+        /** when the upload last made progress (its channel was ready) */
+        long lastProgressTime = startTime;
+
+        /** when (System.nanoTime()) the throttle allows sending again (0 if it does now) */
+        long resumeAt = 0;
+
+        InFlight(UploadTask task, NonBlockingHTTPUploader.Upload upload) {
+            this.task = task;
+            this.upload = upload;
+        }
+    }
+
+    private final UploadEngine engine;
+    private final UploadQueue queue;
+    private final NonBlockingHTTPUploader uploader;
+    private final TokenBucket limiter;
+    private final int maxInFlight;
+    private final Selector selector;
+
+    /** uploads in progress (only touched by this transport's thread) */
+    private final LinkedList inFlight = new LinkedList();
+
+    /** when uploading was paused (-1 if it isn't) */
+    private long pauseStart = -1;
+
+    /**
+     * @param maxInFlight  the most uploads this transport runs at once
+     * @param limiter      throttles the bytes sent by this transport
+     */
+    public SelectorTransport(UploadEngine engine, UploadQueue queue, NonBlockingHTTPUploader uploader,
+                             TokenBucket limiter, int maxInFlight) throws IOException {
+        this.engine = engine;
+        this.queue = queue;
+        this.uploader = uploader;
+        this.limiter = limiter;
+        this.maxInFlight = maxInFlight;
+        this.selector = Selector.open();
+
+        // wake up to start new uploads as soon as there are any
+        queue.addWakeListener(new Runnable() {
+            public void run() {
+                selector.wakeup();
+            }
+        });
+    }
+
+    /** the transport's main loop */
+    public void run() {
+        while(true) {
+            startUploads();
+            long timeoutMs = housekeeping();
+
+            try {
+                selector.select(timeoutMs);
+            } catch(IOException e) {
+                e.printStackTrace(); // shouldn't happen; carry on
+            }
+
+            Iterator itr = selector.selectedKeys().iterator();
+            while(itr.hasNext()) {
+                SelectionKey key = (SelectionKey)itr.next();
+                itr.remove();
+                step((InFlight)key.attachment());
+            }
+        }
+    }
+
+    /** starts queued uploads until we're running as many as we're allowed to */
+    private void startUploads() {
+        while(inFlight.size() < maxInFlight) {
+            UploadTask item = queue.poll();
+            if(item == null)
+                return;
+            engine.uploadStarted(item);
+
+            InFlight f = new InFlight(item, uploader.startUpload(item.getFilename()));
+            if(!f.upload.isDone()) {
+                engine.uploadSizeKnown(item, f.upload.length());
+                try {
+                    f.key = f.upload.getChannel().register(selector, f.upload.getInterestOps(), f);
+                }
+                catch(IOException e) {
+                    f.upload.close();
+                    engine.uploadStopped(item, e.getMessage(), false, null);
+                    continue;
+                }
+                inFlight.add(f);
+            }
+            else
+                finish(f);
+        }
+    }
+
+    /**
+     * Halts uploads which have been canceled and sets what each upload is
+     * waiting for (nothing while paused or throttled).  Returns how long to
+     * wait for channels to become ready.
+     */
+    private long housekeeping() {
+        long now = System.nanoTime();
+        long timeoutNs = HOUSEKEEPING_INTERVAL_MS * 1000000L;
+
+        // keep track of how long we're paused (it isn't part of the upload time)
+        boolean paused = !queue.isUploadingEnabled();
+        if(paused && pauseStart < 0)
+            pauseStart = System.currentTimeMillis();
+        long pausedTime = 0;
+        if(!paused && pauseStart >= 0) {
+            pausedTime = System.currentTimeMillis() - pauseStart;
+            pauseStart = -1;
+        }
+
+        long nowMs = System.currentTimeMillis();
+        long stallTimeout = engine.getStallTimeout();
+        Iterator itr = inFlight.iterator();
+        while(itr.hasNext()) {
+            InFlight f = (InFlight)itr.next();
+            f.pausedTime += pausedTime;
+            f.lastProgressTime += pausedTime;
+            if(f.task.getState() != UploadTask.STATE_UPLOADING) {
+                // canceled, but we've partially uploaded it
+                itr.remove();
+                f.key.cancel();
+                f.upload.close();
+                engine.uploadStopped(f.task, null, false, null);
+                continue;
+            }
+            if(stallTimeout > 0 && !paused && f.resumeAt == 0 && nowMs - f.lastProgressTime >= stallTimeout) {
+                // the server stopped responding: free the slot for another upload
+                itr.remove();
+                f.key.cancel();
+                f.upload.close();
+                engine.uploadStopped(f.task, UploadEngine.getStalledErrorText(stallTimeout), false, null);
+                continue;
+            }
+
+            int ops = f.upload.getInterestOps();
+            if(paused)
+                ops = 0;
+            else if(f.resumeAt != 0) {
+                long waitNs = f.resumeAt - now;
+                if(waitNs > 0) {
+                    ops = 0;
+                    timeoutNs = Math.min(timeoutNs, waitNs);
+                }
+                else {
+                    f.resumeAt = 0;
+                    f.lastProgressTime = nowMs; // waiting on the throttle isn't stalling
+                }
+            }
+            if(f.key.interestOps() != ops)
+                f.key.interestOps(ops);
+        }
+
+        return Math.max(1, timeoutNs / 1000000L);
+    }
+
+    /** does as much of f's upload as its channel is ready for */
+    private void step(InFlight f) {
+        f.lastProgressTime = System.currentTimeMillis();
+        long n = f.upload.step();
+        if(n > 0) {
+            engine.uploadProgressed(f.task, n);
+
+            // pace ourselves if we're sending faster than we're allowed to
+            long waitNs = limiter.reserve(n);
+            if(waitNs > 0)
+                f.resumeAt = System.nanoTime() + waitNs;
+        }
+
+        if(f.upload.isBodySent() && !f.task.isFinalizing())
+            engine.uploadFinalizing(f.task);
+
+        if(f.upload.isDone()) {
+            inFlight.remove(f);
+            f.key.cancel();
+            finish(f);
+        }
+    }
+
+    /** does the bookkeeping for an upload which has succeeded or failed */
+    private void finish(InFlight f) {
+        f.upload.close();
+        String why = f.upload.getErrorText();
+        if(why == null)
+            engine.uploadSucceeded(f.task, System.currentTimeMillis() - f.startTime - f.pausedTime);
+        else
+            engine.uploadStopped(f.task, why, f.upload.isErrorPermanent(), null);
+    }
+}
@@ -0,0 +1,23 @@
+package uploader;
+
+import java.util.Comparator;
+
+/**
+ * Uploads the smallest queued item first (shortest job first).  This minimizes
+ * the average time items spend waiting: one large file at the head of the
+ * queue no longer holds up many small ones behind it.  Large files may wait a
+ * long time if small files keep being added.
+ *
+ * @author David Underhill
+ */
+public class SmallestFirstUploadScheduler extends PriorityUploadScheduler {
+    public SmallestFirstUploadScheduler() {
+        super(new Comparator() {
+            public int compare(Object o1, Object o2) {
+                long len1 = ((UploadTask)o1).length();
+                long len2 = ((UploadTask)o2).length();
+                return (len1 < len2) ? -1 : ((len1 == len2) ? 0 : 1);
+            }
+        });
+    }
+}
@@ -0,0 +1,128 @@
+package uploader;
+
+/**
+ * Models how long uploads take so that UploadEngine can estimate the time
+ * left for a batch.  It keeps two estimates:
+ *
+ *   - The aggregate upload rate across all uploaders: an exponentially
+ *     weighted moving average (EWMA) of the bytes sent per second, with a
+ *     time constant of RATE_TIME_CONSTANT_MS.  It falls toward zero when
+ *     uploaders are idle, unlike a per-file cumulative average.
+ *
+ *   - The time one uploader takes for one file, fitted as
+ *         time = overhead + size * timePerByte
+ *     by exponentially weighted least squares over recently uploaded files.
+ *     The overhead term captures the per-file cost of connecting and waiting
+ *     for the server's response, which dominates for small files.
+ *
+ * Thread-safe.  Methods are synchronized, but they are called at most once
+ * per file or per progress refresh, never per chunk.
+ *
+ * @author David Underhill
+ */
+class ThroughputEstimator {
+    /** how quickly the rate estimate forgets old samples */
+    private static final double RATE_TIME_CONSTANT_MS = 5000;
+
+    /** the rate estimate is not updated more often than this */
+    private static final long MIN_RATE_SAMPLE_INTERVAL_MS = 200;
+
+    /** weight of the previous files each time a file is uploaded (~20 file window) */
+    private static final double FIT_DECAY = 0.95;
+
+    // state of the rate estimate
+    private long lastSampleTime = -1;
+    private long lastTotalBytes;
+    private double rate_Bps = 0;
+    private boolean rateInitialized = false;
+
+    // exponentially weighted sums for the least squares fit (x=bytes, y=ms)
+    private double sw, sx, sy, sxx, sxy;
+
+    /** fitted model (valid once fitted is true) */
+    private boolean fitted = false;
+    private double overhead_ms = 0;
+    private double msPerByte = 0;
+
+    /**
+     * Updates the rate estimate given the total number of bytes which have
+     * been sent so far (a running total which never decreases).
+     */
+    public synchronized void sample(long now, long totalBytesUploaded) {
+        if(lastSampleTime < 0) {
+            lastSampleTime = now;
+            lastTotalBytes = totalBytesUploaded;
+            return;
+        }
+
+        long dt = now - lastSampleTime;
+        if(dt < MIN_RATE_SAMPLE_INTERVAL_MS)
+            return;
+
+        double instRate_Bps = (1000.0 * (totalBytesUploaded - lastTotalBytes)) / dt;
+        if(!rateInitialized) {
+            rate_Bps = instRate_Bps; // don't bias the estimate toward zero to start
+            rateInitialized = true;
+        }
+        else {
+            double alpha = 1.0 - Math.exp(-dt / RATE_TIME_CONSTANT_MS);
+            rate_Bps += alpha * (instRate_Bps - rate_Bps);
+        }
+        lastSampleTime = now;
+        lastTotalBytes = totalBytesUploaded;
+    }
+
+    /** returns the estimated aggregate upload rate (bytes per second) */
+    public synchronized double getRate_Bps() {
+        return rate_Bps;
+    }
+
+    /** records that one uploader took duration_ms to upload a file of size bytes */
+    public synchronized void fileUploaded(long bytes, long duration_ms) {
+        sw  = FIT_DECAY * sw  + 1;
+        sx  = FIT_DECAY * sx  + bytes;
+        sy  = FIT_DECAY * sy  + duration_ms;
+        sxx = FIT_DECAY * sxx + (double)bytes * bytes;
+        sxy = FIT_DECAY * sxy + (double)bytes * duration_ms;
+
+        double meanX = sx / sw;
+        double meanY = sy / sw;
+        double varX = sxx / sw - meanX * meanX;
+        double covXY = sxy / sw - meanX * meanY;
+        if(varX > 0.01 * meanX * meanX && covXY > 0) {
+            // enough variety in file sizes to separate the two terms
+            msPerByte = covXY / varX;
+            overhead_ms = Math.max(0, meanY - msPerByte * meanX);
+        }
+        else {
+            // files are all about the same size: attribute all of the time to
+            // the bytes (the total for similar files comes out the same)
+            msPerByte = (meanX > 0) ? meanY / meanX : 0;
+            overhead_ms = (meanX > 0) ? 0 : meanY;
+        }
+        fitted = true;
+    }
+
+    /**
+     * Returns the fitted time it takes to upload a file, excluding the time
+     * spent sending its bytes (-1 if no file has been uploaded yet).
+     */
+    public synchronized double getPerFileOverhead_ms() {
+        return fitted ? overhead_ms : -1;
+    }
+
+    /**
+     * Estimates how long it will take to upload numFiles files containing
+     * numBytes bytes with numThreads uploaders working in parallel.  Returns
+     * -1 if there is not enough data to make an estimate.
+     */
+    public synchronized long estimateTimeLeft_ms(int numFiles, long numBytes, int numThreads) {
+        if(numFiles <= 0)
+            return 0;
+        if(!fitted)
+            return -1;
+
+        int parallelism = Math.max(1, Math.min(numThreads, numFiles));
+        return (long)((numFiles * overhead_ms + numBytes * msPerByte) / parallelism);
+    }
+}
@@ -0,0 +1,109 @@
+package uploader;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A hashed timer wheel: runs tasks after a delay with a resolution of one
+ * tick.  Scheduling is O(1) and lock-free no matter how many tasks are
+ * waiting, which suits thousands of short-lived timeouts (e.g., retries)
+ * better than java.util.Timer's heap.
+ *
+ * New tasks are handed to the wheel's thread through a lock-free queue; only
+ * that thread touches the slots.  Tasks are run on the wheel's thread, so they
+ * should be quick.
+ *
+ * @author David Underhill
+ */
+class TimerWheel {
+    /** a task and the tick it is due on */
+    private static class Timeout {
+        final Runnable task;
+        final long delayMs;
+        long dueTick;
+
+        Timeout(Runnable task, long delayMs) {
+            this.task = task;
+            this.delayMs = delayMs;
+        }
+    }
+
+    private final long tickMs;
+    private final LinkedList[] slots;
+
+    /** tasks which have been scheduled but not yet put in a slot */
+    private final ConcurrentLinkedQueue incoming = new ConcurrentLinkedQueue();
+
+    private final Thread thread;
+
+    /**
+     * Creates a wheel with the specified resolution and number of slots.  A
+     * full turn of the wheel takes tickMs*numSlots; longer delays simply wait
+     * for more than one turn.
+     */
+    public TimerWheel(String name, long tickMs, int numSlots) {
+        this.tickMs = tickMs;
+        this.slots = new LinkedList[numSlots];
+        for(int i=0; i<numSlots; i++)
+            slots[i] = new LinkedList();
+
+        thread = new Thread(new Runnable() {
+            public void run() {
+                turn();
+            }
+        }, name);
+        thread.setDaemon(true); // don't keep the JVM alive
+    }
+
+    /** starts the wheel's thread */
+    public void start() {
+        thread.start();
+    }
+
+    /** Runs task (on the wheel's thread) after about delayMs milliseconds. */
+    public void schedule(Runnable task, long delayMs) {
+        incoming.offer(new Timeout(task, delayMs));
+    }
+
+    /** main loop of the wheel's thread */
+    private void turn() {
+        final long startTime = System.currentTimeMillis();
+        long tick = 0;
+        while(true) {
+            // sleep until the next tick is due
+            long sleepMs = startTime + (tick + 1) * tickMs - System.currentTimeMillis();
+            if(sleepMs > 0) {
+                try {
+                    Thread.sleep(sleepMs);
+                } catch(InterruptedException e) {
+                    // ignore it
+                }
+                continue;
+            }
+            tick += 1;
+
+            // put newly scheduled tasks in their slots (round delays up to a tick)
+            Timeout t;
+            while((t = (Timeout)incoming.poll()) != null) {
+                t.dueTick = tick + Math.max(0, (t.delayMs + tickMs - 1) / tickMs - 1);
+                slots[(int)(t.dueTick % slots.length)].add(t);
+            }
+
+            // run the tasks in this slot which are due on this turn of the wheel
+            Iterator itr = slots[(int)(tick % slots.length)].iterator();
+            while(itr.hasNext()) {
+                t = (Timeout)itr.next();
+                if(t.dueTick <= tick) {
+                    itr.remove();
+                    try {
+                        t.task.run();
+                    }
+                    catch(RuntimeException e) {
+                        e.printStackTrace(); // don't let one bad task stop the wheel
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package uploader;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the rate at which bytes are sent.  Uploaders sharing a bucket share
+ * its rate, so one bucket can cap all uploads (see
+ * UploadEngine.getBandwidthLimiter()) or just those to one destination (see
+ * UploadEngine.setBandwidthLimiter()).  Up to one second's worth of bytes may
+ * be sent in a burst after the bucket has been idle.
+ *
+ * The bucket is stored as the time at which it will next be full (a "generic
+ * cell rate algorithm"), so taking tokens is one compare-and-set with no lock;
+ * a sender which takes more tokens than are available sleeps (or, with
+ * reserve(), is told to wait) until they would have accumulated.  The rate may
+ * be changed at any time.
+ *
+ * Thread-safe.
+ *
+ * @author David Underhill
+ */
+public class TokenBucket {
+    private static final long NANOS_PER_SEC = 1000L * 1000L * 1000L;
+
+    /** how long the bucket takes to fill, i.e., how much of a burst is allowed */
+    private static final long BURST_NS = NANOS_PER_SEC;
+
+    /** bytes per second (0 => unlimited) */
+    private volatile long rate_Bps;
+
+    /** the time (System.nanoTime()) by which all tokens taken so far will have been earned */
+    private final AtomicLong nextFreeTime = new AtomicLong(System.nanoTime() - BURST_NS);
+
+    /** creates a bucket which limits senders to bytesPerSec (0 => unlimited) */
+    public TokenBucket(long bytesPerSec) {
+        setRate(bytesPerSec);
+    }
+
+    /** sets the rate, in bytes per second, to limit senders to (0 => unlimited) */
+    public void setRate(long bytesPerSec) {
+        if(bytesPerSec < 0)
+            throw new IllegalArgumentException("rate must not be negative");
+        rate_Bps = bytesPerSec;
+    }
+
+    /** returns the rate, in bytes per second, senders are limited to (0 => unlimited) */
+    public long getRate() {
+        return rate_Bps;
+    }
+
+    /**
+     * Takes n tokens (one per byte sent), sleeping if the caller has got ahead
+     * of the rate.  Call this as bytes are sent.
+     */
+    public void take(long n) {
+        long waitNs = reserve(n);
+        if(waitNs > 0) {
+            try {
+                Thread.sleep(waitNs / 1000000L, (int)(waitNs % 1000000L));
+            } catch(InterruptedException e) {
+                // ignore it
+            }
+        }
+    }
+
+    /**
+     * Takes n tokens without sleeping.  Returns how long (in nanoseconds) the
+     * caller should wait before sending more if it has got ahead of the rate
+     * (0 if it need not wait).  Useful for senders which must not block, e.g.,
+     * a thread multiplexing many connections.
+     */
+    public long reserve(long n) {
+        long rate = rate_Bps;
+        if(rate <= 0 || n <= 0)
+            return 0;
+
+        long cost = (long)(n * (double)NANOS_PER_SEC / rate);
+        long now, newFreeTime;
+        while(true) {
+            now = System.nanoTime();
+            long old = nextFreeTime.get();
+
+            // tokens stop accumulating once the bucket is full
+            long start = Math.max(old, now - BURST_NS);
+            newFreeTime = start + cost;
+            if(nextFreeTime.compareAndSet(old, newFreeTime))
+                break;
+        }
+
+        // if we've used more than the bucket held, wait until we've earned it
+        return Math.max(0, newFreeTime - now);
+    }
+}
@@ -0,0 +1,809 @@
+package uploader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+import uploader.mechanisms.AbstractUploadMechanism;
+import uploader.mechanisms.NonBlockingHTTPUploader;
+import uploader.mechanisms.UploadMechanism;
+import uploader.mechanisms.UploadMechanismFactory;
+
+/**
+ * Manages the upload queue and the uploader(s) which service that queue.  The
+ * engine has no user interface (it runs fine with java.awt.headless=true): it
+ * can be driven directly by a batch job or server, or wrapped by a UI like
+ * UploadManager/UploaderPanel.  Progress is reported to UploadEngineListeners.
+ *
+ * All public methods are thread-safe.
+ *
+ * @author David Underhill
+ */
+public class UploadEngine {
+    /**
+     * Maximum size file which will be accepted.  Note: This can be bypassed if
+     * the file is changed between when we are asked to upload it and the time
+     * the upload actually starts.
+     */
+    public static final long MAX_FILE_SIZE_ALLOWED_MB = 16;
+
+    /** items to upload, in progress, failed, and completed (and stats about them) */
+    private final UploadQueue queue = new UploadQueue();
+
+    /** objects to notify as tasks progress */
+    private final CopyOnWriteArrayList listeners = new CopyOnWriteArrayList();
+
+    /** uploaders currently servicing the queue (rarely modified, often iterated) */
+    private final CopyOnWriteArrayList uploaders = new CopyOnWriteArrayList();
+
+    /** runs each Uploader (by default, each gets its own platform thread) */
+    private final Executor executor;
+
+    /** number of upload threads we are trying to run (threads asked to exit aren't counted) */
+    private int numUploaderThreads = 0;
+
+    /** where to get mechanisms for new threads (null if only the initial ones may be used) */
+    private final UploadMechanismFactory uploadMechFactory;
+
+    /** mechanisms which are not currently assigned to a thread */
+    private final ConcurrentLinkedQueue idleUploadMechs = new ConcurrentLinkedQueue();
+
+    /** adjusts the number of threads at runtime (null if the number is fixed) */
+    private final ConcurrencyController concurrencyController;
+
+    /** decides which failed uploads to retry automatically (null to never do so) */
+    private volatile RetryPolicy retryPolicy = new BackoffRetryPolicy();
+
+    /** limits the rate at which all uploaders combined send data */
+    private final TokenBucket globalBandwidthLimiter = new TokenBucket(0);
+
+    /** maps mechanisms to limiters which only apply to them (e.g., per destination) */
+    private final ConcurrentHashMap bandwidthLimiters = new ConcurrentHashMap();
+
+    /** estimates throughput and the time left */
+    private final ThroughputEstimator estimator = new ThroughputEstimator();
+
+    /** does the uploads instead of Uploaders if not null (see the constructor which takes it) */
+    private final NonBlockingHTTPUploader nonBlockingUploader;
+    private final int numSelectorThreads;
+    private final int maxConcurrentUploads;
+
+    /** holds uploads which are waiting to be retried (without tying up an uploader) */
+    private final TimerWheel retryWheel = new TimerWheel("UploadRetryTimer", 100, 512);
+
+    /** by default, uploads which make no progress for this long are aborted */
+    public static final long DEFAULT_STALL_TIMEOUT_MS = 5 * 60 * 1000;
+
+    /** how often to look for stalled uploads */
+    private static final long STALL_CHECK_INTERVAL_MS = 1000;
+
+    /** uploads which make no progress for this long are aborted (0 => never) */
+    private volatile long stallTimeout_ms = DEFAULT_STALL_TIMEOUT_MS;
+
+    /**
+     * Responsible for uploading files (one at a time).  Shares state in
+     * UploadEngine with other Uploaders (e.g., the queue of pending uploads).
+     * Each Uploader runs on its own thread provided by the engine's Executor
+     * and blocks in its UploadMechanism while transferring data.
+     */
+    private class Uploader implements Runnable {
+        /** the object which will actually uploads each file */
+        private final UploadMechanism uploadMech;
+
+        /** the item being uploaded (null if none) and when it last made progress */
+        private volatile UploadTask current = null;
+        private volatile long lastProgressTime = 0;
+
+        /** whether the current upload is waiting for uploading to be enabled */
+        private volatile boolean paused = false;
+
+        /** constructs a new uploader which will upload items with the specified mechanism */
+        public Uploader(UploadMechanism uploadMech) {
+            this.uploadMech = uploadMech;
+        }
+
+        /**
+         * Uploader thread main body.  Whenever uploading is enabled and there
+         * is an item to upload, uploading will take place.  If uploading is
+         * disabled, then the thread will stop uploading ASAP.
+         */
+        public void run() {
+            while(true) {
+                try {
+                    // wait until we're allowed to upload AND we have something to upload
+                    UploadTask item = queue.take();
+                    if(item == null) {
+                        // we've been asked to exit
+                        uploaders.remove(this);
+                        idleUploadMechs.offer(uploadMech);
+                        return;
+                    }
+                    uploadStarted(item);
+                    lastProgressTime = System.currentTimeMillis();
+                    current = item;
+                    try {
+                        uploadOneItem(item);
+                    }
+                    finally {
+                        current = null;
+                    }
+                } catch(InterruptedException e) {
+                    // ignore it
+                }
+            }
+        }
+
+        /**
+         * Uploads item.  This thread owns item (it is in the UPLOADING state)
+         * until this method returns.
+         */
+        private void uploadOneItem(UploadTask item) {
+            // time the whole upload (including connecting and finalizing) to
+            // learn the per-file overhead
+            final long startTime = System.currentTimeMillis();
+            long pausedTime = 0;
+
+            // initialize the upload process
+            long actualSize = uploadMech.startUpload(item.getFilename());
+            if(actualSize < 0) {
+                stopCurrentUpload(item, uploadMech.getErrorText());
+                return;
+            }
+            uploadSizeKnown(item, actualSize);
+
+            // the limiter for this mechanism (if any) is looked up once per file
+            TokenBucket mechLimiter = (TokenBucket)bandwidthLimiters.get(uploadMech);
+
+            // loop until the upload is canceled or done
+            ChunkSizer chunkSizer = new ChunkSizer();
+            long bytesUploaded = 0;
+            long totalBytesUploaded = 0;
+            while(item.getState() == UploadTask.STATE_UPLOADING) {
+                // If this should be our last chunk, optimistically update the
+                // GUI.  Otherwise, it may look like the upload stalled at X%
+                // (though it hasn't) while we wait for the server's response.
+                long chunkSize = chunkSizer.getChunkSize();
+                if(actualSize-totalBytesUploaded <= chunkSize && !item.isFinalizing())
+                    uploadFinalizing(item);
+
+                // upload the next chunk of this item
+                long chunkStart = System.nanoTime();
+                bytesUploaded = uploadMech.uploadNextChunk(chunkSize);
+                if(bytesUploaded == -1L) {
+                    stopCurrentUpload(item, uploadMech.getErrorText());
+                    return;
+                }
+                else {
+                    // pace ourselves if we're sending faster than we're allowed to
+                    globalBandwidthLimiter.take(bytesUploaded);
+                    if(mechLimiter != null)
+                        mechLimiter.take(bytesUploaded);
+                    chunkSizer.chunkSent(bytesUploaded, System.nanoTime() - chunkStart);
+
+                    // the size is only an estimate if the data is produced on
+                    // the fly: grow it if we've sent more than that
+                    totalBytesUploaded += bytesUploaded;
+                    if(totalBytesUploaded > item.length())
+                        uploadSizeKnown(item, totalBytesUploaded);
+                    uploadProgressed(item, bytesUploaded);
+                    lastProgressTime = System.currentTimeMillis();
+                }
+
+                // check to see if the upload is done
+                if(uploadMech.isUploadComplete()) {
+                    uploadSizeKnown(item, totalBytesUploaded); // in case it was an overestimate
+                    uploadSucceeded(item, System.currentTimeMillis() - startTime - pausedTime);
+                    return;
+                }
+
+                // pause the upload if uploading is disabled (the pause isn't
+                // part of the time this upload took)
+                if(!queue.isUploadingEnabled()) {
+                    long pauseStart = System.currentTimeMillis();
+                    paused = true;
+                    queue.awaitUploadingEnabled();
+                    lastProgressTime = System.currentTimeMillis();
+                    paused = false;
+                    pausedTime += System.currentTimeMillis() - pauseStart;
+                }
+            }
+
+            // the item's upload has been canceled, but we've partially uploaded it
+            uploadMech.cancelUpload();
+            stopCurrentUpload(item, null);
+        }
+
+        /**
+         * Aborts the current upload if it has made no progress for timeout_ms
+         * (e.g., the server stopped responding).  The upload then fails (and
+         * may be retried), which frees this uploader for other items.  Called
+         * by the stall checker, not this uploader's thread.
+         */
+        void abortIfStalled(long now, long timeout_ms) {
+            if(current == null || paused || now - lastProgressTime < timeout_ms)
+                return;
+            lastProgressTime = now; // give the abort a chance to work before trying again
+            if(uploadMech instanceof AbstractUploadMechanism)
+                ((AbstractUploadMechanism)uploadMech).abortUpload(getStalledErrorText(timeout_ms));
+        }
+
+        /**
+         * Stops the upload of item (owned by this thread).  If why is not null,
+         * then the upload failed (see uploadStopped()).
+         */
+        private void stopCurrentUpload(UploadTask item, String why) {
+            boolean permanent = (why != null) && (uploadMech instanceof AbstractUploadMechanism)
+                                && ((AbstractUploadMechanism)uploadMech).isErrorPermanent();
+            uploadStopped(item, why, permanent, uploadMech);
+        }
+    }
+
+    // The following methods do the bookkeeping for an upload.  They are called
+    // by whichever transport (an Uploader or a SelectorTransport) owns item
+    // (i.e., moved it into the UPLOADING state).
+
+    /** notes that item has been taken from the queue to be uploaded */
+    void uploadStarted(UploadTask item) {
+        fireTaskStateChanged(item);
+    }
+
+    /** notes the actual size of item (it may have changed since it was added) */
+    void uploadSizeKnown(UploadTask item, long actualSize) {
+        if(item.length() != actualSize) {
+            long diff = actualSize - item.length();
+            item.setLength(actualSize);
+            queue.incrNumBytesLeftToUpload(diff);
+            fireTaskProgressed(item);
+        }
+    }
+
+    /** notes that n more bytes of item have been sent */
+    void uploadProgressed(UploadTask item, long n) {
+        item.setNumBytesUploaded(item.getNumBytesUploaded() + n);
+        queue.chunkUploaded(n);
+        fireTaskProgressed(item);
+    }
+
+    /**
+     * Notes that the last of item is being sent and we're waiting for the
+     * server to confirm the upload.  This optimistically updates the GUI:
+     * otherwise, it may look like the upload stalled at X% (though it hasn't)
+     * while we wait for the server's response.
+     */
+    void uploadFinalizing(UploadTask item) {
+        item.setFinalizing(true);
+        fireTaskProgressed(item);
+    }
+
+    /** notes that item was uploaded successfully in duration_ms */
+    void uploadSucceeded(UploadTask item, long duration_ms) {
+        estimator.fileUploaded(item.length(), duration_ms);
+        if(queue.markCompleted(item))
+            fireTaskStateChanged(item);
+        else
+            fireEngineStateChanged(); // canceled at the last moment, but the stats changed
+    }
+
+    /**
+     * Stops the upload of item.  If why is null, then it was canceled.
+     * Otherwise the upload failed: the item is retried later if the retry
+     * policy allows it, and otherwise it is added to the failed list.
+     *
+     * @param permanent  whether retrying is known to be futile
+     * @param mech       the mechanism which failed (null if none)
+     */
+    void uploadStopped(final UploadTask item, String why, boolean permanent, UploadMechanism mech) {
+        long bytesLeft = item.length() - item.getNumBytesUploaded();
+        if(why != null) {
+            item.setNumConsecutiveFailures(item.getNumConsecutiveFailures() + 1);
+            item.setErrorText(why);
+            item.setErrorPermanent(permanent);
+            RetryPolicy policy = retryPolicy;
+            long delayMs = (policy == null) ? -1 : policy.getRetryDelay(item, mech);
+            if(delayMs >= 0) {
+                if(queue.markRetrying(item, bytesLeft, why)) {
+                    retryWheel.schedule(new Runnable() {
+                        public void run() {
+                            if(queue.requeue(item))
+                                fireTaskStateChanged(item);
+                        }
+                    }, delayMs);
+                    fireTaskStateChanged(item);
+                }
+                else
+                    fireEngineStateChanged(); // canceled, but the stats changed
+                return;
+            }
+        }
+
+        if(queue.markStopped(item, bytesLeft, why))
+            fireTaskStateChanged(item);
+        else
+            fireEngineStateChanged(); // the stats changed
+    }
+
+    /**
+     * Constructs a new UploadEngine which will manage uploads using the
+     * specified upload mechanisms.  One thread will be used per mechanism.
+     *
+     * @param uploadMechs  how to upload files (one per thread we should use)
+     */
+    public UploadEngine(final UploadMechanism[] uploadMechs) {
+        this.nonBlockingUploader = null;
+        this.numSelectorThreads = 0;
+        this.maxConcurrentUploads = 0;
+        this.uploadMechFactory = null;
+        this.concurrencyController = null;
+        this.executor = new ThreadPerUploaderExecutor();
+
+        for(int i=0; i<uploadMechs.length; i++)
+            idleUploadMechs.offer(uploadMechs[i]);
+    }
+
+    /**
+     * Constructs a new UploadEngine which will manage uploads using
+     * mechanisms from the specified factory.  The number of threads used is
+     * adjusted at runtime (between minThreads and maxThreads) based on the
+     * observed throughput and error rate.
+     *
+     * @param uploadMechFactory  creates a mechanism for each thread we use
+     * @param minThreads   the fewest uploads to do in parallel (at least 1)
+     * @param maxThreads   the most uploads to do in parallel
+     */
+    public UploadEngine(final UploadMechanismFactory uploadMechFactory, int minThreads, int maxThreads) {
+        this(uploadMechFactory, minThreads, maxThreads, null);
+    }
+
+    /**
+     * Like the previous constructor, except each in-flight upload runs as a
+     * task on the specified executor.  The executor must run every task it is
+     * given concurrently (i.e., it must not queue tasks behind a fixed number
+     * of threads smaller than maxThreads) because each task blocks for as long
+     * as its uploader is in use.  On Java 21 or newer,
+     * Executors.newVirtualThreadPerTaskExecutor() is a good choice: it lets
+     * thousands of slow uploads be in flight without thousands of OS threads.
+     *
+     * @param executor  runs the uploaders; null to use one platform thread per uploader
+     */
+    public UploadEngine(final UploadMechanismFactory uploadMechFactory,
+                        int minThreads, int maxThreads, Executor executor) {
+        this.nonBlockingUploader = null;
+        this.numSelectorThreads = 0;
+        this.maxConcurrentUploads = 0;
+        this.uploadMechFactory = uploadMechFactory;
+        this.concurrencyController = new ConcurrencyController(this, queue, minThreads, maxThreads);
+        this.executor = (executor != null) ? executor : new ThreadPerUploaderExecutor();
+    }
+
+    /**
+     * Constructs a new UploadEngine which multiplexes many uploads over a few
+     * threads rather than blocking one thread per upload: each selector
+     * thread drives up to maxConcurrentUploads/numSelectorThreads
+     * non-blocking uploads at once (see SelectorTransport).  This suits
+     * uploading many files in parallel (e.g., hundreds) with a small thread
+     * footprint.  Limits set with setBandwidthLimiter() do not apply to
+     * these uploads (the global limit does).
+     *
+     * @param uploader              how to upload each file
+     * @param numSelectorThreads    the number of threads to use (at least 1)
+     * @param maxConcurrentUploads  the most uploads to do in parallel
+     */
+    public UploadEngine(final NonBlockingHTTPUploader uploader, int numSelectorThreads, int maxConcurrentUploads) {
+        this.nonBlockingUploader = uploader;
+        this.numSelectorThreads = Math.max(1, numSelectorThreads);
+        this.maxConcurrentUploads = Math.max(this.numSelectorThreads, maxConcurrentUploads);
+        this.uploadMechFactory = null;
+        this.concurrencyController = null;
+        this.executor = new ThreadPerUploaderExecutor();
+    }
+
+    /** The default executor: starts a new platform thread for each uploader. */
+    private static class ThreadPerUploaderExecutor implements Executor {
+        private int numThreadsCreated = 0;
+
+        public synchronized void execute(Runnable r) {
+            numThreadsCreated += 1;
+            new Thread(r, "UploaderThread-" + numThreadsCreated).start();
+        }
+    }
+
+    /** Starts all of the uploader thread(s). */
+    public void start() {
+        retryWheel.start();
+        scheduleStallCheck();
+        if(nonBlockingUploader != null)
+            startSelectorThreads();
+        else if(concurrencyController == null)
+            setNumUploaderThreads(idleUploadMechs.size());
+        else {
+            setNumUploaderThreads(concurrencyController.getMinThreads());
+            concurrencyController.start();
+        }
+    }
+
+    /** checks for stalled uploads (on the retry wheel's thread) every so often */
+    private void scheduleStallCheck() {
+        retryWheel.schedule(new Runnable() {
+            public void run() {
+                long timeout = stallTimeout_ms;
+                if(timeout > 0) {
+                    long now = System.currentTimeMillis();
+                    Iterator itr = uploaders.iterator();
+                    while(itr.hasNext())
+                        ((Uploader)itr.next()).abortIfStalled(now, timeout);
+                }
+                scheduleStallCheck();
+            }
+        }, STALL_CHECK_INTERVAL_MS);
+    }
+
+    /** returns the error for an upload which made no progress for timeout_ms */
+    static String getStalledErrorText(long timeout_ms) {
+        return "stalled (no progress for " + (timeout_ms / 1000) + "s)";
+    }
+
+    /** starts the threads which do the uploads if we aren't using Uploaders */
+    private synchronized void startSelectorThreads() {
+        for(int i=0; i<numSelectorThreads; i++) {
+            // split the uploads evenly between the threads
+            int n = maxConcurrentUploads / numSelectorThreads + ((i < maxConcurrentUploads % numSelectorThreads) ? 1 : 0);
+            try {
+                SelectorTransport t = new SelectorTransport(this, queue, nonBlockingUploader, globalBandwidthLimiter, n);
+                new Thread(t, "UploadSelectorThread-" + (i + 1)).start();
+                numUploaderThreads += n;
+            }
+            catch(IOException e) {
+                throw new RuntimeException("unable to open a selector: " + e.getMessage());
+            }
+        }
+        fireEngineStateChanged();
+    }
+
+    /** returns the number of uploaders (and thus parallel uploads) currently in use */
+    public synchronized int getNumUploaderThreads() {
+        return numUploaderThreads;
+    }
+
+    /**
+     * Starts or stops uploaders so that n are in use.  Uploaders which are
+     * stopped finish their current upload before exiting.  If this engine was
+     * constructed with a fixed array of mechanisms then n is limited to the
+     * number of mechanisms provided.
+     */
+    synchronized void setNumUploaderThreads(int n) {
+        while(numUploaderThreads < n) {
+            if(!queue.cancelRetirement()) {
+                // no thread is on its way out, so start a new one
+                UploadMechanism uploadMech = (UploadMechanism)idleUploadMechs.poll();
+                if(uploadMech == null) {
+                    if(uploadMechFactory == null)
+                        return; // can't create any more
+                    uploadMech = uploadMechFactory.createUploadMechanism();
+                }
+                Uploader u = new Uploader(uploadMech);
+                uploaders.add(u);
+                executor.execute(u);
+            }
+            numUploaderThreads += 1;
+        }
+        while(numUploaderThreads > n) {
+            queue.requestRetirement();
+            numUploaderThreads -= 1;
+        }
+        fireEngineStateChanged();
+    }
+
+    /**
+     * Adds a file to the upload queue.  Returns the task which tracks its
+     * upload, or null if the file is empty or too big to upload.
+     */
+    public UploadTask addFileToUpload(File f) {
+        return addFileToUpload(f, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Adds a file to the upload queue with the specified scheduling priority
+     * and deadline (milliseconds since the epoch; Long.MAX_VALUE for none).
+     * These only matter if the scheduler considers them (see
+     * DeadlineUploadScheduler).  Returns the task which tracks its upload, or
+     * null if the file is empty or too big to upload.
+     */
+    public UploadTask addFileToUpload(File f, int priority, long deadline) {
+        long len = f.length();
+        if(len <= 0 || len > MAX_FILE_SIZE_ALLOWED_MB*1024*1024)
+            return null;
+
+        UploadTask item = new UploadTask(f.getPath(), f.getName(), len);
+        item.setSchedulingInfo(priority, deadline);
+        fireTaskAdded(item);
+        queue.add(item);
+        fireEngineStateChanged();
+        return item;
+    }
+
+    /**
+     * Adds files (Files) to the upload queue, in order, as one batch: the
+     * queue is updated and idle uploaders are woken once, and listeners hear
+     * about the change in the engine's state once (plus taskAdded() for each
+     * task).  Files which are empty or too big to upload are skipped.
+     * Returns the tasks which track the files' uploads.
+     */
+    public LinkedList addFilesToUpload(Collection files) {
+        return addFilesToUpload(files, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Like addFilesToUpload(Collection), but each file gets the specified
+     * scheduling priority and deadline (see addFileToUpload()).
+     */
+    public LinkedList addFilesToUpload(Collection files, int priority, long deadline) {
+        LinkedList items = new LinkedList();
+        Iterator itr = files.iterator();
+        while(itr.hasNext()) {
+            File f = (File)itr.next();
+            long len = f.length();
+            if(len <= 0 || len > MAX_FILE_SIZE_ALLOWED_MB*1024*1024)
+                continue;
+
+            UploadTask item = new UploadTask(f.getPath(), f.getName(), len);
+            item.setSchedulingInfo(priority, deadline);
+            items.add(item);
+        }
+        if(items.isEmpty())
+            return items;
+
+        itr = items.iterator();
+        while(itr.hasNext())
+            fireTaskAdded((UploadTask)itr.next());
+        queue.addAll(items);
+        fireEngineStateChanged();
+        return items;
+    }
+
+    /**
+     * Puts a file which was in the queue before a restart back in the queue
+     * (see UploadJournal).  If failedBecause is not null, it is restored as a
+     * failed upload which the user may retry.  Returns null if the file is no
+     * longer uploadable (e.g., it was deleted).
+     */
+    UploadTask restoreFileToUpload(File f, int priority, long deadline, String failedBecause) {
+        if(failedBecause == null)
+            return addFileToUpload(f, priority, deadline);
+
+        long len = f.length();
+        if(len <= 0 || len > MAX_FILE_SIZE_ALLOWED_MB*1024*1024)
+            return null;
+
+        UploadTask item = new UploadTask(f.getPath(), f.getName(), len);
+        item.setSchedulingInfo(priority, deadline);
+        fireTaskAdded(item);
+        queue.addFailed(item, failedBecause);
+        fireTaskStateChanged(item);
+        fireEngineStateChanged();
+        return item;
+    }
+
+    /**
+     * Cancels an item, whether it is queued, being uploaded, or has failed.
+     * Returns false if it could not be canceled because it has already been
+     * uploaded (or was already canceled).
+     */
+    public boolean cancel(UploadTask item) {
+        int prevState = queue.cancel(item);
+        if(prevState == UploadTask.STATE_DONE)
+            return false;
+
+        // an upload in progress will be halted (and the stats updated) by its thread
+        fireTaskStateChanged(item);
+        if(prevState != UploadTask.STATE_UPLOADING)
+            fireEngineStateChanged();
+        return true;
+    }
+
+    /**
+     * Put failed items back in the upload queue (at the end of the queue).
+     * Returns the number of items which will be retried.
+     */
+    public int retryFailedItems() {
+        LinkedList retried = queue.retryFailed();
+        Iterator itr = retried.iterator();
+        while(itr.hasNext())
+            fireTaskStateChanged((UploadTask)itr.next());
+        fireEngineStateChanged();
+        return retried.size();
+    }
+
+    /** Forgets about completed items and returns them. */
+    public LinkedList clearCompletedItems() {
+        return queue.clearCompleted();
+    }
+
+    /** sets whether uploads may be done */
+    public void setUploadingEnabled(boolean b) {
+        queue.setUploadingEnabled(b);
+        fireEngineStateChanged();
+    }
+
+    /** returns whether uploads may be done */
+    public boolean isUploadingEnabled() {
+        return queue.isUploadingEnabled();
+    }
+
+    /**
+     * Returns the limiter which caps the combined upload rate of every
+     * uploader.  It is unlimited unless its rate is set.
+     */
+    public TokenBucket getBandwidthLimiter() {
+        return globalBandwidthLimiter;
+    }
+
+    /**
+     * Caps the combined upload rate of every uploader in bytes per second (0
+     * for no limit).  May be changed at any time.
+     */
+    public void setBandwidthLimit(long bytesPerSec) {
+        globalBandwidthLimiter.setRate(bytesPerSec);
+    }
+
+    /**
+     * Limits uploads done with mech by limiter (in addition to the global
+     * limit).  Give several mechanisms the same limiter to cap their combined
+     * rate, e.g., for all mechanisms which upload to the same server.  A null
+     * limiter removes mech's limit.  Takes effect when mech starts its next
+     * upload.
+     */
+    public void setBandwidthLimiter(UploadMechanism mech, TokenBucket limiter) {
+        if(limiter == null)
+            bandwidthLimiters.remove(mech);
+        else
+            bandwidthLimiters.put(mech, limiter);
+    }
+
+    /**
+     * Sets the policy which decides whether and when failed uploads are
+     * retried automatically (the default is BackoffRetryPolicy).  null
+     * disables automatic retries: failed uploads go straight to the failed
+     * list to be retried manually.
+     */
+    public void setRetryPolicy(RetryPolicy p) {
+        retryPolicy = p;
+    }
+
+    /** returns how long an upload may make no progress before it is aborted (ms; 0 => never) */
+    public long getStallTimeout() {
+        return stallTimeout_ms;
+    }
+
+    /**
+     * Sets how long an upload may make no progress (send no data, or get no
+     * response) before it is aborted so that its uploader can move on (5
+     * minutes by default; 0 means never).  The upload fails and is retried
+     * if the retry policy allows it.  This backstops the timeouts of the
+     * upload mechanism itself (e.g., HTTPUploadMechanism.setWriteTimeout());
+     * only mechanisms which extend AbstractUploadMechanism can be aborted.
+     */
+    public void setStallTimeout(long ms) {
+        stallTimeout_ms = ms;
+    }
+
+    /** returns the policy which decides whether failed uploads are retried automatically */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Sets the policy which decides which queued item is uploaded next (the
+     * default is FIFOUploadScheduler).  Items already queued are moved to the
+     * new scheduler.
+     */
+    public void setUploadScheduler(UploadScheduler s) {
+        queue.setScheduler(s);
+    }
+
+    /** returns the policy which decides which queued item is uploaded next */
+    public UploadScheduler getUploadScheduler() {
+        return queue.getScheduler();
+    }
+
+    /**
+     * gets the items which are waiting to be uploaded (or retried) or in the
+     * process of being uploaded
+     */
+    public int getNumItemsLeftToUpload() {
+        return queue.getNumItemsLeftToUpload();
+    }
+
+    /** gets the number of uploads in progress */
+    public int getNumUploadsInProgress() {
+        return queue.getNumUploadsInProgress();
+    }
+
+    /** gets the number of bytes which are waiting to be uploaded or are being uploaded */
+    public long getNumBytesLeftToUpload() {
+        return queue.getNumBytesLeftToUpload();
+    }
+
+    /** gets the number of items which have been uploaded */
+    public int getNumUploaded() {
+        return queue.getNumUploaded();
+    }
+
+    /** gets the number of items which failed (and have not been retried) */
+    public int getNumFailed() {
+        return queue.getNumFailed();
+    }
+
+    /**
+     * gets the recent aggregate upload rate of all uploaders (bytes per
+     * second, averaged over the last several seconds)
+     */
+    public double getUploadRate_Bps() {
+        estimator.sample(System.currentTimeMillis(), queue.getTotalBytesUploaded());
+        return estimator.getRate_Bps();
+    }
+
+    /**
+     * gets the estimated time it takes to upload a file, in addition to the
+     * time spent sending its bytes, e.g., to connect and to wait for the
+     * server to accept it (-1 if no file has been uploaded yet)
+     */
+    public double getPerFileOverhead_ms() {
+        return estimator.getPerFileOverhead_ms();
+    }
+
+    /**
+     * gets the estimated time it will take to upload the items left to upload,
+     * accounting for per-file overhead and the number of uploads done in
+     * parallel (-1 if there isn't enough data to make an estimate yet)
+     */
+    public long getEstimatedTimeLeft_ms() {
+        long est = estimator.estimateTimeLeft_ms(getNumItemsLeftToUpload(), getNumBytesLeftToUpload(), getNumUploaderThreads());
+        if(est < 0) {
+            // no file has been uploaded yet: assume the recent rate will hold
+            double rate_Bps = getUploadRate_Bps();
+            if(rate_Bps > 0)
+                est = (long)(1000 * getNumBytesLeftToUpload() / rate_Bps);
+        }
+        return est;
+    }
+
+    /** adds an object to be notified as tasks progress (see UploadEngineListener) */
+    public void addUploadEngineListener(UploadEngineListener l) {
+        listeners.add(l);
+    }
+
+    /** stops notifying l */
+    public void removeUploadEngineListener(UploadEngineListener l) {
+        listeners.remove(l);
+    }
+
+    private void fireTaskAdded(UploadTask t) {
+        Iterator itr = listeners.iterator();
+        while(itr.hasNext())
+            ((UploadEngineListener)itr.next()).taskAdded(t);
+    }
+
+    private void fireTaskProgressed(UploadTask t) {
+        Iterator itr = listeners.iterator();
+        while(itr.hasNext())
+            ((UploadEngineListener)itr.next()).taskProgressed(t);
+    }
+
+    private void fireTaskStateChanged(UploadTask t) {
+        Iterator itr = listeners.iterator();
+        while(itr.hasNext())
+            ((UploadEngineListener)itr.next()).taskStateChanged(t);
+    }
+
+    private void fireEngineStateChanged() {
+        Iterator itr = listeners.iterator();
+        while(itr.hasNext())
+            ((UploadEngineListener)itr.next()).engineStateChanged();
+    }
+}
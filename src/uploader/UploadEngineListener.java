@@ -0,0 +1,32 @@
+package uploader;
+
+/**
+ * Callbacks which fire as an UploadEngine's tasks progress.  Callbacks may be
+ * issued from any thread (usually an upload thread, NOT the Swing EDT) and
+ * some are issued for every chunk sent, so implementations should return
+ * quickly.  Use SwingUtilities.invokeLater() if you need to run on the EDT.
+ *
+ * @author David Underhill
+ */
+public interface UploadEngineListener {
+    /** Called when a task has been added to the engine. */
+    public void taskAdded(UploadTask t);
+
+    /**
+     * Called when more of a task has been uploaded, its size changed, or it
+     * started finalizing.
+     */
+    public void taskProgressed(UploadTask t);
+
+    /**
+     * Called when a task's state changes (see UploadTask.STATE_*).  Use
+     * t.getErrorText() to find out why a failed task failed.
+     */
+    public void taskStateChanged(UploadTask t);
+
+    /**
+     * Called when something about the engine as a whole has changed (e.g.,
+     * uploading was paused or resumed).
+     */
+    public void engineStateChanged();
+}
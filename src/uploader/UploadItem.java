@@ -8,6 +8,7 @@ import java.awt.Graphics2D;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.text.DecimalFormat;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.Box;
 import javax.swing.BoxLayout;
@@ -21,10 +22,9 @@ import javax.swing.SwingUtilities;
 import uploader.util.Util;
 
 /**
- * The UI for an item being uploaded.  This includes information about the
- * current state of the upload (e.g., number of bytes uploaded).  This object
- * is thread-safe except for methods which explicitly indicate threading
- * restrictions.
+ * The UI for an item being uploaded.  It displays the current state of its
+ * UploadTask (e.g., number of bytes uploaded).  This object is thread-safe
+ * except for methods which explicitly indicate threading restrictions.
  *
  * @author David Underhill
  */
@@ -41,23 +41,22 @@ public class UploadItem extends JPanel {
     private static final ImageIcon ICON_ALERT = Util.createImageIcon("/resources/alert.png");
 
     private final UploadManager uploader;
-    private final String fn;
-    private volatile long szBytes;
-    private volatile long numBytesUploaded = 0;
-    private volatile boolean failed = false;
+    private final UploadTask task;
+
+    /** whether this item's progress changed since the UI last reflected it */
+    private final AtomicBoolean progressDirty = new AtomicBoolean(false);
 
     private final JLabel lblProgress = new JLabel("not yet uploaded", JLabel.RIGHT);
     private final JButton btnRemove;
 
-    public UploadItem(UploadManager uploader, final String filename, final String filetitle, final long sizeInBytes) {
+    public UploadItem(UploadManager uploader, final UploadTask task) {
         this.uploader = uploader;
-        this.fn = filename;
-        this.szBytes = sizeInBytes;
+        this.task = task;
 
         this.setLayout(new BoxLayout(this, BoxLayout.X_AXIS));
         this.setAlignmentX(Component.LEFT_ALIGNMENT);
 
-        JLabel lblSz = new JLabel(SZ_FMT.format(sizeInBytes / 1024.0 / 1024.0) + " MB", JLabel.RIGHT);
+        JLabel lblSz = new JLabel(SZ_FMT.format(task.length() / 1024.0 / 1024.0) + " MB", JLabel.RIGHT);
         Dimension lblSzDim = new Dimension(65, lblSz.getMaximumSize().height);
         Util.setSize(lblSz, lblSzDim);
         add(lblSz);
@@ -65,7 +64,7 @@ public class UploadItem extends JPanel {
 
         // use a text field for filename so that long names can be scrolled to view the full name
         JLabel lblFn = new JLabel();
-        lblFn.setText(filetitle);
+        lblFn.setText(task.getTitle());
         Dimension lblFnDim = new Dimension(390, lblFn.getPreferredSize().height);
         Util.setSize(lblFn, lblFnDim);
         add(lblFn);
@@ -96,40 +95,39 @@ public class UploadItem extends JPanel {
     }
 
     /**
-     * Returns the size of the file.
+     * Returns the task this item displays.
      *
-     * Thread-safe (volatile variable).
+     * Thread-safe (final variable).
      */
-    public long length() {
-        return szBytes;
+    public UploadTask getTask() {
+        return task;
     }
 
     /**
-     * Sets the size of the file (use this if the size has changed).
+     * Returns the size of the file.
      *
-     * Thread-safe (volatile variable and Swing thread-safe method).
+     * Thread-safe (see UploadTask).
      */
-    public void setItemSize(long sizeOfCurrentUpload) {
-        szBytes = sizeOfCurrentUpload;
-        this.repaint(); // thread-safe
+    public long length() {
+        return task.length();
     }
 
     /**
      * Returns the filename of this item.
      *
-     * Thread-safe (final variable).
+     * Thread-safe (see UploadTask).
      */
     public String getFilename() {
-        return fn;
+        return task.getFilename();
     }
 
     /**
      * Returns the percentage of this item which has been uploaded [0.0,1.0].
      *
-     * Thread-safe (volatile variables).
+     * Thread-safe (see UploadTask).
      */
     public double getPercentUploaded() {
-        return numBytesUploaded / (double)szBytes;
+        return task.getPercentUploaded();
     }
 
     /**
@@ -146,7 +144,7 @@ public class UploadItem extends JPanel {
     }
 
     /** Updates the progress text.  MUST be called from the Swing EDT. */
-    private void setProgressTextDirectly(String s, boolean showAlert) {
+    void setProgressTextDirectly(String s, boolean showAlert) {
         assert SwingUtilities.isEventDispatchThread();
         lblProgress.setText(s);
         if(showAlert) {
@@ -164,10 +162,10 @@ public class UploadItem extends JPanel {
     /**
      * Returns true if the item has been completely uploaded.
      *
-     * Thread-safe (volatile variables).
+     * Thread-safe (see UploadTask).
      */
     public boolean isUploaded() {
-        return numBytesUploaded == szBytes;
+        return task.isUploaded();
     }
 
     /**
@@ -205,58 +203,64 @@ public class UploadItem extends JPanel {
     /**
      * Returns the number of bytes uploaded.
      *
-     * Thread-safe (volatile variable).
+     * Thread-safe (see UploadTask).
      */
     public long getNumBytesUploaded() {
-        return numBytesUploaded;
+        return task.getNumBytesUploaded();
     }
 
     /**
-     * Sets the number of bytes of this item which have been uploaded.  When all
-     * bytes have been uploaded, the remove button is replaced with a static
-     * checkmark.  The progress text for this item is appropriately updated.
+     * Marks this item's progress as needing to be refreshed.  Returns false if
+     * it was already marked.
      *
-     * Thread-safe (volatile variable and asynchronously updates UI from Swing EDT).
+     * Thread-safe (atomic variable).
      */
-    public void setNumBytesUploaded(final long n) {
-        numBytesUploaded = n;
-        final UploadItem me = this;
-        SwingUtilities.invokeLater(new Runnable() {
-            public void run() {
-                if(isUploaded()) {
-                    btnRemove.setIcon(ICON_CHECKMARK);
-                    btnRemove.setPressedIcon(ICON_CHECKMARK);
-                    btnRemove.setRolloverIcon(ICON_CHECKMARK);
-                    btnRemove.setToolTipText(null);
-                    setProgressTextDirectly("uploaded!", false);
-                }
-                else {
-                    if(n > 0)
-                        setProgressTextDirectly(SZ_FMT.format(100*getPercentUploaded()) + "% uploaded", false);
-                    else
-                        setProgressTextDirectly("will retry", false);
-                }
-                me.repaint();
-            }
-        });
+    boolean markProgressDirty() {
+        return !progressDirty.get() && progressDirty.compareAndSet(false, true);
+    }
+
+    /** Thread-safe (atomic variable). */
+    void clearProgressDirty() {
+        progressDirty.set(false);
     }
 
     /**
-     * Returns whether this item has failed to upload.
+     * Updates the UI to reflect the latest state of the task.  When all bytes
+     * have been uploaded, the remove button is replaced with a static
+     * checkmark.  Failed items explain why they failed.
      *
-     * Thread-safe (volatile variable).
+     * MUST be called from the Swing EDT.
      */
-    public boolean isFailed() {
-        return failed;
+    void refreshProgress() {
+        assert SwingUtilities.isEventDispatchThread();
+        if(isUploaded()) {
+            btnRemove.setIcon(ICON_CHECKMARK);
+            btnRemove.setPressedIcon(ICON_CHECKMARK);
+            btnRemove.setRolloverIcon(ICON_CHECKMARK);
+            btnRemove.setToolTipText(null);
+            setProgressTextDirectly("uploaded!", false);
+        }
+        else if(isFailed())
+            setProgressTextDirectly(task.getErrorText(), true);
+        else if(task.getState() == UploadTask.STATE_CANCELED)
+            setProgressTextDirectly("canceled by user", true);
+        else if(task.getState() == UploadTask.STATE_WAITING)
+            setProgressTextDirectly("will retry soon", false);
+        else if(task.isFinalizing())
+            setProgressTextDirectly("finalizing ...", false);
+        else if(task.getNumBytesUploaded() > 0)
+            setProgressTextDirectly(SZ_FMT.format(100*getPercentUploaded()) + "% uploaded", false);
+        else if(task.getNumAttempts() > 0)
+            setProgressTextDirectly("will retry", false);
+        repaint();
     }
 
     /**
-     * Sets whether this upload item is in a failed state or not.
+     * Returns whether this item has failed to upload.
      *
-     * Thread-safe (volatile variable and thread-safe Swing method).
+     * Thread-safe (see UploadTask).
      */
-    public void setFailed(boolean b) {
-        this.failed = b;
-        this.repaint(); // thread-safe
+    public boolean isFailed() {
+        return task.isFailed();
     }
 }
@@ -0,0 +1,346 @@
+package uploader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Keeps an append-only journal of an UploadEngine's queue on disk so that
+ * pending and failed uploads survive a crash or restart.  When a journal is
+ * opened, the uploads which had not finished are put back in the engine
+ * (failed uploads are restored as failed, everything else is queued again).
+ *
+ * Engine callbacks only note which tasks changed; a background thread writes
+ * their latest state and syncs the file to disk every FLUSH_INTERVAL_MS, so
+ * upload threads never wait on the disk and progress within a file is never
+ * journaled.  A crash loses at most the last interval's changes.  When most
+ * records in the journal are stale, it is compacted by writing the live
+ * tasks to a new file which then replaces the old one.
+ *
+ * Records are lines of tab-separated UTF-8 text:
+ *   A id priority deadline path   - a task was added
+ *   S id state [errorText]        - a task's state changed (UploadTask.STATE_*)
+ *
+ * Only tasks added after the journal is opened are journaled.
+ *
+ * @author David Underhill
+ */
+public class UploadJournal implements UploadEngineListener {
+    /** how often changes are written and synced to disk */
+    private static final long FLUSH_INTERVAL_MS = 1000;
+
+    /** the journal is compacted when it has this many stale records ... */
+    private static final int COMPACT_MIN_STALE_RECORDS = 1000;
+
+    /** ... and at least this many stale records per live task */
+    private static final int COMPACT_STALE_PER_LIVE = 2;
+
+    private static final String CHARSET = "UTF-8";
+
+    private final File journalFile;
+    private final File compactFile;
+    private final UploadEngine engine;
+
+    /** tasks whose state has changed since the last flush (may have duplicates) */
+    private final ConcurrentLinkedQueue dirty = new ConcurrentLinkedQueue();
+
+    /** writes the journal (daemon thread so it won't keep the JVM alive) */
+    private final Timer timer = new Timer(true);
+
+    // the following are only used while holding this object's monitor (i.e., by flush())
+
+    /** maps each unfinished task to its journal id */
+    private final IdentityHashMap ids = new IdentityHashMap();
+
+    /** maps the journal id of each unfinished task to the task */
+    private final LinkedHashMap live = new LinkedHashMap();
+
+    private long nextId = 0;
+    private int numStaleRecords = 0;
+    private FileOutputStream out;
+    private Writer writer;
+
+    /** a task as read back from the journal */
+    private static class Entry {
+        String path;
+        int priority;
+        long deadline;
+        int state = UploadTask.STATE_QUEUED;
+        String errorText = null;
+    }
+
+    /**
+     * Opens (or creates) a journal for engine.  Unfinished uploads recorded in
+     * the journal are restored to engine (files which no longer exist are
+     * skipped) and new tasks are journaled from here on.
+     *
+     * @throws IOException  if the journal cannot be read or written
+     */
+    public UploadJournal(File journalFile, UploadEngine engine) throws IOException {
+        this.journalFile = journalFile;
+        this.compactFile = new File(journalFile.getPath() + ".compact");
+        this.engine = engine;
+
+        // if we crashed in the middle of compaction, the compacted copy is complete
+        if(!journalFile.exists() && compactFile.exists())
+            compactFile.renameTo(journalFile);
+
+        LinkedHashMap entries = new LinkedHashMap();
+        if(journalFile.exists())
+            read(entries);
+
+        // the restored tasks are journaled as new tasks; the compaction below
+        // then replaces the old journal (which stays intact until then)
+        engine.addUploadEngineListener(this);
+        Iterator itr = entries.values().iterator();
+        while(itr.hasNext()) {
+            Entry e = (Entry)itr.next();
+            String failedBecause = (e.state == UploadTask.STATE_FAILED) ? e.errorText : null;
+            engine.restoreFileToUpload(new File(e.path), e.priority, e.deadline, failedBecause);
+        }
+
+        synchronized(this) {
+            drainDirty(false);
+            compact();
+        }
+
+        timer.schedule(new TimerTask() {
+            public void run() {
+                try {
+                    flush();
+                }
+                catch(IOException e) {
+                    System.err.println("Warning: unable to write upload journal " + UploadJournal.this.journalFile + ": " + e.getMessage());
+                }
+            }
+        }, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS);
+    }
+
+    /** reads the unfinished tasks in the journal into entries (id -> Entry) */
+    private void read(LinkedHashMap entries) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), CHARSET));
+        try {
+            String line;
+            while((line = in.readLine()) != null) {
+                String[] f = line.split("\t", 5);
+                try {
+                    if(f[0].equals("A") && f.length == 5) {
+                        Entry e = new Entry();
+                        e.priority = Integer.parseInt(f[2]);
+                        e.deadline = Long.parseLong(f[3]);
+                        e.path = unescape(f[4]);
+                        entries.put(f[1], e);
+                    }
+                    else if(f[0].equals("S") && f.length >= 3) {
+                        Entry e = (Entry)entries.get(f[1]);
+                        if(e == null)
+                            continue;
+
+                        int state = Integer.parseInt(f[2]);
+                        if(state == UploadTask.STATE_DONE || state == UploadTask.STATE_CANCELED)
+                            entries.remove(f[1]);
+                        else {
+                            e.state = state;
+                            e.errorText = (f.length >= 4) ? unescape(f[3]) : null;
+                        }
+                    }
+                }
+                catch(NumberFormatException ex) {
+                    // a record torn by a crash: ignore it
+                }
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes any pending changes to the journal and syncs it to disk
+     * (compacting it first if it has grown stale).
+     */
+    public synchronized void flush() throws IOException {
+        if(writer == null)
+            return; // closed
+
+        if(!drainDirty(true))
+            return; // nothing changed
+
+        if(numStaleRecords >= COMPACT_MIN_STALE_RECORDS && numStaleRecords >= COMPACT_STALE_PER_LIVE * live.size())
+            compact();
+        else {
+            writer.flush();
+            out.getFD().sync();
+        }
+    }
+
+    /**
+     * Writes the latest state of each dirty task to the journal (if write is
+     * true) and updates our view of which tasks are live.  Returns true if
+     * anything changed.  Must hold this object's monitor.
+     */
+    private boolean drainDirty(boolean write) throws IOException {
+        boolean changed = false;
+        UploadTask t;
+        while((t = (UploadTask)dirty.poll()) != null) {
+            int state = t.getState();
+            if(state == UploadTask.STATE_UPLOADING || state == UploadTask.STATE_WAITING)
+                state = UploadTask.STATE_QUEUED; // all mean it still needs to be uploaded
+
+            Long id = (Long)ids.get(t);
+            boolean isNew = (id == null);
+            if(isNew) {
+                if(state == UploadTask.STATE_DONE || state == UploadTask.STATE_CANCELED)
+                    continue; // finished before we ever wrote it (or we already forgot it)
+
+                id = Long.valueOf(nextId++);
+                ids.put(t, id);
+                live.put(id, t);
+                if(write)
+                    writeAddRecord(id, t);
+            }
+            else
+                numStaleRecords += 1; // this record supersedes an earlier one
+
+            if(state == UploadTask.STATE_DONE || state == UploadTask.STATE_CANCELED) {
+                ids.remove(t);
+                live.remove(id);
+                numStaleRecords += 1; // the add record is stale too
+            }
+
+            // a new queued task is fully described by its add record
+            if(write && !(isNew && state == UploadTask.STATE_QUEUED))
+                writeStateRecord(id, t, state);
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Rewrites the journal so it only contains the live tasks.  The new
+     * journal is written to a separate file which then replaces the old one,
+     * so a crash part way through leaves one complete journal or the other.
+     * Must hold this object's monitor.
+     */
+    private void compact() throws IOException {
+        if(writer != null)
+            writer.close();
+
+        FileOutputStream cout = new FileOutputStream(compactFile);
+        out = cout;
+        writer = new OutputStreamWriter(cout, CHARSET);
+        Iterator itr = live.keySet().iterator();
+        while(itr.hasNext()) {
+            Long id = (Long)itr.next();
+            UploadTask t = (UploadTask)live.get(id);
+            writeAddRecord(id, t);
+            if(t.getState() == UploadTask.STATE_FAILED)
+                writeStateRecord(id, t, UploadTask.STATE_FAILED);
+        }
+        writer.flush();
+        cout.getFD().sync();
+        writer.close();
+
+        // renameTo won't replace an existing file on some platforms
+        if(!compactFile.renameTo(journalFile)) {
+            journalFile.delete();
+            if(!compactFile.renameTo(journalFile))
+                throw new IOException("unable to replace " + journalFile);
+        }
+
+        out = new FileOutputStream(journalFile, true);
+        writer = new OutputStreamWriter(out, CHARSET);
+        numStaleRecords = 0;
+    }
+
+    private void writeAddRecord(Long id, UploadTask t) throws IOException {
+        writer.write("A\t" + id + "\t" + t.getPriority() + "\t" + t.getDeadline() + "\t" + escape(t.getFilename()) + "\n");
+    }
+
+    private void writeStateRecord(Long id, UploadTask t, int state) throws IOException {
+        String why = (state == UploadTask.STATE_FAILED && t.getErrorText() != null) ? "\t" + escape(t.getErrorText()) : "";
+        writer.write("S\t" + id + "\t" + state + why + "\n");
+    }
+
+    /** escapes characters which would break a record (backslash, tab, newlines) */
+    private static String escape(String s) {
+        StringBuffer sb = new StringBuffer(s.length());
+        for(int i=0; i<s.length(); i++) {
+            char c = s.charAt(i);
+            switch(c) {
+                case '\\': sb.append("\\\\"); break;
+                case '\t': sb.append("\\t"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                default:   sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /** reverses escape() */
+    private static String unescape(String s) {
+        StringBuffer sb = new StringBuffer(s.length());
+        for(int i=0; i<s.length(); i++) {
+            char c = s.charAt(i);
+            if(c == '\\' && i+1 < s.length()) {
+                char n = s.charAt(++i);
+                switch(n) {
+                    case 't': sb.append('\t'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    default:  sb.append(n);
+                }
+            }
+            else
+                sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes any pending changes, stops journaling, and closes the journal.
+     * The journal is left on disk so the remaining uploads can be restored
+     * next time.
+     */
+    public synchronized void close() throws IOException {
+        if(writer == null)
+            return;
+
+        engine.removeUploadEngineListener(this);
+        timer.cancel();
+        flush();
+        writer.close();
+        writer = null;
+        out = null;
+    }
+
+    public void taskAdded(UploadTask t) {
+        dirty.offer(t);
+    }
+
+    public void taskProgressed(UploadTask t) {
+        // progress within a file is not journaled (an interrupted upload restarts)
+    }
+
+    public void taskStateChanged(UploadTask t) {
+        int state = t.getState();
+        if(state != UploadTask.STATE_UPLOADING && state != UploadTask.STATE_WAITING)
+            dirty.offer(t);
+    }
+
+    public void engineStateChanged() {
+        // nothing to journal
+    }
+}
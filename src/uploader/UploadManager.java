@@ -1,38 +1,39 @@
 package uploader;
 
-import java.awt.Component;
 import java.awt.Container;
 import java.io.File;
 import java.text.DecimalFormat;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.ListIterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
 
-import uploader.mechanisms.UploadMechanism;
-
 /**
- * An which manages the upload queue and the thread(s) which service that queue.
- * It refreshes the UI as uploads progress and handles requests to upload new
- * items or cancel uploads.
+ * Connects an UploadEngine to its UI.  It creates an UploadItem for each task
+ * in the engine, refreshes the UI as uploads progress, and passes requests to
+ * upload new items or cancel uploads from the UI to the engine.
  *
- * Note: UploadManager updates UploadItem fields.  This is done in a thread-safe
- * manner.  Updates which modify UI components will be run asynchronously on the
- * Swing EDT.
+ * Note: Events from the engine usually arrive on upload threads.  They are
+ * only recorded there; the UI is updated on the Swing EDT.  New tasks' items
+ * are created in batches so that adding many files costs one relayout.
  *
  * @author David Underhill
  */
-public class UploadManager {
+public class UploadManager implements UploadEngineListener {
     private static final DecimalFormat SZ_FMT = new DecimalFormat("0.00");
-    private static final long CHUNK_SIZE = 4096;
 
     /**
-     * Maximum size file which will be accepted.  Note: This can be bypassed if
-     * the file is changed between when we are asked to upload it and the time
-     * the upload actually starts.
+     * Returns the line of a too-big warning which gives the size limit.  May
+     * ONLY be called from the Swing event dispatch thread (SZ_FMT is shared).
      */
-    private static final long MAX_FILE_SIZE_ALLOWED_MB = 16;
+    static String getMaxSizeAllowedText() {
+        return "Max Size Allowed: " + SZ_FMT.format(UploadEngine.MAX_FILE_SIZE_ALLOWED_MB) + "MB\n";
+    }
 
     /** the name of the items in the queue (a generic name might be 'item') */
     private final String itemType;
@@ -40,218 +41,45 @@ public class UploadManager {
     /** UI for this upload manager */
     private final UploaderPanel uploaderUI;
 
-    /** list of items to upload */
-    private final LinkedList uploadQueue = new LinkedList();
-    private final LinkedList failedList = new LinkedList();
-    private final LinkedList completedList = new LinkedList();
-
-    /** whether uploading is enabled */
-    private volatile boolean uploadingEnabled = true;
-
-    /** shared statistics about pending/completed uploads */
-    private volatile int    numItemsUploaded     = 0;
-    private volatile long   numBytesLeftToUpload = 0;
-
-    private final UploaderThread[] uploaderThreads;
-    private final Object lock = new Object(); // could use UploadManager.this, but will use this for clarity instead
-
-    /**
-     * Thread responsible for uploading files (one at a time).  Shares state
-     * in UploadManager with other UploaderThreads (e.g., the queue of pending
-     * uploads).
-     */
-    private class UploaderThread extends Thread {
-        /** the object which will actually uploads each file */
-        private final UploadMechanism uploadMech;
-
-        /** the item currently being uploaded, if any */
-        private volatile UploadItem itemBeingUploaded = null;
-
-        /** per-thread statistic: upload rate */
-        private volatile double recentUploadRate_Bps = 0;
-
-        /** constructs a new thread which will upload items with the specified mechanism */
-        public UploaderThread(UploadMechanism uploadMech) {
-            this.uploadMech = uploadMech;
-        }
-
-        /**
-         * Uploader thread main body.  Whenever uploading is enabled and there
-         * is an item to upload, uploading will take place.  If uploading is
-         * disabled, then the thread will stop uploading ASAP.
-         */
-        public void run() {
-            while(true) {
-                try {
-                    synchronized(lock) {
-                        while(!uploadingEnabled || uploadQueue.size()==0) {
-                            lock.wait(); // wait until we're allowed to upload AND we have something to upload
-                        }
-                    }
-
-                    if(uploadingEnabled) {
-                        prepareNextUpload();
-                        uploadOneItem();
-                    }
-                } catch(InterruptedException e) {
-                    // ignore it
-                }
-            }
-        }
-
-        /**
-         * If no item is being uploaded, then the next item from the upload queue
-         * is moved out of the queue and set to itemBeingUploaded.
-         */
-        private void prepareNextUpload() {
-            synchronized(lock) {
-                if(itemBeingUploaded==null && uploadQueue.size()>0) {
-                    UploadItem item = (UploadItem)uploadQueue.removeFirst();
-                    itemBeingUploaded = item;
-                }
-            }
-        }
+    /** does the actual uploading */
+    private final UploadEngine engine;
 
-        private void uploadOneItem() {
-            UploadItem item;
-            synchronized(lock) {
-                item = itemBeingUploaded;
-            }
-            if(item == null) {
-                // item's upload has been canceled: we never started, so bail now
-                return;
-            }
+    /** coalesces progress updates into at most one UI refresh per frame */
+    private final ProgressRefresher progressRefresher = new ProgressRefresher(this);
 
-            // initialize the upload process
-            long actualSize = uploadMech.startUpload(item.getFilename());
-            if(actualSize < 0) {
-                cancelCurrentUpload(uploadMech.getErrorText());
-                return;
-            }
+    /** tasks whose UI hasn't been created yet */
+    private final ConcurrentLinkedQueue tasksNeedingUI = new ConcurrentLinkedQueue();
 
-            // check the file size just in case it changed since the user added it
-            if(item.length() != actualSize) {
-                long diff = actualSize - item.length();
-                item.setItemSize(actualSize);
-                incrNumBytesLeftToUpload(diff);
-                updateProgressTexts();
-            }
+    /** whether the EDT has been asked to create the UI for tasksNeedingUI */
+    private final AtomicBoolean addItemUIsPending = new AtomicBoolean(false);
 
-            // loop until the upload is canceled or done
-            final long startTime = System.currentTimeMillis();
-            long now;
-            long bytesUploaded = 0;
-            long totalBytesUploaded = 0;
-            while(item!=null) {
-                // If this should be our last chunk, optimistically update the
-                // GUI.  Otherwise, it may look like the upload stalled at X%
-                // (though it hasn't) while we wait for the server's response.
-                if(actualSize-totalBytesUploaded < CHUNK_SIZE) {
-                    final UploadItem tmp = item;
-                    SwingUtilities.invokeLater(new Runnable() {
-                       public void run() {
-                           tmp.setProgressText("finalizing ...", false);
-                           tmp.repaint();
-                       }
-                    });
-                }
-
-                // upload the next chunk of this item
-                bytesUploaded = uploadMech.uploadNextChunk(CHUNK_SIZE);
-                if(bytesUploaded == -1L) {
-                    cancelCurrentUpload(uploadMech.getErrorText());
-                    return;
-                }
-                else {
-                    totalBytesUploaded += bytesUploaded;
-                    item.setNumBytesUploaded(totalBytesUploaded);
-                    incrNumBytesLeftToUpload(-bytesUploaded);
-                    now = System.currentTimeMillis();
-                    // wait until some time has elapsed before computing upload speed
-                    if(now > startTime + 50)
-                        recentUploadRate_Bps = (1000.0*totalBytesUploaded) / (now - startTime);
-                    updateProgressTexts();
-                }
-
-                // check to see if the upload is done
-                if(uploadMech.isUploadComplete()) {
-                    synchronized(lock) {
-                        completedList.add(item);
-                        itemBeingUploaded = null;
-                        numItemsUploaded += 1;
-                    }
-                    item.setNumBytesUploaded(item.length()); // 100% complete
-                    updateProgressTexts();
-                    showComponent(uploaderUI.getUIClear());
-                    return;
-                }
-
-                // Pause the upload if uploading is disabled.  Also, get the latest
-                // value of itemBeingUploaded (it will change to null if the upload
-                // of the current item has been canceled).
-                synchronized(lock) {
-                    while(!uploadingEnabled) {
-                        try { lock.wait(); } catch(InterruptedException e) {}
-                    }
-                    item = itemBeingUploaded;
-                }
-            }
-
-            // When the upload was canceled, the remaining bytes were removed from
-            // counter.  We also counted the last chunk sent before we realized the
-            // item had been cancelled, so go ahead and add those bytes back so we
-            // don't double-count them.
-            if(bytesUploaded > 0)
-                incrNumBytesLeftToUpload(bytesUploaded);
-
-            // the item's upload has been canceled, but we've partially uploaded it
-            uploadMech.cancelUpload();
-        }
-
-        /**
-         * Cancels the current upload, if any.  If why is not null, then the item
-         * is added to the failed list.
-         */
-        private void cancelCurrentUpload(String why) {
-            synchronized(lock) {
-                if(itemBeingUploaded != null) {
-                    if(why != null) {
-                        failedList.add(itemBeingUploaded);
-                        setNumFailures(failedList.size());
-                        itemBeingUploaded.setProgressText(why, true);
-                    }
-                    long bytesLeft = itemBeingUploaded.length() - itemBeingUploaded.getNumBytesUploaded();
-                    incrNumBytesLeftToUpload(-bytesLeft);
-                    itemBeingUploaded.setFailed(true);
-                    itemBeingUploaded = null;
-                    updateProgressTexts();
-                }
-            }
-        }
-    }
+    /** tasks in tasksNeedingUI which were cleared before their UI was made (EDT only) */
+    private final HashSet clearedBeforeUI = new HashSet();
 
     /**
-     * Constructs a new UploadManager which will manage uploads using the
-     * specified upload mechanisms.
+     * Constructs a new UploadManager which will show the progress of the
+     * specified engine in the specified UI.
      *
      * @param uploaderUI   the UI this manager works for
      * @param itemType     text describing what kind of items are being uploaded
-     * @param uploadMechs  how to upload files (one per thread we should use)
+     * @param engine       the engine which does the uploading
      */
-    public UploadManager(final UploaderPanel uploaderUI, String itemType, final UploadMechanism[] uploadMechs) {
+    public UploadManager(final UploaderPanel uploaderUI, String itemType, final UploadEngine engine) {
         assert SwingUtilities.isEventDispatchThread();
         this.uploaderUI = uploaderUI;
         this.itemType = itemType;
-
-        uploaderThreads = new UploaderThread[uploadMechs.length];
-        for(int i=0; i<uploadMechs.length; i++)
-            uploaderThreads[i] = new UploaderThread(uploadMechs[i]);
+        this.engine = engine;
+        engine.addUploadEngineListener(this);
     }
 
-    /** Starts all of the uploader thread(s). */
+    /** Starts the engine's uploader thread(s). */
     public void start() {
-        for(int i=0; i<uploaderThreads.length; i++)
-            uploaderThreads[i].start();
+        engine.start();
+    }
+
+    /** returns the engine which does the uploading */
+    public UploadEngine getUploadEngine() {
+        return engine;
     }
 
     /**
@@ -260,32 +88,61 @@ public class UploadManager {
      * May ONLY be called from the Swing event dispatch thread (may modify pnlUploadItems).
      */
     public void addFileToUpload(File f) {
+        addFileToUpload(f, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Adds an item to the upload queue with the specified scheduling priority
+     * and deadline (see UploadEngine.addFileToUpload()).
+     *
+     * May ONLY be called from the Swing event dispatch thread (may modify pnlUploadItems).
+     */
+    public void addFileToUpload(File f, int priority, long deadline) {
         assert SwingUtilities.isEventDispatchThread();
-        if(f.length() <= 0)
-            return; // can't upload an empty file
-        else if(f.length() > MAX_FILE_SIZE_ALLOWED_MB*1024*1024) {
+        if(f.length() > UploadEngine.MAX_FILE_SIZE_ALLOWED_MB*1024*1024) {
             //+.01=>make sure rounded number is still strictly greater than the threshold
             double sz_MB = f.length()/1024.0/1024.0 + 0.01;
             JOptionPane.showMessageDialog(null,
                     "Warning: skipping " + f.getName() + " because it is too big.\n" +
                     "\n" +
                     "Size of " + f.getName() + ": " + SZ_FMT.format(sz_MB) + "MB\n" +
-                    "Max Size Allowed: " + SZ_FMT.format(MAX_FILE_SIZE_ALLOWED_MB) + "MB\n");
+                    getMaxSizeAllowedText());
             return;
         }
 
-        UploadItem item = new UploadItem(this, f.getPath(), f.getName(), f.length());
-        this.uploaderUI.makeDropTarget(item);
-        Container pnlUploadItems = uploaderUI.getUploadItemsContainer();
-        pnlUploadItems.add(item);
-        pnlUploadItems.validate();
+        // the item's UI is created when the engine tells us about the new task
+        engine.addFileToUpload(f, priority, deadline);
+    }
 
-        synchronized(lock) {
-            uploadQueue.add(item);
-            incrNumBytesLeftToUpload(f.length());
-            updateProgressTexts();
-            lock.notifyAll();
+    /**
+     * Adds files (Files) to the upload queue as one batch (see
+     * UploadEngine.addFilesToUpload()).  Files which are too big are skipped
+     * with one warning for the whole batch.  This checks each file's size, so
+     * use a FileIngester to add files which haven't been looked at yet.
+     *
+     * May ONLY be called from the Swing event dispatch thread (may modify pnlUploadItems).
+     */
+    public void addFilesToUpload(Collection files) {
+        assert SwingUtilities.isEventDispatchThread();
+        LinkedList ok = new LinkedList();
+        int numTooBig = 0;
+        Iterator itr = files.iterator();
+        while(itr.hasNext()) {
+            File f = (File)itr.next();
+            if(f.length() > UploadEngine.MAX_FILE_SIZE_ALLOWED_MB*1024*1024)
+                numTooBig += 1;
+            else
+                ok.add(f);
         }
+        if(numTooBig > 0) {
+            JOptionPane.showMessageDialog(null,
+                    "Warning: skipping " + numTooBig + pl(" file", numTooBig) + " because " + (numTooBig == 1 ? "it is" : "they are") + " too big.\n" +
+                    "\n" +
+                    getMaxSizeAllowedText());
+        }
+
+        // the items' UI is created when the engine tells us about the new tasks
+        engine.addFilesToUpload(ok);
     }
 
     /**
@@ -295,45 +152,12 @@ public class UploadManager {
      */
     public void removeItemToUpload(UploadItem item) {
         assert SwingUtilities.isEventDispatchThread();
-        synchronized(lock) {
-            boolean wasInProgress = false;
-            for(int i=0; i<uploaderThreads.length; i++) {
-                UploaderThread ut = uploaderThreads[i];
-                if(item == ut.itemBeingUploaded) {
-                    ut.cancelCurrentUpload(null); // try to halt the upload in progress
-                    wasInProgress = true;
-                    break;
-                }
-            }
-            if(!wasInProgress) {
-                if(uploadQueue.remove(item)) { // is it in the upload queue? (e..g, hasn't started yet)
-                    incrNumBytesLeftToUpload(-item.length());
-                }
-                else if(failedList.remove(item)) { // is it in the failed queue?
-                    setNumFailures(failedList.size());
-                }
-                else {
-                    // too late: it has already been uploaded
-                    return;
-                }
-                updateProgressTexts();
-            }
-        }
-
-        item.setProgressText("canceled by user", true);
-        Container pnlUploadItems = uploaderUI.getUploadItemsContainer();
-        pnlUploadItems.remove(item);
-        pnlUploadItems.validate();
-        pnlUploadItems.repaint();
+        engine.cancel(item.getTask()); // the item is removed when the engine reports the cancelation
     }
 
     /** sets whether uploads may be done */
     public void setUploadingEnabled(boolean b) {
-        synchronized(lock) {
-            this.uploadingEnabled = b;
-            updateProgressTexts();
-            lock.notifyAll();
-        }
+        engine.setUploadingEnabled(b);
     }
 
     /**
@@ -344,15 +168,16 @@ public class UploadManager {
     public void clearCompletedItems() {
         assert SwingUtilities.isEventDispatchThread();
         Container pnlUploadItems = uploaderUI.getUploadItemsContainer();
-        synchronized(lock) {
-            ListIterator itr = completedList.listIterator();
-            while(itr.hasNext()) {
-                UploadItem item = (UploadItem)itr.next();
+        Iterator itr = engine.clearCompletedItems().iterator();
+        while(itr.hasNext()) {
+            UploadTask t = (UploadTask)itr.next();
+            UploadItem item = (UploadItem)t.getAttachment();
+            if(item != null)
                 pnlUploadItems.remove(item);
-                itr.remove();
-            }
-            uploaderUI.getUIClear().setVisible(false);
+            else
+                clearedBeforeUI.add(t); // finished before addItemUIs() got to it
         }
+        uploaderUI.getUIClear().setVisible(false);
         pnlUploadItems.validate();
         pnlUploadItems.repaint();
     }
@@ -364,49 +189,90 @@ public class UploadManager {
      */
     public void retryFailedItems() {
         assert SwingUtilities.isEventDispatchThread();
-        synchronized(lock) {
-            ListIterator itr = failedList.listIterator();
-            while(itr.hasNext()) {
-                UploadItem item = (UploadItem)itr.next();
-                item.setProgressText("will retry this upload", false);
-                item.setFailed(false);
-                item.setNumBytesUploaded(0);
-                incrNumBytesLeftToUpload(item.length());
-                itr.remove();
-                uploadQueue.add(item);
-            }
-            uploaderUI.getUIRetry().setVisible(false);
-            updateProgressTexts();
-            lock.notifyAll();
-        }
-        Container pnlUploadItems = uploaderUI.getUploadItemsContainer();
-        pnlUploadItems.validate();
-        pnlUploadItems.repaint();
+        engine.retryFailedItems();
+        uploaderUI.getUIRetry().setVisible(false);
     }
 
-    /** gets the number of uploads in progress */
-    private int getNumUploadsInProgress() {
-        synchronized(lock) {
-            int count = 0;
-            for(int i=0; i<uploaderThreads.length; i++)
-                if(uploaderThreads[i].itemBeingUploaded != null)
-                    count += 1;
-            return count;
+    /**
+     * Schedules the creation of the UI for a task the engine has just
+     * accepted; tasks added in quick succession share one relayout.
+     * Thread-safe.
+     */
+    public void taskAdded(UploadTask t) {
+        tasksNeedingUI.offer(t);
+        if(addItemUIsPending.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    addItemUIs();
+                }
+            });
         }
     }
 
-    /** gets the items which are waiting to be uploaded or in the process of being uploaded */
-    private int getNumItemsLeftToUpload() {
-        synchronized(lock) {
-            return this.uploadQueue.size() + getNumUploadsInProgress();
+    /** Creates the UI for each task in tasksNeedingUI.  MUST be called from the Swing EDT. */
+    private void addItemUIs() {
+        // tasks added after this point will schedule another call
+        addItemUIsPending.set(false);
+
+        Container pnlUploadItems = uploaderUI.getUploadItemsContainer();
+        boolean added = false;
+        UploadTask t;
+        while((t = (UploadTask)tasksNeedingUI.poll()) != null) {
+            if(t.getState() == UploadTask.STATE_CANCELED)
+                continue; // canceled before we got a chance to show it
+            if(!clearedBeforeUI.isEmpty() && clearedBeforeUI.remove(t))
+                continue; // uploaded and cleared before we got a chance to show it
+
+            UploadItem item = new UploadItem(this, t);
+            t.setAttachment(item);
+            if(!added)
+                uploaderUI.hideDragNDropTip();
+            this.uploaderUI.makeDropTarget(item);
+            pnlUploadItems.add(item);
+            added = true;
+            if(t.getState() != UploadTask.STATE_QUEUED || t.getNumBytesUploaded() > 0)
+                progressRefresher.itemChanged(item); // it has made progress already
         }
+        if(added)
+            pnlUploadItems.validate(); // once for the whole batch
     }
 
-    /** updates the number of bytes left to upload */
-    private void incrNumBytesLeftToUpload(long n) {
-        synchronized(lock) {
-            numBytesLeftToUpload += n;
+    /** Notes that a task's progress has changed.  Thread-safe. */
+    public void taskProgressed(UploadTask t) {
+        UploadItem item = (UploadItem)t.getAttachment();
+        if(item != null)
+            progressRefresher.itemChanged(item);
+        progressRefresher.statsChanged();
+    }
+
+    /** Notes that a task's state has changed.  Thread-safe. */
+    public void taskStateChanged(final UploadTask t) {
+        if(t.getState() == UploadTask.STATE_CANCELED) {
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    removeItemUI(t);
+                }
+            });
         }
+        taskProgressed(t);
+    }
+
+    /** MUST be called from the Swing EDT. */
+    private void removeItemUI(UploadTask t) {
+        UploadItem item = (UploadItem)t.getAttachment();
+        if(item == null)
+            return;
+
+        item.setProgressTextDirectly("canceled by user", true);
+        Container pnlUploadItems = uploaderUI.getUploadItemsContainer();
+        pnlUploadItems.remove(item);
+        pnlUploadItems.validate();
+        pnlUploadItems.repaint();
+    }
+
+    /** Notes that the overall stats have changed.  Thread-safe. */
+    public void engineStateChanged() {
+        progressRefresher.statsChanged();
     }
 
     /** Simple pluralizer.  Returns s if n is 1 and s+"s" if n!=1. */
@@ -417,26 +283,23 @@ public class UploadManager {
             return s + "s";
     }
 
-    /** updates the progress texts with the latest stats */
-    private void updateProgressTexts() {
-        double totRecentUploadRate_Bps;
-        int itemsLeft;
-        int itemsFailed;
-        long numBytesLeftToUploadCopy;
-        int numItemsUploadedCopy;
-
-        // get a copy of all the info we need up front => minimize the critical section size
-        synchronized(lock) {
-            // compute the average upload rate
-            totRecentUploadRate_Bps = 0;
-            for(int i=0; i<uploaderThreads.length; i++)
-                totRecentUploadRate_Bps += uploaderThreads[i].recentUploadRate_Bps;
-
-            itemsLeft = getNumItemsLeftToUpload();
-            itemsFailed = failedList.size();
-            numBytesLeftToUploadCopy = numBytesLeftToUpload;
-            numItemsUploadedCopy = numItemsUploaded;
-        }
+    /**
+     * Updates the progress texts with the latest stats.
+     *
+     * MUST be called from the Swing EDT.
+     */
+    void refreshProgressTexts() {
+        assert SwingUtilities.isEventDispatchThread();
+
+        // get a copy of all the info we need up front (each value is read
+        // atomically, but they are not a consistent snapshot - close enough
+        // for a progress display and it means upload threads never block here)
+        double totRecentUploadRate_Bps = engine.getUploadRate_Bps();
+        long timeLeft_ms = engine.getEstimatedTimeLeft_ms();
+        int itemsLeft = engine.getNumItemsLeftToUpload();
+        int itemsFailed = engine.getNumFailed();
+        long numBytesLeftToUploadCopy = engine.getNumBytesLeftToUpload();
+        int numItemsUploadedCopy = engine.getNumUploaded();
 
         String pending;
         if(itemsLeft==0)
@@ -446,10 +309,10 @@ public class UploadManager {
             pending = itemsLeft + pl(" "+itemType,itemsLeft) + " left (" + megabytesLeft + " MB).  ";
 
             // append the estimated time remaining (round up to the nearest minute if displaying minutes)
-            if(!uploadingEnabled)
+            if(!engine.isUploadingEnabled())
                 pending += "  Uploading is currently disabled.";
-            else if(itemsLeft>0 && totRecentUploadRate_Bps>0) {
-                int secondsLeft = (int)(numBytesLeftToUploadCopy / totRecentUploadRate_Bps);
+            else if(itemsLeft>0 && timeLeft_ms>=0) {
+                int secondsLeft = (int)(timeLeft_ms / 1000);
                 if(secondsLeft < 60)
                     pending += "Less than 1 minute";
                 else if(secondsLeft < 3600) {
@@ -461,8 +324,11 @@ public class UploadManager {
                     int mins  = ((secondsLeft - (hours*3600))+30) / 60;
                     pending += "About " + hours + pl(" hour",hours) + " and " + mins + pl(" minute",mins);
                 }
-                int kbps = (int)(8 * totRecentUploadRate_Bps / 1000);
-                pending += " remaining at " + kbps + " kb/s";
+                pending += " remaining";
+                if(totRecentUploadRate_Bps > 0) {
+                    int kbps = (int)(8 * totRecentUploadRate_Bps / 1000);
+                    pending += " at " + kbps + " kb/s";
+                }
             }
         }
 
@@ -477,33 +343,9 @@ public class UploadManager {
         if(itemsFailed > 0)
             completed += "  " + itemsFailed + pl(" "+itemType,itemsFailed) + " failed to upload.";
 
-        setProgressTexts(pending, completed);
-    }
-
-    /** Make the requested component visible.  Executes on the Swing EDT. */
-    private void showComponent(final Component c) {
-        SwingUtilities.invokeLater(new Runnable() {
-            public void run() {
-                c.setVisible(true);
-            }
-        });
-    }
-
-    /** sets the number of failures on the uploader UI from the Swing EDT */
-    private void setNumFailures(final int n) {
-        SwingUtilities.invokeLater(new Runnable() {
-            public void run() {
-                uploaderUI.setNumberFailures(n);
-            }
-        });
-    }
-
-    /** sets the progress/completed texts on the uploader UI from the Swing EDT */
-    private void setProgressTexts(final String pending, final String completed) {
-        SwingUtilities.invokeLater(new Runnable() {
-            public void run() {
-                uploaderUI.setProgressTexts(pending, completed);
-            }
-        });
+        uploaderUI.setProgressTexts(pending, completed);
+        uploaderUI.setNumberFailures(itemsFailed);
+        if(numItemsUploadedCopy > 0)
+            uploaderUI.getUIClear().setVisible(true);
     }
 }
@@ -0,0 +1,508 @@
+package uploader;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The queue and state engine behind UploadEngine.  Pending items are kept in
+ * an UploadScheduler (lock-free FIFO by default), failed and completed items
+ * in lock-free queues, and every statistic is an atomic counter, so upload threads never serialize on a shared monitor while
+ * they are transferring data.  The only lock is used to park threads which
+ * have nothing to do (queue empty or uploading paused).  It is a
+ * java.util.concurrent lock rather than a monitor so that virtual threads
+ * parked on it release their carrier thread.
+ *
+ * Each item moves through its states with compare-and-set transitions (see
+ * UploadTask.STATE_*).  Whoever wins a transition is responsible for the
+ * bookkeeping which goes with it.  In particular, once an upload thread has
+ * taken an item (QUEUED to UPLOADING) it owns the byte accounting for that item
+ * until it notices the upload has finished, failed, or been canceled.
+ *
+ * @author David Underhill
+ */
+class UploadQueue {
+    /** items waiting to be uploaded; canceled items are skipped lazily by take() */
+    private volatile UploadScheduler pending = new FIFOUploadScheduler();
+
+    /** held while adding to or replacing the scheduler (never while taking from it) */
+    private final Object schedulerLock = new Object();
+
+    /** source of queue sequence numbers */
+    private final AtomicLong nextQueueSeqNum = new AtomicLong(0);
+    private final ConcurrentLinkedQueue failed = new ConcurrentLinkedQueue();
+    private final ConcurrentLinkedQueue completed = new ConcurrentLinkedQueue();
+
+    /** counters (ConcurrentLinkedQueue.size() is O(n) so we track sizes ourselves) */
+    private final AtomicInteger numPending = new AtomicInteger(0);
+    private final AtomicInteger numInProgress = new AtomicInteger(0);
+    private final AtomicInteger numWaiting = new AtomicInteger(0);
+    private final AtomicInteger numFailed = new AtomicInteger(0);
+    private final AtomicInteger numUploaded = new AtomicInteger(0);
+    private final AtomicLong numBytesLeftToUpload = new AtomicLong(0);
+
+    /** running totals (never decrease) used to measure throughput and error rates */
+    private final AtomicLong totalBytesUploaded = new AtomicLong(0);
+    private final AtomicInteger totalFailures = new AtomicInteger(0);
+
+    /** number of upload threads which have been asked to exit */
+    private final AtomicInteger numRetirementsRequested = new AtomicInteger(0);
+
+    /** whether uploading is enabled */
+    private volatile boolean uploadingEnabled = true;
+
+    /** idle upload threads wait on this until there is work for them */
+    private final ReentrantLock idleLock = new ReentrantLock();
+    private final Condition workAvailable = idleLock.newCondition();
+
+    /** run whenever idle threads are woken (see addWakeListener()) */
+    private final CopyOnWriteArrayList wakeListeners = new CopyOnWriteArrayList();
+
+    /** Adds an item to the end of the queue and wakes an idle upload thread. */
+    public void add(UploadTask item) {
+        item.setState(UploadTask.STATE_QUEUED);
+        numBytesLeftToUpload.addAndGet(item.length());
+        offer(item);
+        numPending.incrementAndGet();
+        wakeIdleThreads();
+    }
+
+    /**
+     * Adds items to the end of the queue (in order) and wakes the idle upload
+     * threads.  The counters are updated and the scheduler is locked once for
+     * the whole batch.
+     */
+    public void addAll(List items) {
+        if(items.isEmpty())
+            return;
+
+        long numBytes = 0;
+        Iterator itr = items.iterator();
+        while(itr.hasNext()) {
+            UploadTask item = (UploadTask)itr.next();
+            item.setState(UploadTask.STATE_QUEUED);
+            numBytes += item.length();
+        }
+        numBytesLeftToUpload.addAndGet(numBytes);
+
+        synchronized(schedulerLock) {
+            itr = items.iterator();
+            while(itr.hasNext()) {
+                UploadTask item = (UploadTask)itr.next();
+                item.setQueueSequenceNumber(nextQueueSeqNum.incrementAndGet());
+                pending.add(item);
+            }
+        }
+        numPending.addAndGet(items.size());
+        wakeIdleThreads();
+    }
+
+    /**
+     * Adds an item directly to the failed list (used to restore an upload
+     * which had failed before a restart).
+     */
+    public void addFailed(UploadTask item, String why) {
+        item.setErrorText(why);
+        item.setState(UploadTask.STATE_FAILED);
+        numFailed.incrementAndGet();
+        failed.offer(item);
+    }
+
+    /**
+     * Gives item to the scheduler.  Callers count it in numPending only
+     * afterward, so a thread which sees numPending > 0 will find the item
+     * (unless another thread takes it first).
+     */
+    private void offer(UploadTask item) {
+        item.setQueueSequenceNumber(nextQueueSeqNum.incrementAndGet());
+        synchronized(schedulerLock) {
+            pending.add(item);
+        }
+    }
+
+    /**
+     * Replaces the scheduler which decides the order items are uploaded in.
+     * Items already queued are moved to the new scheduler.
+     */
+    public void setScheduler(UploadScheduler s) {
+        synchronized(schedulerLock) {
+            UploadScheduler old = pending;
+            pending = s;
+
+            // items only leave the old scheduler from here on, so this drains it
+            UploadTask item;
+            while((item = old.poll()) != null)
+                s.add(item);
+        }
+    }
+
+    /** returns the scheduler which decides the order items are uploaded in */
+    public UploadScheduler getScheduler() {
+        return pending;
+    }
+
+    /**
+     * Blocks until uploading is enabled and an item is available, then moves
+     * that item into the UPLOADING state and returns it.  Returns null if the
+     * calling thread should exit instead (see requestRetirement()).
+     */
+    public UploadTask take() throws InterruptedException {
+        while(true) {
+            awaitWork();
+            if(claimRetirement())
+                return null;
+
+            UploadTask item = pending.poll();
+            if(item == null) {
+                // another thread beat us to it (or the scheduler is being replaced)
+                awaitOtherTaker();
+                continue;
+            }
+
+            if(claim(item))
+                return item;
+            // otherwise it was canceled while queued: drop it
+        }
+    }
+
+    /**
+     * Like take() except it never blocks: returns null if uploading is
+     * disabled or no item is available.  Ignores retirement requests (they
+     * are only for threads which call take()).
+     */
+    public UploadTask poll() {
+        while(uploadingEnabled && numPending.get() > 0) {
+            UploadTask item = pending.poll();
+            if(item == null)
+                return null; // another thread beat us to it: try again when woken
+
+            if(claim(item))
+                return item;
+            // otherwise it was canceled while queued: drop it
+        }
+        return null;
+    }
+
+    /**
+     * Moves item (just removed from the scheduler) into the UPLOADING state.
+     * Returns false if it was canceled while queued.
+     */
+    private boolean claim(UploadTask item) {
+        if(!item.transition(UploadTask.STATE_QUEUED, UploadTask.STATE_UPLOADING))
+            return false;
+
+        numPending.decrementAndGet();
+        numInProgress.incrementAndGet();
+        item.incrNumAttempts();
+        return true;
+    }
+
+    /**
+     * Blocks until uploading is enabled and the queue is non-empty, or until
+     * a thread has been asked to retire.
+     */
+    private void awaitWork() throws InterruptedException {
+        if(numRetirementsRequested.get() > 0 || (uploadingEnabled && numPending.get() > 0))
+            return; // fast path: no need to touch the monitor
+
+        idleLock.lock();
+        try {
+            while(numRetirementsRequested.get() <= 0 && (!uploadingEnabled || numPending.get() <= 0))
+                workAvailable.await();
+        }
+        finally {
+            idleLock.unlock();
+        }
+    }
+
+    /**
+     * Waits (briefly) for another thread which polled the last pending item to
+     * claim it, rather than spinning until numPending reflects that.
+     */
+    private void awaitOtherTaker() throws InterruptedException {
+        idleLock.lock();
+        try {
+            workAvailable.await(1, TimeUnit.MILLISECONDS);
+        }
+        finally {
+            idleLock.unlock();
+        }
+    }
+
+    /**
+     * Asks one upload thread to exit.  An idle thread will exit right away;
+     * otherwise the first thread to finish its current upload will exit.
+     */
+    public void requestRetirement() {
+        numRetirementsRequested.incrementAndGet();
+        wakeIdleThreads();
+    }
+
+    /**
+     * Withdraws an outstanding request for a thread to exit.  Returns false if
+     * there were no outstanding requests.
+     */
+    public boolean cancelRetirement() {
+        return decrementIfPositive(numRetirementsRequested);
+    }
+
+    /** claims an outstanding retirement request for the calling thread */
+    private boolean claimRetirement() {
+        return decrementIfPositive(numRetirementsRequested);
+    }
+
+    /** atomically decrements i if it is positive; returns true if it did so */
+    private static boolean decrementIfPositive(AtomicInteger i) {
+        while(true) {
+            int v = i.get();
+            if(v <= 0)
+                return false;
+            if(i.compareAndSet(v, v - 1))
+                return true;
+        }
+    }
+
+    /** Blocks until uploading is enabled (used to pause uploads mid-transfer). */
+    public void awaitUploadingEnabled() {
+        if(uploadingEnabled)
+            return;
+
+        idleLock.lock();
+        try {
+            while(!uploadingEnabled)
+                workAvailable.awaitUninterruptibly();
+        }
+        finally {
+            idleLock.unlock();
+        }
+    }
+
+    /** sets whether uploads may be done */
+    public void setUploadingEnabled(boolean b) {
+        uploadingEnabled = b;
+        if(b)
+            wakeIdleThreads();
+    }
+
+    /** returns whether uploads may be done */
+    public boolean isUploadingEnabled() {
+        return uploadingEnabled;
+    }
+
+    /**
+     * Runs r whenever there may be new work (an item was queued or uploading
+     * was enabled).  Lets threads which wait for work some other way than in
+     * take() (e.g., in Selector.select()) be woken.  r should be quick.
+     */
+    public void addWakeListener(Runnable r) {
+        wakeListeners.add(r);
+    }
+
+    private void wakeIdleThreads() {
+        idleLock.lock();
+        try {
+            workAvailable.signalAll();
+        }
+        finally {
+            idleLock.unlock();
+        }
+
+        Iterator itr = wakeListeners.iterator();
+        while(itr.hasNext())
+            ((Runnable)itr.next()).run();
+    }
+
+    /**
+     * Called by the upload thread which owns item when its upload succeeds.
+     * Returns false if the item was canceled before it could be marked done.
+     */
+    public boolean markCompleted(UploadTask item) {
+        numInProgress.decrementAndGet();
+        item.setFinalizing(false);
+        item.setNumConsecutiveFailures(0);
+        item.setNumBytesUploaded(item.length()); // 100% complete
+        if(!item.transition(UploadTask.STATE_UPLOADING, UploadTask.STATE_DONE))
+            return false;
+
+        completed.offer(item);
+        numUploaded.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Called by the upload thread which owns item when its upload stops before
+     * completing.  bytesNotSent are removed from the bytes left to upload.  If
+     * why is not null and the item was not canceled, it moves to the failed
+     * list.
+     *
+     * @return true if the item was added to the failed list
+     */
+    public boolean markStopped(UploadTask item, long bytesNotSent, String why) {
+        numBytesLeftToUpload.addAndGet(-bytesNotSent);
+        numInProgress.decrementAndGet();
+        item.setFinalizing(false);
+        if(why == null)
+            return false;
+
+        item.setErrorText(why); // set before the transition so it is visible once the item has failed
+        if(!item.transition(UploadTask.STATE_UPLOADING, UploadTask.STATE_FAILED))
+            return false;
+
+        numFailed.incrementAndGet();
+        totalFailures.incrementAndGet();
+        failed.offer(item);
+        return true;
+    }
+
+    /**
+     * Called by the upload thread which owns item when its upload fails but
+     * will be retried automatically.  The item waits (it is neither pending
+     * nor failed) until requeue() is called.  Its bytes still count as left to
+     * upload.  Returns false if the item was canceled instead.
+     */
+    public boolean markRetrying(UploadTask item, long bytesNotSent, String why) {
+        numInProgress.decrementAndGet();
+        totalFailures.incrementAndGet();
+        item.setErrorText(why);
+        item.setFinalizing(false);
+        long bytesSent = item.length() - bytesNotSent;
+        item.setNumBytesUploaded(0); // it will start over
+        if(!item.transition(UploadTask.STATE_UPLOADING, UploadTask.STATE_WAITING)) {
+            numBytesLeftToUpload.addAndGet(-bytesNotSent);
+            return false;
+        }
+
+        numWaiting.incrementAndGet();
+        numBytesLeftToUpload.addAndGet(bytesSent); // all of it must be sent again
+        return true;
+    }
+
+    /**
+     * Moves an item which was waiting to be retried to the end of the pending
+     * queue.  Returns false if it was canceled while it waited.
+     */
+    public boolean requeue(UploadTask item) {
+        if(!item.transition(UploadTask.STATE_WAITING, UploadTask.STATE_QUEUED))
+            return false;
+
+        numWaiting.decrementAndGet();
+        offer(item);
+        numPending.incrementAndGet();
+        wakeIdleThreads();
+        return true;
+    }
+
+    /**
+     * Cancels item.  Returns the state it was in before it was canceled, or
+     * STATE_DONE if it had already finished uploading (and thus could not be
+     * canceled).  Items in the UPLOADING state are only flagged: the owning
+     * thread notices on its next chunk and does the rest of the bookkeeping.
+     */
+    public int cancel(UploadTask item) {
+        if(item.transition(UploadTask.STATE_QUEUED, UploadTask.STATE_CANCELED)) {
+            numPending.decrementAndGet();
+            numBytesLeftToUpload.addAndGet(-item.length());
+            return UploadTask.STATE_QUEUED;
+        }
+        else if(item.transition(UploadTask.STATE_UPLOADING, UploadTask.STATE_CANCELED)) {
+            return UploadTask.STATE_UPLOADING;
+        }
+        else if(item.transition(UploadTask.STATE_WAITING, UploadTask.STATE_CANCELED)) {
+            numWaiting.decrementAndGet();
+            numBytesLeftToUpload.addAndGet(-item.length());
+            return UploadTask.STATE_WAITING;
+        }
+        else if(item.transition(UploadTask.STATE_FAILED, UploadTask.STATE_CANCELED)) {
+            failed.remove(item);
+            numFailed.decrementAndGet();
+            return UploadTask.STATE_FAILED;
+        }
+        return UploadTask.STATE_DONE;
+    }
+
+    /**
+     * Moves failed items back to the end of the pending queue.  Returns the
+     * items which were moved.
+     */
+    public LinkedList retryFailed() {
+        LinkedList ret = new LinkedList();
+        UploadTask item;
+        while((item = (UploadTask)failed.poll()) != null) {
+            // reset before the transition: once it is queued another thread may take it
+            item.resetProgress();
+            item.setNumConsecutiveFailures(0);
+            if(!item.transition(UploadTask.STATE_FAILED, UploadTask.STATE_QUEUED))
+                continue; // canceled while we were draining the list
+
+            numFailed.decrementAndGet();
+            numBytesLeftToUpload.addAndGet(item.length());
+            offer(item);
+            numPending.incrementAndGet();
+            ret.add(item);
+        }
+        if(ret.size() > 0)
+            wakeIdleThreads();
+        return ret;
+    }
+
+    /** Removes and returns all completed items. */
+    public LinkedList clearCompleted() {
+        LinkedList ret = new LinkedList();
+        Object item;
+        while((item = completed.poll()) != null)
+            ret.add(item);
+        return ret;
+    }
+
+    /** records that n more bytes have been uploaded */
+    public void chunkUploaded(long n) {
+        numBytesLeftToUpload.addAndGet(-n);
+        totalBytesUploaded.addAndGet(n);
+    }
+
+    /** adjusts the number of bytes left to upload by n */
+    public void incrNumBytesLeftToUpload(long n) {
+        numBytesLeftToUpload.addAndGet(n);
+    }
+
+    public long getNumBytesLeftToUpload() {
+        return numBytesLeftToUpload.get();
+    }
+
+    /**
+     * gets the items which are waiting to be uploaded (or retried) or in the
+     * process of being uploaded
+     */
+    public int getNumItemsLeftToUpload() {
+        return numPending.get() + numInProgress.get() + numWaiting.get();
+    }
+
+    public int getNumUploadsInProgress() {
+        return numInProgress.get();
+    }
+
+    public int getNumFailed() {
+        return numFailed.get();
+    }
+
+    public int getNumUploaded() {
+        return numUploaded.get();
+    }
+
+    /** returns the number of bytes sent since this queue was created */
+    public long getTotalBytesUploaded() {
+        return totalBytesUploaded.get();
+    }
+
+    /** returns the number of failed uploads since this queue was created (retries included) */
+    public int getTotalFailures() {
+        return totalFailures.get();
+    }
+}
@@ -0,0 +1,21 @@
+package uploader;
+
+/**
+ * Decides the order in which queued items are uploaded.  UploadEngine adds
+ * each item to its scheduler when the item is queued and asks the scheduler
+ * for the next item whenever an uploader is free.
+ *
+ * Implementations must be thread-safe: add() and poll() may be called
+ * concurrently from several threads.  poll() may return items which have been
+ * canceled since they were added; UploadEngine discards those itself, so
+ * schedulers do not need to support removal.
+ *
+ * @author David Underhill
+ */
+public interface UploadScheduler {
+    /** adds an item which is waiting to be uploaded */
+    public void add(UploadTask item);
+
+    /** removes and returns the next item to upload, or null if there is none */
+    public UploadTask poll();
+}
@@ -0,0 +1,313 @@
+package uploader;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The state of one file which has been given to an UploadEngine: its size,
+ * how much of it has been uploaded, where it is in the upload process, and why
+ * it failed (if it did).  This object is UI-free and thread-safe.
+ *
+ * A UI can associate its own object (e.g., an UploadItem) with each task via
+ * setAttachment().
+ *
+ * @author David Underhill
+ */
+public class UploadTask {
+    /** upload states (see UploadQueue for who may make which transitions) */
+    public static final int STATE_QUEUED    = 0;
+    public static final int STATE_UPLOADING = 1;
+    public static final int STATE_DONE      = 2;
+    public static final int STATE_FAILED    = 3;
+    public static final int STATE_CANCELED  = 4;
+    public static final int STATE_WAITING   = 5; // failed; waiting to be retried automatically
+
+    private final String fn;
+    private final String title;
+    private volatile long szBytes;
+    private volatile long numBytesUploaded = 0;
+    private volatile boolean finalizing = false;
+    private volatile String errorText = null;
+    private volatile boolean errorPermanent = false;
+    private volatile int numAttempts = 0;
+    private volatile int numConsecutiveFailures = 0;
+    private final AtomicInteger state = new AtomicInteger(STATE_QUEUED);
+
+    /** scheduling information (see UploadScheduler) */
+    private volatile int priority = 0;
+    private volatile long deadline = Long.MAX_VALUE;
+    private volatile long queueSeqNum = 0;
+
+    /** an arbitrary object associated with this task (e.g., its UI) */
+    private volatile Object attachment = null;
+
+    /**
+     * Constructs a task for uploading a file.
+     *
+     * @param filename     the path to the file
+     * @param title        a name for the file suitable for display
+     * @param sizeInBytes  the expected size of the file
+     */
+    public UploadTask(String filename, String title, long sizeInBytes) {
+        this.fn = filename;
+        this.title = title;
+        this.szBytes = sizeInBytes;
+    }
+
+    /**
+     * Returns the filename of this task.
+     *
+     * Thread-safe (final variable).
+     */
+    public String getFilename() {
+        return fn;
+    }
+
+    /**
+     * Returns the display name of this task.
+     *
+     * Thread-safe (final variable).
+     */
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * Returns the size of the file.
+     *
+     * Thread-safe (volatile variable).
+     */
+    public long length() {
+        return szBytes;
+    }
+
+    /**
+     * Sets the size of the file (use this if the size has changed).
+     *
+     * Thread-safe (volatile variable).
+     */
+    void setLength(long sizeOfCurrentUpload) {
+        szBytes = sizeOfCurrentUpload;
+    }
+
+    /**
+     * Returns the number of bytes uploaded.
+     *
+     * Thread-safe (volatile variable).
+     */
+    public long getNumBytesUploaded() {
+        return numBytesUploaded;
+    }
+
+    /** Thread-safe (volatile variable). */
+    void setNumBytesUploaded(long n) {
+        numBytesUploaded = n;
+    }
+
+    /**
+     * Returns the percentage of this task which has been uploaded [0.0,1.0].
+     *
+     * Thread-safe (volatile variables).
+     */
+    public double getPercentUploaded() {
+        return numBytesUploaded / (double)szBytes;
+    }
+
+    /**
+     * Returns true if the file has been completely uploaded.
+     *
+     * Thread-safe (atomic variable).
+     */
+    public boolean isUploaded() {
+        return state.get() == STATE_DONE;
+    }
+
+    /**
+     * Returns whether this task's last upload attempt failed (and it has not
+     * been retried since).
+     *
+     * Thread-safe (atomic variable).
+     */
+    public boolean isFailed() {
+        return state.get() == STATE_FAILED;
+    }
+
+    /**
+     * Returns true if the last of the file has been sent and the upload is
+     * waiting to be confirmed.
+     *
+     * Thread-safe (volatile variable).
+     */
+    public boolean isFinalizing() {
+        return finalizing;
+    }
+
+    /** Thread-safe (volatile variable). */
+    void setFinalizing(boolean b) {
+        finalizing = b;
+    }
+
+    /**
+     * Returns why the most recent upload attempt failed (null if it did not).
+     *
+     * Thread-safe (volatile variable).
+     */
+    public String getErrorText() {
+        return errorText;
+    }
+
+    /** Thread-safe (volatile variable). */
+    void setErrorText(String why) {
+        errorText = why;
+    }
+
+    /**
+     * Returns true if the most recent upload attempt failed in a way which
+     * retrying would not fix (e.g., the server rejected the file).
+     *
+     * Thread-safe (volatile variable).
+     */
+    public boolean isErrorPermanent() {
+        return errorText != null && errorPermanent;
+    }
+
+    /** Thread-safe (volatile variable). */
+    void setErrorPermanent(boolean b) {
+        errorPermanent = b;
+    }
+
+    /**
+     * Returns the number of times an upload of this task has been started.
+     *
+     * Thread-safe (volatile variable).
+     */
+    public int getNumAttempts() {
+        return numAttempts;
+    }
+
+    /** Only called by the thread which just moved this task to STATE_UPLOADING. */
+    void incrNumAttempts() {
+        numAttempts += 1;
+    }
+
+    /**
+     * Returns the number of times in a row this task's upload has failed (it
+     * is reset when an upload succeeds or the user retries the task).
+     *
+     * Thread-safe (volatile variable).
+     */
+    public int getNumConsecutiveFailures() {
+        return numConsecutiveFailures;
+    }
+
+    /** Only called by the thread which owns this task. */
+    void setNumConsecutiveFailures(int n) {
+        numConsecutiveFailures = n;
+    }
+
+    /**
+     * Clears the progress of a previous attempt.  Only called when this task
+     * is not being uploaded.
+     */
+    void resetProgress() {
+        numBytesUploaded = 0;
+        finalizing = false;
+        errorText = null;
+        errorPermanent = false;
+    }
+
+    /**
+     * Returns the scheduling priority of this task (higher goes first with
+     * schedulers which consider priority).
+     *
+     * Thread-safe (volatile variable).
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Returns the time (in milliseconds since the epoch) by which this task
+     * should be uploaded, or Long.MAX_VALUE if it has no deadline.
+     *
+     * Thread-safe (volatile variable).
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Sets the scheduling priority and deadline.  Must not be called while the
+     * task is queued (schedulers assume these do not change).
+     *
+     * Thread-safe (volatile variables).
+     */
+    void setSchedulingInfo(int priority, long deadline) {
+        this.priority = priority;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Returns a number which increases each time a task is queued (tasks
+     * queued earlier have smaller numbers).  Useful for breaking ties.
+     *
+     * Thread-safe (volatile variable).
+     */
+    public long getQueueSequenceNumber() {
+        return queueSeqNum;
+    }
+
+    /** Thread-safe (volatile variable). */
+    void setQueueSequenceNumber(long n) {
+        queueSeqNum = n;
+    }
+
+    /**
+     * Returns the upload state of this task (one of the STATE_* constants).
+     *
+     * Thread-safe (atomic variable).
+     */
+    public int getState() {
+        return state.get();
+    }
+
+    /**
+     * Unconditionally sets the upload state of this task.
+     *
+     * Thread-safe (atomic variable).
+     */
+    void setState(int s) {
+        state.set(s);
+    }
+
+    /**
+     * Atomically moves this task from state from to state to.  Returns false
+     * (and leaves the state unchanged) if the task was not in state from.
+     *
+     * Thread-safe (atomic variable).
+     */
+    boolean transition(int from, int to) {
+        return state.compareAndSet(from, to);
+    }
+
+    /**
+     * Returns the object associated with this task (null if none).
+     *
+     * Thread-safe (volatile variable).
+     */
+    public Object getAttachment() {
+        return attachment;
+    }
+
+    /**
+     * Associates an arbitrary object with this task.
+     *
+     * Thread-safe (volatile variable).
+     */
+    public void setAttachment(Object o) {
+        attachment = o;
+    }
+
+    public String toString() {
+        return fn;
+    }
+}
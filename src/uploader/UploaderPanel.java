@@ -9,6 +9,8 @@ import java.awt.Font;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
 
 import javax.swing.BorderFactory;
 import javax.swing.Box;
@@ -17,15 +19,18 @@ import javax.swing.ImageIcon;
 import javax.swing.JButton;
 import javax.swing.JFileChooser;
 import javax.swing.JLabel;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.SwingConstants;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.UIManager;
 import javax.swing.border.EmptyBorder;
 import javax.swing.filechooser.FileFilter;
 
 import uploader.mechanisms.UploadMechanism;
+import uploader.mechanisms.UploadMechanismFactory;
 import uploader.util.FileDrop;
 import uploader.util.ImagePreviewAccessory;
 import uploader.util.Util;
@@ -42,6 +47,9 @@ public class UploaderPanel extends JPanel {
     /** size of the margins around the edge of the GUI and between some components */
     private static final int MARGIN_SIZE = 5;
 
+    /** how often the progress of looking for files to upload is refreshed */
+    private static final int INGEST_REFRESH_MS = 200;
+
     /** default font */
     private static final Font DEFAULT_FONT      = new Font("SansSerif", Font.PLAIN, 12);
     private static final Font DEFAULT_FONT_BOLD = new Font("SansSerif", Font.BOLD,  12);
@@ -90,6 +98,17 @@ public class UploaderPanel extends JPanel {
     private final FileDrop dropHandler;
     private JLabel lblDragNDropTip;
 
+    /** shows the progress of looking for files to upload (hidden when not looking) */
+    private final JPanel pnlIngest = new JPanel();
+    private final JLabel txtIngest = new JLabel();
+    private final JButton btnCancelIngest = new JButton("Stop looking");
+
+    /** FileIngesters which are still looking for files (only used on the EDT) */
+    private final ArrayList ingesters = new ArrayList();
+
+    /** refreshes txtIngest while ingesters are running */
+    private final Timer ingestTimer;
+
     public UploaderPanel(int width, UploadMechanism[] uploadMechs) {
         this(width, uploadMechs, "item", null, true);
     }
@@ -100,6 +119,34 @@ public class UploaderPanel extends JPanel {
         this(width, uploadMechs, itemType, filter, true);
     }
     public UploaderPanel(int width, UploadMechanism[] uploadMechs, String itemType, FileFilter filter, boolean useImagePreviewAccessory) {
+        this(width, new UploadEngine(uploadMechs), itemType, filter, useImagePreviewAccessory);
+    }
+
+    /**
+     * Creates an uploader which gets its upload mechanisms from a factory and
+     * adjusts how many uploads it does in parallel (between minThreads and
+     * maxThreads) based on the observed throughput and error rate.
+     */
+    public UploaderPanel(int width, UploadMechanismFactory uploadMechFactory, int minThreads, int maxThreads,
+                         String itemType, FileFilter filter, boolean useImagePreviewAccessory) {
+        this(width, new UploadEngine(uploadMechFactory, minThreads, maxThreads), itemType, filter, useImagePreviewAccessory);
+    }
+
+    /**
+     * Like the previous constructor, but each in-flight upload runs as a task
+     * on the specified executor (e.g., a virtual thread per task executor) rather
+     * than on its own platform thread.  See UploadEngine for requirements.
+     */
+    public UploaderPanel(int width, UploadMechanismFactory uploadMechFactory, int minThreads, int maxThreads,
+                         Executor executor, String itemType, FileFilter filter, boolean useImagePreviewAccessory) {
+        this(width, new UploadEngine(uploadMechFactory, minThreads, maxThreads, executor), itemType, filter, useImagePreviewAccessory);
+    }
+
+    /**
+     * Creates a UI for an existing engine.  The engine is started when the
+     * panel is created.
+     */
+    public UploaderPanel(int width, UploadEngine engine, String itemType, FileFilter filter, boolean useImagePreviewAccessory) {
         FC = new JFileChooser();
         FC.setAcceptAllFileFilterUsed(false);
         FC.setMultiSelectionEnabled(true);
@@ -112,6 +159,7 @@ public class UploaderPanel extends JPanel {
         this.setBackground(BG_COLOR);
 
         add(create_commands_panel());
+        add(create_ingest_panel());
         add(Box.createRigidArea(new Dimension(0, 5)));
         final JScrollPane uploadPane = create_upload_list();
         add(uploadPane);
@@ -128,9 +176,7 @@ public class UploaderPanel extends JPanel {
                     BorderFactory.createMatteBorder(2, 2, 2, 2, Color.RED),
                     new FileDrop.Listener() {
                         public void filesDropped(File[] files) {
-                            for(int i=0; i<files.length; i++) {
-                                addFileIfOK(files[i]);
-                            }
+                            ingest(files);
                         }
                     });
         }
@@ -140,22 +186,88 @@ public class UploaderPanel extends JPanel {
             lblDragNDropTip = null;
         }
 
-        uploader = new UploadManager(this, itemType, uploadMechs);
+        ingestTimer = new Timer(INGEST_REFRESH_MS, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                refreshIngestProgress();
+            }
+        });
+
+        uploader = new UploadManager(this, itemType, engine);
         uploader.start();
     }
 
-    /** asks the uploader to upload a file if it meets the FileFilter */
-    private void addFileIfOK(File f) {
-        if(!f.isDirectory() && (fileFilter==null || fileFilter.accept(f))) {
-            // hide the help drag 'n drop tip after a file is added
-            if(lblDragNDropTip != null) {
-                pnlUploadList.remove(lblDragNDropTip);
-                lblDragNDropTip = null;
-                pnlUploadList.setLayout(new BoxLayout(pnlUploadList, BoxLayout.Y_AXIS));
-                pnlUploadList.repaint();
-            }
+    /**
+     * Uploads the files which meet the FileFilter from files and the folders
+     * in files (recursively).  The file system is searched in the background.
+     *
+     * MUST be called from the Swing EDT.
+     */
+    private void ingest(File[] files) {
+        assert SwingUtilities.isEventDispatchThread();
+        FileIngester ingester = new FileIngester(uploader.getUploadEngine(), fileFilter, files,
+            new FileIngester.Listener() {
+                public void ingestionFinished(final FileIngester ingester) {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        public void run() {
+                            ingestionFinished(ingester);
+                        }
+                    });
+                }
+            });
+        ingesters.add(ingester);
+        ingester.start();
+        if(!ingestTimer.isRunning())
+            ingestTimer.start();
+    }
 
-            uploader.addFileToUpload(f);
+    /** MUST be called from the Swing EDT. */
+    private void ingestionFinished(FileIngester ingester) {
+        ingesters.remove(ingester);
+        refreshIngestProgress();
+
+        int n = ingester.getNumFilesTooBig();
+        if(n > 0 && !ingester.isCanceled()) {
+            JOptionPane.showMessageDialog(null,
+                    "Warning: skipped " + n + (n == 1 ? " file" : " files") + " because " + (n == 1 ? "it is" : "they are") + " too big.\n" +
+                    "\n" +
+                    UploadManager.getMaxSizeAllowedText());
+        }
+    }
+
+    /**
+     * Shows how many files have been found by the ingesters which are still
+     * looking (or hides the progress if none are).  MUST be called from the
+     * Swing EDT.
+     */
+    private void refreshIngestProgress() {
+        if(ingesters.isEmpty()) {
+            ingestTimer.stop();
+            pnlIngest.setVisible(false);
+            return;
+        }
+
+        int files = 0, folders = 0;
+        for(int i=0; i<ingesters.size(); i++) {
+            FileIngester ingester = (FileIngester)ingesters.get(i);
+            files += ingester.getNumFilesAdded();
+            folders += ingester.getNumFoldersScanned();
+        }
+        txtIngest.setText("Looking for files to upload: " + files + (files == 1 ? " file" : " files")
+                          + " found in " + folders + (folders == 1 ? " folder" : " folders") + " so far ...");
+        pnlIngest.setVisible(true);
+    }
+
+    /**
+     * Hides the drag 'n drop tip (once something has been added to the list).
+     *
+     * MUST be called from the Swing EDT.
+     */
+    void hideDragNDropTip() {
+        if(lblDragNDropTip != null) {
+            pnlUploadList.remove(lblDragNDropTip);
+            lblDragNDropTip = null;
+            pnlUploadList.setLayout(new BoxLayout(pnlUploadList, BoxLayout.Y_AXIS));
+            pnlUploadList.repaint();
         }
     }
 
@@ -174,12 +286,8 @@ public class UploaderPanel extends JPanel {
                 FC.setDialogTitle("Choose image files to upload");
                 FC.setAccessory(previewAccessory);
                 int ret = FC.showDialog(btnAddImages, "Upload");
-                if(ret == JFileChooser.APPROVE_OPTION) {
-                    File[] files = FC.getSelectedFiles();
-                    for(int i=0; i<files.length; i++) {
-                        addFileIfOK(files[i]);
-                    }
-                }
+                if(ret == JFileChooser.APPROVE_OPTION)
+                    ingest(FC.getSelectedFiles());
             }
         });
 
@@ -194,15 +302,8 @@ public class UploaderPanel extends JPanel {
                 FC.setDialogTitle("Choose folders to upload images from");
                 FC.setAccessory(null);
                 int ret = FC.showDialog(btnAddImages, "Upload");
-                if(ret == JFileChooser.APPROVE_OPTION) {
-                    File[] dirs = FC.getSelectedFiles();
-                    for(int i=0; i<dirs.length; i++) {
-                        File[] files = dirs[i].listFiles();
-                        for(int j=0; j<files.length; j++) {
-                            addFileIfOK(files[j]);
-                        }
-                    }
-                }
+                if(ret == JFileChooser.APPROVE_OPTION)
+                    ingest(FC.getSelectedFiles()); // the folders and their subfolders
             }
         });
 
@@ -234,6 +335,25 @@ public class UploaderPanel extends JPanel {
         return pnlCmds;
     }
 
+    private JPanel create_ingest_panel() {
+        pnlIngest.setOpaque(false);
+        pnlIngest.setAlignmentX(Component.LEFT_ALIGNMENT);
+        pnlIngest.setLayout(new BoxLayout(pnlIngest, BoxLayout.X_AXIS));
+        pnlIngest.add(txtIngest);
+        pnlIngest.add(Box.createHorizontalGlue());
+        pnlIngest.add(btnCancelIngest);
+        pnlIngest.setBorder(new EmptyBorder(MARGIN_SIZE, 0, 0, 0));
+        pnlIngest.setVisible(false);
+
+        btnCancelIngest.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                for(int i=0; i<ingesters.size(); i++)
+                    ((FileIngester)ingesters.get(i)).cancel();
+            }
+        });
+        return pnlIngest;
+    }
+
     private JScrollPane create_upload_list() {
         pnlUploadList.setLayout(new BorderLayout());
         pnlUploadList.setBackground(BG_COLOR);
@@ -320,6 +440,11 @@ public class UploaderPanel extends JPanel {
         return pnlFB;
     }
 
+    /** returns the manager which handles the upload queue for this UI */
+    public UploadManager getUploadManager() {
+        return uploader;
+    }
+
     /** returns the component which can clear completed items */
     public Component getUIClear() {
         return btnClearCompleted;
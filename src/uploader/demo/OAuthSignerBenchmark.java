@@ -0,0 +1,135 @@
+package uploader.demo;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import uploader.mechanisms.OAuthSigner;
+import uploader.util.Util;
+
+/**
+ * Measures how much it costs to sign an upload's OAuth Authorization header
+ * two ways:
+ *
+ *   1. from scratch: a new key and Mac, and the whole signature base string
+ *      and header re-encoded and concatenated for each upload
+ *   2. with an OAuthSigner, which prepares everything it can once
+ *
+ * It first checks that both produce the same header.
+ *
+ * Usage: OAuthSignerBenchmark [numSignatures] [numThreads]
+ *
+ * @author David Underhill
+ */
+public class OAuthSignerBenchmark {
+    private static final String HOST = "upload.smugmug.com";
+    private static final String METHOD = "POST";
+    private static final String URL = "http://" + HOST + "/photos/xmlrawadd.mg";
+    private static final String REALM = "http://" + HOST + "/";
+
+    // made-up credentials (nothing is sent anywhere)
+    private static final String API_KEY = "6p2Ii3oKHd2AtBu1DkQbGbmBQN4Ub6jN";
+    private static final String CONSUMER_SECRET = "d5cbe13a8a6e6fde4f06b4dbcfa46e3f";
+    private static final String ACCESS_TOKEN = "0ea9d6a5f4bbbf6d3e2e95d2c2c3d4d1";
+    private static final String ACCESS_TOKEN_SECRET = "1f54a1bdaa5c9c9ac6d70a9c1b9cfb5d6fd2b1e1c5bd5b4c7e9a4bd0a9a5e1f3";
+
+    public static void main(String[] args) throws Exception {
+        final int n = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+        final int numThreads = (args.length > 1) ? Integer.parseInt(args[1]) : 1;
+        final OAuthSigner signer = new OAuthSigner(API_KEY, CONSUMER_SECRET, ACCESS_TOKEN, ACCESS_TOKEN_SECRET,
+                                                   METHOD, URL, REALM);
+
+        // make sure the signer gets the same answer
+        int[] nonces = new int[] {0, 1, -1, 123456789, Integer.MIN_VALUE, Integer.MAX_VALUE};
+        for(int i=0; i<nonces.length; i++) {
+            long timestamp = 1276000000L + i;
+            StringBuffer sb = new StringBuffer();
+            signer.appendHeader(sb, nonces[i], timestamp);
+            String expected = signFromScratch(nonces[i], timestamp);
+            if(!expected.equals(sb.toString())) {
+                System.err.println("mismatch:\n  " + expected + "  " + sb);
+                System.exit(1);
+            }
+        }
+
+        // warm up (class loading, JIT) so it doesn't count against the first run
+        run(signer, n / 10, numThreads, true);
+        run(signer, n / 10, numThreads, false);
+
+        System.out.println(n + " signatures on " + numThreads + " thread(s):");
+        double scratch = report("from scratch", run(signer, n, numThreads, true), n);
+        double reused = report("OAuthSigner", run(signer, n, numThreads, false), n);
+        System.out.println();
+        System.out.println("speedup: " + Math.round(scratch / reused * 10) / 10.0 + "x");
+        System.exit(0);
+    }
+
+    /**
+     * Makes n signatures (split across numThreads threads) and returns how
+     * long it took (ns).
+     */
+    private static long run(final OAuthSigner signer, int n, int numThreads,
+                            final boolean fromScratch) throws InterruptedException {
+        Thread[] threads = new Thread[numThreads];
+        final int perThread = n / numThreads;
+        long start = System.nanoTime();
+        for(int t=0; t<numThreads; t++) {
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    StringBuffer sb = new StringBuffer(512);
+                    long timestamp = System.currentTimeMillis() / 1000;
+                    try {
+                        for(int i=0; i<perThread; i++) {
+                            if(fromScratch)
+                                signFromScratch(i, timestamp);
+                            else {
+                                sb.setLength(0);
+                                signer.appendHeader(sb, i, timestamp);
+                            }
+                        }
+                    }
+                    catch(Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for(int t=0; t<numThreads; t++)
+            threads[t].join();
+        return System.nanoTime() - start;
+    }
+
+    private static double report(String what, long ns, int n) {
+        double perSignature = ns / 1000.0 / n;
+        System.out.println("  " + what + ": " + Math.round(perSignature * 100) / 100.0 + " us/signature");
+        return perSignature;
+    }
+
+    /** signs a request without reusing anything from previous requests */
+    private static String signFromScratch(int nonce, long timestamp) throws Exception {
+        String key = CONSUMER_SECRET + "&" + ACCESS_TOKEN_SECRET;
+        String baseURL = Util.urlencode(URL);
+        String quoted_params = Util.urlencode("oauth_consumer_key=" + API_KEY + "&" +
+                                              "oauth_nonce=" + nonce + "&" +
+                                              "oauth_signature_method=HMAC-SHA1&" +
+                                              "oauth_timestamp=" + timestamp + "&" +
+                                              "oauth_token=" + ACCESS_TOKEN + "&" +
+                                              "oauth_version=1.0");
+        String text = METHOD + "&" + baseURL + "&" + quoted_params;
+
+        SecretKeySpec sks = new SecretKeySpec(key.getBytes(), "HmacSHA1");
+        Mac mac = Mac.getInstance("HmacSHA1");
+        mac.init(sks);
+        String base64sig = new String(Util.base64bytes( mac.doFinal(text.getBytes()) ));
+        String sig = Util.urlencode(base64sig);
+
+        return "Authorization: OAuth realm=\"" + REALM + "\", " +
+               "oauth_consumer_key=\""     + API_KEY      + "\", " +
+               "oauth_token=\""            + ACCESS_TOKEN + "\", " +
+               "oauth_signature_method=\"" + "HMAC-SHA1"  + "\", " +
+               "oauth_signature=\""        + sig          + "\", " +
+               "oauth_timestamp=\""        + timestamp    + "\", " +
+               "oauth_nonce=\""            + nonce        + "\", " +
+               "oauth_version=\"1.0\"\r\n";
+    }
+}
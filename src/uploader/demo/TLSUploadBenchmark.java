@@ -0,0 +1,232 @@
+package uploader.demo;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyStore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+import uploader.mechanisms.HTTPConnectionPool;
+import uploader.mechanisms.HTTPUploadMechanism;
+
+/**
+ * Measures how much the TLS handshake costs per uploaded file by uploading
+ * the same small file to a local HTTPS server three ways:
+ *
+ *   1. a new connection and a full handshake for each file
+ *   2. a new connection for each file which resumes a cached TLS session
+ *   3. one pooled keep-alive connection for all of the files
+ *
+ * Usage: TLSUploadBenchmark keystore password [numFiles] [fileSizeKB]
+ *
+ * The keystore holds the server's key and certificate (the client trusts
+ * it); one can be made with:
+ *   keytool -genkeypair -alias bench -keyalg RSA -dname CN=localhost -keystore bench.p12 -storepass secret
+ *
+ * @author David Underhill
+ */
+public class TLSUploadBenchmark {
+    /** handshakes completed by the server */
+    private static final AtomicInteger numHandshakes = new AtomicInteger(0);
+
+    /** connections accepted by the server */
+    private static final AtomicInteger numConnections = new AtomicInteger(0);
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 2) {
+            System.err.println("usage: TLSUploadBenchmark keystore password [numFiles] [fileSizeKB]");
+            System.exit(1);
+        }
+        int numFiles = (args.length > 2) ? Integer.parseInt(args[2]) : 200;
+        int fileSizeKB = (args.length > 3) ? Integer.parseInt(args[3]) : 16;
+
+        KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
+        FileInputStream ksIn = new FileInputStream(args[0]);
+        ks.load(ksIn, args[1].toCharArray());
+        ksIn.close();
+
+        int port = startServer(ks, args[1].toCharArray());
+        File f = makeFile(fileSizeKB * 1024);
+
+        // warm up (class loading, JIT) so it doesn't count against the first run
+        run(ks, port, f, Math.min(numFiles, 20), true, false);
+
+        System.out.println(numFiles + " uploads of " + fileSizeKB + "KB each:");
+        double full = report("new connection, full handshake", run(ks, port, f, numFiles, true, false), numFiles);
+        double resumed = report("new connection, resumed session", run(ks, port, f, numFiles, false, false), numFiles);
+        double pooled = report("pooled connection", run(ks, port, f, numFiles, false, true), numFiles);
+
+        System.out.println();
+        System.out.println("full handshake cost:    " + fmt(full - pooled) + " ms/file");
+        System.out.println("resumed handshake cost: " + fmt(resumed - pooled) + " ms/file");
+        f.delete();
+        System.exit(0);
+    }
+
+    /**
+     * Uploads f numFiles times and returns how long it took (ms).  If
+     * freshContext, then each upload uses a new SSLContext (so no session can
+     * be resumed).  If pooled, then connections are kept alive and reused.
+     */
+    private static long run(KeyStore ks, int port, File f, int numFiles,
+                            boolean freshContext, boolean pooled) throws Exception {
+        HTTPUploadMechanism mech = new HTTPUploadMechanism("localhost", port, "POST", "/upload", "");
+        mech.setConnectionPool(pooled ? new HTTPConnectionPool(1, 60000) : null);
+        SSLSocketFactory shared = clientFactory(ks);
+
+        numHandshakes.set(0);
+        numConnections.set(0);
+        long start = System.currentTimeMillis();
+        for(int i=0; i<numFiles; i++) {
+            mech.setSSLSocketFactory(freshContext ? clientFactory(ks) : shared);
+            if(mech.startUpload(f.getPath()) < 0)
+                throw new IOException("upload failed: " + mech.getErrorText());
+            while(!mech.isUploadComplete()) {
+                if(mech.uploadNextChunk(64 * 1024) < 0)
+                    throw new IOException("upload failed: " + mech.getErrorText());
+            }
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    private static double report(String what, long ms, int numFiles) {
+        double perFile = ms / (double)numFiles;
+        System.out.println("  " + what + ": " + fmt(perFile) + " ms/file (" + numConnections.get()
+                           + " connections, " + numHandshakes.get() + " handshakes)");
+        return perFile;
+    }
+
+    private static String fmt(double d) {
+        return String.valueOf(Math.round(d * 100) / 100.0);
+    }
+
+    /** returns a new client SSLSocketFactory (with its own session cache) which trusts ks */
+    private static SSLSocketFactory clientFactory(KeyStore ks) throws Exception {
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(ks);
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(null, tmf.getTrustManagers(), null);
+        return ctx.getSocketFactory();
+    }
+
+    /** creates a temporary file with sz bytes */
+    private static File makeFile(int sz) throws IOException {
+        File f = File.createTempFile("tlsbench", ".dat");
+        f.deleteOnExit();
+        OutputStream out = new FileOutputStream(f);
+        byte[] buf = new byte[sz];
+        for(int i=0; i<sz; i++)
+            buf[i] = (byte)i;
+        out.write(buf);
+        out.close();
+        return f;
+    }
+
+    /** starts an HTTPS server on an ephemeral port and returns the port */
+    private static int startServer(KeyStore ks, char[] password) throws Exception {
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, password);
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(kmf.getKeyManagers(), null, null);
+        final SSLServerSocket server = (SSLServerSocket)ctx.getServerSocketFactory().createServerSocket(0);
+
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                while(true) {
+                    try {
+                        final SSLSocket s = (SSLSocket)server.accept();
+                        numConnections.incrementAndGet();
+                        s.setTcpNoDelay(true);
+                        s.addHandshakeCompletedListener(new HandshakeCompletedListener() {
+                            public void handshakeCompleted(HandshakeCompletedEvent e) {
+                                numHandshakes.incrementAndGet();
+                            }
+                        });
+                        Thread t = new Thread(new Runnable() {
+                            public void run() {
+                                serve(s);
+                            }
+                        });
+                        t.setDaemon(true);
+                        t.start();
+                    }
+                    catch(IOException e) {
+                        return;
+                    }
+                }
+            }
+        }, "TLSBenchmarkServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server.getLocalPort();
+    }
+
+    /** answers requests on s with "200 OK" until the client closes it */
+    private static void serve(SSLSocket s) {
+        try {
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            OutputStream out = s.getOutputStream();
+            while(true) {
+                // read the headers
+                long len = 0;
+                boolean close = false;
+                String line;
+                while((line = readLine(in)) != null && line.length() > 0) {
+                    String lower = line.toLowerCase();
+                    if(lower.startsWith("content-length:"))
+                        len = Long.parseLong(line.substring(15).trim());
+                    else if(lower.startsWith("connection:") && lower.indexOf("close") >= 0)
+                        close = true;
+                }
+                if(line == null)
+                    break; // the client closed the connection
+
+                // discard the body
+                while(len > 0) {
+                    long n = in.skip(len);
+                    if(n <= 0 && in.read() < 0)
+                        throw new IOException("request truncated");
+                    len -= Math.max(n, 1);
+                }
+
+                out.write(("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n"
+                           + (close ? "Connection: close\r\n" : "") + "\r\nok").getBytes());
+                out.flush();
+                if(close)
+                    break;
+            }
+        }
+        catch(IOException e) {
+            // the client went away
+        }
+        finally {
+            try { s.close(); } catch(IOException e) {}
+        }
+    }
+
+    /** reads a line terminated by CRLF; returns null at EOF */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuffer sb = new StringBuffer();
+        int c;
+        while((c = in.read()) != '\n') {
+            if(c < 0)
+                return null;
+            if(c != '\r')
+                sb.append((char)c);
+        }
+        return sb.toString();
+    }
+}
@@ -1,8 +1,13 @@
 package uploader.mechanisms;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
 
 import uploader.mechanisms.event.UploadFileGetter;
 import uploader.mechanisms.event.UploadFileGetter.InputStreamAndSizePair;
@@ -14,38 +19,100 @@ import uploader.mechanisms.event.UploadFileGetter.InputStreamAndSizePair;
  * halted before it completes.  finalizeUpload() should also be overridden if
  * your mechanism needs to do anything after you've uploaded the last of the
  * file (e.g., upload a trailer or check the server's response).
+ * Mechanisms which can send data straight from a file without copying it
+ * through a buffer (e.g., with FileChannel.transferTo()) may also override
+ * canTransferFromFile() and tryToTransferNextChunk().  Mechanisms which can
+ * start sending a stream before its length is known (e.g., one which is being
+ * encoded on the fly) may override canUploadUnknownLength(); for other
+ * mechanisms such streams are read into memory first.  Mechanisms which block
+ * on I/O should override interruptIO() so that a stuck upload can be aborted
+ * from another thread (see abortUpload()).  Mechanisms which read the data
+ * more than once (e.g., to hash it for a header) should set a PayloadCache so
+ * that the file getter runs and the data is hashed once per file, even across
+ * retries (see getPayload()).
  *
  * @author David Underhill
  */
 public abstract class AbstractUploadMechanism implements UploadMechanism {
     private BufferedInputStream currentUploadFile = null;
     private File currentUploadFileObj = null;
+
+    /** channel for the data to upload if it comes straight from a file (else null) */
+    private FileChannel currentUploadChannel = null;
     private long sz = 0;
     private long offset = 0;
+
+    /** whether sz is exact (else it is an estimate until the stream ends) */
+    private boolean lengthKnown = true;
     private String err = null;
+    private boolean errPermanent = false;
+
+    /** whether the current upload was halted by cancelUpload() */
+    private boolean canceled = false;
+
+    /** why another thread aborted the current upload (null if it hasn't) */
+    private volatile String abortReason = null;
 
     /** object which handles getting the file */
     private UploadFileGetter fileGetter = new UploadFileGetter();
 
-    /** buffer to store file data */
-    private final byte[] buffer;
+    /** caches the data to upload (null => the file getter runs for every upload) */
+    private PayloadCache payloadCache = null;
+
+    /** the current upload's data if it came from payloadCache (else null) */
+    private PayloadCache.Payload currentPayload = null;
+
+    /** buffer to store file data (grows to fit the largest chunk requested) */
+    private byte[] buffer;
 
     /** constructs an AbstractUploadMechanism with an internal buffer of 4096B */
     public AbstractUploadMechanism() {
         this(4096);
     }
 
-    /** constructs an AbstractUploadMechanism with an internal buffer of buf_sz bytes */
+    /**
+     * constructs an AbstractUploadMechanism with an internal buffer of buf_sz
+     * bytes (it grows if larger chunks are requested)
+     */
     public AbstractUploadMechanism(int buf_sz) {
         this.buffer = new byte[buf_sz];
     }
 
     public final void cancelUpload() {
+        canceled = true;
+        File f = currentUploadFileObj;
         haltWithError("canceled");
+
+        // it won't be retried
+        if(f != null && payloadCache != null)
+            payloadCache.remove(f, fileGetter);
     }
 
-    /** closes the current file (currentUploadFile MUST NOT be null) */
+    /**
+     * Returns true if the current (or last) upload was halted by
+     * cancelUpload() rather than by an error.
+     */
+    protected boolean isCanceled() {
+        return canceled;
+    }
+
+    /**
+     * Aborts the current upload from another thread, e.g., because a watchdog
+     * noticed it has stopped making progress.  Any blocking I/O is interrupted
+     * (see interruptIO()) so the uploading thread's current call fails, and
+     * the upload's error text is why.  Does nothing if the upload isn't
+     * blocked in interruptible I/O.  Thread-safe.
+     */
+    public void abortUpload(String why) {
+        abortReason = why;
+        interruptIO();
+    }
+
+    /** closes the current file (if any) */
     private void closeFile() {
+        if(this.currentUploadFile == null)
+            return;
+
         try {
             this.currentUploadFile.close();
         }
@@ -58,17 +125,49 @@ public abstract class AbstractUploadMechanism implements UploadMechanism {
         return err;
     }
 
+    /**
+     * Returns true if the most recent error is permanent, i.e., retrying the
+     * upload would fail the same way (e.g., the file is missing or the server
+     * rejected the request).  Other errors may be transient.
+     */
+    public boolean isErrorPermanent() {
+        return err != null && errPermanent;
+    }
+
+    /**
+     * Halts the current upload because of an error which retrying will not
+     * fix (see isErrorPermanent()).
+     */
+    protected void haltWithPermanentError(String err) {
+        haltWithError(err);
+        errPermanent = true;
+    }
+
+    /** Halts the current upload because of an error which may be transient. */
     protected void haltWithError(String err) {
-        this.err = err;
+        // an abort shows up as an I/O error, but the reason is more helpful
+        String why = abortReason;
+        this.err = (why != null) ? why : err;
+        this.errPermanent = false;
         offset = -1;
         closeFile();
         uploadCanceled();
         currentUploadFile = null;
         currentUploadFileObj = null;
+        currentUploadChannel = null;
+        releasePayload(); // it stays cached for a retry
+    }
+
+    /** tells the payload cache we're done reading the current payload (if any) */
+    private void releasePayload() {
+        PayloadCache.Payload p = currentPayload;
+        currentPayload = null;
+        if(p != null)
+            p.release();
     }
 
     public final boolean isUploadComplete() {
-        return sz == offset;
+        return lengthKnown && sz == offset;
     }
 
     /**
@@ -77,30 +176,66 @@ public abstract class AbstractUploadMechanism implements UploadMechanism {
      * error message to null, the offset to 0, and getFile() will now return
      * the file representing fn.  Calls tryToStartUpload() and returns its result.
      *
-     * @return -1 on error; otherwise it returns the size of the file
+     * @return -1 on error; otherwise it returns the size of the file (an
+     *         estimate if its length will not be known until it is all read)
      */
     public final long startUpload(String fn) {
         if(currentUploadFile != null) {
-            haltWithError("an upload is already in progress");
+            haltWithPermanentError("an upload is already in progress");
             return -1;
         }
 
         File f = new File(fn);
         if(!f.exists()) {
-            haltWithError("does not exist: " + fn);
+            haltWithPermanentError("does not exist: " + fn);
             return -1;
         }
         else if(!f.isFile()) {
-            haltWithError("not a file: " + fn);
+            haltWithPermanentError("not a file: " + fn);
             return -1;
         }
         currentUploadFileObj = f;
+        abortReason = null;
+        canceled = false;
 
         // open the file
         try {
-            InputStreamAndSizePair ret = fileGetter.getInputStream(f);
-            currentUploadFile = new BufferedInputStream(ret.input);
-            sz = ret.length;
+            InputStream input;
+            PayloadCache cache = payloadCache;
+            if(cache != null) {
+                // the getter's output (transformed and hashed once, even across retries)
+                currentPayload = cache.get(f, fileGetter);
+                input = currentPayload.openStream();
+                sz = currentPayload.length();
+                lengthKnown = true;
+            }
+            else {
+                InputStreamAndSizePair ret = fileGetter.getInputStream(f);
+                input = ret.input;
+                if(ret.length != UploadFileGetter.UNKNOWN_LENGTH) {
+                    sz = ret.length;
+                    lengthKnown = true;
+                }
+                else if(canUploadUnknownLength()) {
+                    sz = ret.estimatedLength;
+                    lengthKnown = false;
+                }
+                else {
+                    // we have to read all of it to learn its length
+                    byte[] bytes = readFully(input);
+                    input = new ByteArrayInputStream(bytes);
+                    sz = bytes.length;
+                    lengthKnown = true;
+                }
+            }
+            currentUploadFile = new BufferedInputStream(input);
+
+            // the data can be sent straight from the file unless the file
+            // getter transformed it (e.g., resized an image) and it's in memory
+            if(input instanceof FileInputStream)
+                currentUploadChannel = ((FileInputStream)input).getChannel();
+            else
+                currentUploadChannel = null;
         } catch(IOException e) {
             haltWithError(e.getMessage());
             return -1;
@@ -108,6 +243,7 @@ public abstract class AbstractUploadMechanism implements UploadMechanism {
 
         offset = 0;
         err = null;
+        errPermanent = false;
 
         if(!tryToStartUpload(f)) {
             if(err==null)
@@ -120,14 +256,29 @@ public abstract class AbstractUploadMechanism implements UploadMechanism {
     public final long uploadNextChunk(long numBytesToUpload) {
         if(currentUploadFile == null) {
             err = "no upload is in progress";
+            errPermanent = false;
             return -1;
         }
 
-        long max = sz - offset;
+        long max = lengthKnown ? sz - offset : numBytesToUpload;
         long maxBytesWeCanUpload = Math.min(max, numBytesToUpload);
 
-        int actualBytes = 0;
-        if(maxBytesWeCanUpload > 0) {
+        long actualBytes = 0;
+        if(maxBytesWeCanUpload > 0 && currentUploadChannel != null && canTransferFromFile()) {
+            // send the bytes straight from the file
+            actualBytes = tryToTransferNextChunk(currentUploadChannel, offset, maxBytesWeCanUpload);
+            if(actualBytes < 0) {
+                // set a generic error message if tryToTransferNextChunk() didn't
+                if(err == null)
+                    haltWithError("upload failed");
+                return -1;
+            }
+            offset += actualBytes;
+        }
+        else if(maxBytesWeCanUpload > 0) {
+            if(maxBytesWeCanUpload > buffer.length)
+                buffer = new byte[(int)maxBytesWeCanUpload];
+
             // read in the max number of bytes we can
             try {
                 actualBytes = currentUploadFile.read(buffer, 0, (int)maxBytesWeCanUpload);
@@ -135,19 +286,26 @@ public abstract class AbstractUploadMechanism implements UploadMechanism {
                 haltWithError(e.getMessage());
                 return -1;
             }
-            if(actualBytes < 0) {
+            if(actualBytes < 0 && !lengthKnown) {
+                // the end of the stream: now we know how long it was
+                sz = offset;
+                lengthKnown = true;
+                actualBytes = 0;
+            }
+            else if(actualBytes < 0) {
                 haltWithError("unexpected end of file");
                 return -1;
             }
-
-            // send the bytes
-            if(!tryToUploadNextChunk(buffer, actualBytes)) {
-                // set a generic error message if tryToUploadNextChunk() didn't
-                if(err == null)
-                    haltWithError("upload failed");
-                return -1;
+            else {
+                // send the bytes
+                if(!tryToUploadNextChunk(buffer, (int)actualBytes)) {
+                    // set a generic error message if tryToUploadNextChunk() didn't
+                    if(err == null)
+                        haltWithError("upload failed");
+                    return -1;
+                }
+                offset += actualBytes;
             }
-            offset += actualBytes;
         }
 
         if(this.isUploadComplete()) {
@@ -157,9 +315,15 @@ public abstract class AbstractUploadMechanism implements UploadMechanism {
                 return -1;
             }
 
+            // it's uploaded: the cached data won't be needed again
+            if(currentPayload != null && payloadCache != null)
+                payloadCache.remove(currentUploadFileObj, fileGetter);
+
             closeFile();
             currentUploadFile = null;
             currentUploadFileObj = null;
+            currentUploadChannel = null;
+            releasePayload();
             err = null;
         }
         return actualBytes;
@@ -178,11 +342,38 @@ public abstract class AbstractUploadMechanism implements UploadMechanism {
         return currentUploadFileObj;
     }
 
-    /** returns the size of the file being uploaded (0 if none) */
+    /**
+     * returns the size of the file being uploaded (0 if none); it is only an
+     * estimate if isLengthKnown() returns false
+     */
     protected long getFileSize() {
         return sz;
     }
 
+    /**
+     * Returns false if the length of the data being uploaded will not be
+     * known until all of it has been read (only possible if
+     * canUploadUnknownLength() returns true).
+     */
+    protected boolean isLengthKnown() {
+        return lengthKnown;
+    }
+
+    /** reads the rest of in into an array and closes it */
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while((n = in.read(buf)) >= 0)
+                out.write(buf, 0, n);
+            return out.toByteArray();
+        }
+        finally {
+            in.close();
+        }
+    }
+
     /**
      * Returns the object used to get the file for upload.
      */
@@ -199,6 +390,28 @@ public abstract class AbstractUploadMechanism implements UploadMechanism {
         this.fileGetter = fileGetter;
     }
 
+    /** Returns the cache of data to upload (null if there is none). */
+    public PayloadCache getPayloadCache() {
+        return payloadCache;
+    }
+
+    /**
+     * Sets the cache which keeps the file getter's output (and its MD5) for
+     * each file until it has been uploaded, so that a retry does not run the
+     * getter again (null for none, the default).  Mechanisms may share a cache.
+     */
+    public void setPayloadCache(PayloadCache payloadCache) {
+        this.payloadCache = payloadCache;
+    }
+
+    /**
+     * Returns the data being uploaded (e.g., to get its MD5) if it came from
+     * the payload cache, else null.
+     */
+    protected PayloadCache.Payload getPayload() {
+        return currentPayload;
+    }
+
     /**
      * Called by startUpload().  Will not be called if an upload is not in
      * progress.  The callee should call haltWithError() if returning an error
@@ -220,6 +433,40 @@ public abstract class AbstractUploadMechanism implements UploadMechanism {
      */
     protected abstract boolean tryToUploadNextChunk(byte[] buf, int len);
 
+    /**
+     * Returns true if this mechanism can send data straight from the file
+     * with tryToTransferNextChunk() (instead of tryToUploadNextChunk()).  Only
+     * asked while an upload is in progress, and the answer must not change
+     * until that upload ends.  Returns false by default.
+     */
+    protected boolean canTransferFromFile() {
+        return false;
+    }
+
+    /**
+     * Called by uploadNextChunk() instead of tryToUploadNextChunk() when the
+     * data to upload comes straight from a file and canTransferFromFile()
+     * returns true.  Sends up to count bytes starting at position in file.
+     * The callee should call haltWithError() if returning an error code
+     * (otherwise a generic error message will be set).
+     *
+     * @return the number of bytes sent (at least 1), or -1 on error
+     */
+    protected long tryToTransferNextChunk(FileChannel file, long position, long count) {
+        return -1;
+    }
+
+    /**
+     * Returns true if this mechanism can start uploading data whose length is
+     * not known yet (see isLengthKnown()); tryToStartUpload() is then called
+     * before the length is known and the data is passed to
+     * tryToUploadNextChunk() as it is read.  If false (the default), such
+     * data is read into memory before the upload starts.
+     */
+    protected boolean canUploadUnknownLength() {
+        return false;
+    }
+
     /**
      * Called when all bytes have been successfully sent.
      * @return true if the upload has succeeded
@@ -228,4 +475,11 @@ public abstract class AbstractUploadMechanism implements UploadMechanism {
 
     /** Called when an upload is halted or canceled. */
     protected void uploadCanceled() {}
+
+    /**
+     * Called by abortUpload() on another thread to unblock the uploading
+     * thread, e.g., by closing the connection it is blocked on.  Must be
+     * thread-safe.  Does nothing by default.
+     */
+    protected void interruptIO() {}
 }
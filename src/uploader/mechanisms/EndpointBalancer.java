@@ -0,0 +1,263 @@
+package uploader.mechanisms;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Spreads uploads across several servers (endpoints) which all accept the
+ * same uploads.  One balancer is shared by every mechanism uploading to the
+ * group (see LoadBalancedHTTPUploadMechanism) so that it sees all of the load.
+ *
+ * Each upload goes to the endpoint picked by the balancer's policy:
+ *
+ *   LEAST_OUTSTANDING_BYTES  the endpoint with the fewest bytes in flight
+ *   LATENCY_WEIGHTED_RANDOM  a random endpoint, weighted by how quickly it
+ *                            has been completing uploads (a moving average)
+ *
+ * An endpoint which fails maxFailures uploads in a row (it is unreachable,
+ * times out, or returns a server error) is ejected: no uploads are sent to it
+ * for a while.  When that time is up, one upload probes it.  If the probe
+ * succeeds, the endpoint is back in rotation; if not, it is ejected for twice
+ * as long as before (up to MAX_EJECT_TIME_MS).  If every endpoint is ejected,
+ * uploads go to the one due back soonest rather than not at all.
+ *
+ * Thread-safe.
+ *
+ * @author David Underhill
+ */
+public class EndpointBalancer {
+    /** policies for picking an endpoint */
+    public static final int LEAST_OUTSTANDING_BYTES = 0;
+    public static final int LATENCY_WEIGHTED_RANDOM = 1;
+
+    /** how an upload to an endpoint turned out (see release()) */
+    public static final int SUCCEEDED = 0;
+    public static final int FAILED = 1;
+    public static final int ABANDONED = 2; // e.g., canceled: says nothing about the endpoint
+
+    /** the longest an endpoint is ejected for */
+    public static final long MAX_EJECT_TIME_MS = 5 * 60 * 1000;
+
+    /** how much weight the latest sample gets in an endpoint's average latency */
+    private static final double LATENCY_SMOOTHING = 0.3;
+
+    /** a server which uploads can be sent to, and what we know about it */
+    public static class Endpoint {
+        private final String host;
+        private final int port;
+
+        // the rest is guarded by the balancer
+        private long outstandingBytes = 0;
+        private double latency_ms = -1; // -1 until an upload to it succeeds
+        private int consecutiveFailures = 0;
+        private long ejectedUntil = 0;  // 0 if it isn't ejected
+        private long ejectTime_ms = 0;  // how long it was last ejected for
+        private boolean probing = false;
+
+        private Endpoint(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    private final int policy;
+    private final ArrayList endpoints = new ArrayList();
+    private final Random random = new Random();
+    private int maxFailures = 3;
+    private long ejectTime_ms = 10 * 1000;
+
+    /**
+     * Creates a balancer with no endpoints (add them with addEndpoint()).
+     *
+     * @param policy  LEAST_OUTSTANDING_BYTES or LATENCY_WEIGHTED_RANDOM
+     */
+    public EndpointBalancer(int policy) {
+        if(policy != LEAST_OUTSTANDING_BYTES && policy != LATENCY_WEIGHTED_RANDOM)
+            throw new IllegalArgumentException("unknown policy: " + policy);
+        this.policy = policy;
+    }
+
+    /** adds a server which uploads may be sent to */
+    public synchronized Endpoint addEndpoint(String host, int port) {
+        Endpoint e = new Endpoint(host, port);
+        endpoints.add(e);
+        return e;
+    }
+
+    /** returns the endpoints (in the order they were added) */
+    public synchronized Endpoint[] getEndpoints() {
+        return (Endpoint[])endpoints.toArray(new Endpoint[endpoints.size()]);
+    }
+
+    /**
+     * Sets how many uploads in a row an endpoint may fail before it is
+     * ejected (3 by default).
+     */
+    public synchronized void setMaxFailures(int n) {
+        maxFailures = Math.max(1, n);
+    }
+
+    /**
+     * Sets how long an endpoint is ejected for the first time it is ejected
+     * (10 seconds by default); it doubles each time a probe fails.
+     */
+    public synchronized void setEjectTime(long ms) {
+        ejectTime_ms = ms;
+    }
+
+    /** returns the number of bytes being uploaded to e */
+    public synchronized long getOutstandingBytes(Endpoint e) {
+        return e.outstandingBytes;
+    }
+
+    /** returns the moving average of how long uploads to e take (-1 if none has succeeded yet) */
+    public synchronized double getLatency_ms(Endpoint e) {
+        return e.latency_ms;
+    }
+
+    /** returns true if uploads are not being sent to e because it keeps failing */
+    public synchronized boolean isEjected(Endpoint e) {
+        return e.ejectedUntil != 0;
+    }
+
+    /**
+     * Picks the endpoint to send an upload of numBytes bytes to.  Call
+     * release() when the upload ends.
+     *
+     * @throws IllegalStateException  if there are no endpoints
+     */
+    public synchronized Endpoint acquire(long numBytes) {
+        if(endpoints.isEmpty())
+            throw new IllegalStateException("no endpoints");
+
+        long now = System.currentTimeMillis();
+        Endpoint chosen = null;
+
+        // an ejected endpoint whose time is up gets one upload as a probe
+        for(int i=0; i<endpoints.size() && chosen==null; i++) {
+            Endpoint e = (Endpoint)endpoints.get(i);
+            if(e.ejectedUntil != 0 && e.ejectedUntil <= now && !e.probing) {
+                e.probing = true;
+                chosen = e;
+            }
+        }
+
+        if(chosen == null) {
+            if(policy == LEAST_OUTSTANDING_BYTES)
+                chosen = pickLeastOutstanding();
+            else
+                chosen = pickWeightedRandom();
+        }
+
+        if(chosen == null) {
+            // everything is ejected: use whichever is due back soonest
+            for(int i=0; i<endpoints.size(); i++) {
+                Endpoint e = (Endpoint)endpoints.get(i);
+                if(chosen == null || e.ejectedUntil < chosen.ejectedUntil)
+                    chosen = e;
+            }
+        }
+
+        chosen.outstandingBytes += numBytes;
+        return chosen;
+    }
+
+    /** returns the endpoint in rotation with the fewest bytes in flight (null if none is in rotation) */
+    private Endpoint pickLeastOutstanding() {
+        // start at a random endpoint so ties don't all go to the first one
+        Endpoint best = null;
+        int start = random.nextInt(endpoints.size());
+        for(int i=0; i<endpoints.size(); i++) {
+            Endpoint e = (Endpoint)endpoints.get((start + i) % endpoints.size());
+            if(e.ejectedUntil == 0 && (best == null || e.outstandingBytes < best.outstandingBytes))
+                best = e;
+        }
+        return best;
+    }
+
+    /**
+     * Returns a random endpoint in rotation, weighted by the inverse of its
+     * latency (null if none is in rotation).  Endpoints without a latency yet
+     * are treated like the fastest one so that they get tried.
+     */
+    private Endpoint pickWeightedRandom() {
+        double fastest = -1;
+        for(int i=0; i<endpoints.size(); i++) {
+            Endpoint e = (Endpoint)endpoints.get(i);
+            if(e.ejectedUntil == 0 && e.latency_ms >= 0 && (fastest < 0 || e.latency_ms < fastest))
+                fastest = e.latency_ms;
+        }
+
+        double[] weights = new double[endpoints.size()];
+        double total = 0;
+        for(int i=0; i<endpoints.size(); i++) {
+            Endpoint e = (Endpoint)endpoints.get(i);
+            if(e.ejectedUntil != 0)
+                continue;
+            double latency = (e.latency_ms >= 0) ? e.latency_ms : fastest;
+            weights[i] = 1.0 / Math.max(1.0, latency);
+            total += weights[i];
+        }
+        if(total == 0)
+            return null;
+
+        double r = random.nextDouble() * total;
+        for(int i=0; i<weights.length; i++) {
+            if(weights[i] == 0)
+                continue;
+            r -= weights[i];
+            if(r < 0)
+                return (Endpoint)endpoints.get(i);
+        }
+        // rounding error: pick the last one in rotation
+        for(int i=weights.length-1; i>=0; i--)
+            if(weights[i] > 0)
+                return (Endpoint)endpoints.get(i);
+        return null;
+    }
+
+    /**
+     * Notes that an upload of numBytes bytes to e (from acquire()) has ended.
+     *
+     * @param outcome      SUCCEEDED, FAILED or ABANDONED
+     * @param duration_ms  how long the upload took (only used if it succeeded)
+     */
+    public synchronized void release(Endpoint e, long numBytes, int outcome, long duration_ms) {
+        e.outstandingBytes -= numBytes;
+
+        if(outcome == SUCCEEDED) {
+            if(e.latency_ms < 0)
+                e.latency_ms = duration_ms;
+            else
+                e.latency_ms += LATENCY_SMOOTHING * (duration_ms - e.latency_ms);
+            e.consecutiveFailures = 0;
+            e.ejectedUntil = 0;
+            e.ejectTime_ms = 0;
+            e.probing = false;
+        }
+        else if(outcome == FAILED) {
+            e.consecutiveFailures += 1;
+            if(e.probing || (e.ejectedUntil == 0 && e.consecutiveFailures >= maxFailures)) {
+                // eject it (for longer each time it fails a probe)
+                e.ejectTime_ms = (e.ejectTime_ms == 0) ? ejectTime_ms : Math.min(e.ejectTime_ms * 2, MAX_EJECT_TIME_MS);
+                e.ejectedUntil = System.currentTimeMillis() + e.ejectTime_ms;
+                e.probing = false;
+            }
+        }
+        else if(e.probing) {
+            e.probing = false; // let another upload probe it
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package uploader.mechanisms;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Keeps idle HTTP/1.1 connections open so later uploads to the same host:port
+ * can reuse them rather than paying for a new TCP handshake (and slow start)
+ * per file.  A pool is normally shared by every HTTPUploadMechanism (see
+ * getDefault()).
+ *
+ * A connection is only given out again if it has been idle for less than
+ * maxIdleTime_ms and the server has not closed it.
+ *
+ * TLS connections are pooled separately for each SSLSocketFactory.  Reusing
+ * one skips the TLS handshake entirely; when a new one must be opened, the
+ * factory's session cache lets the handshake resume an earlier session with
+ * the same host:port (an abbreviated handshake with no certificate exchange or
+ * key agreement) as long as the same factory is used for every connection.
+ *
+ * Thread-safe.
+ *
+ * @author David Underhill
+ */
+public class HTTPConnectionPool {
+    private static final HTTPConnectionPool DEFAULT = new HTTPConnectionPool(8, 15000);
+
+    /** returns the pool shared by HTTPUploadMechanisms by default */
+    public static HTTPConnectionPool getDefault() {
+        return DEFAULT;
+    }
+
+    /** an idle connection (a SocketChannel or an SSLSocket) and when it became idle */
+    private static class IdleConnection {
+        final Object conn;
+        final long idleSince;
+
+        IdleConnection(Object conn, long idleSince) {
+            this.conn = conn;
+            this.idleSince = idleSince;
+        }
+    }
+
+    /** identifies the connections which are interchangeable */
+    private static class Key {
+        final String host;
+        final int port;
+        final SSLSocketFactory factory; // null for plain connections
+
+        Key(String host, int port, SSLSocketFactory factory) {
+            this.host = host;
+            this.port = port;
+            this.factory = factory;
+        }
+
+        public boolean equals(Object o) {
+            if(!(o instanceof Key))
+                return false;
+            Key k = (Key)o;
+            return host.equals(k.host) && port == k.port && factory == k.factory;
+        }
+
+        public int hashCode() {
+            return host.hashCode() * 31 + port + ((factory == null) ? 0 : System.identityHashCode(factory));
+        }
+    }
+
+    /**
+     * maps each TLS connection we opened to the plain socket beneath it (so
+     * abort() can reach it); weak so closed connections are forgotten
+     */
+    private static final Map plainSockets = Collections.synchronizedMap(new WeakHashMap());
+
+    private final int maxIdlePerHost;
+    private final long maxIdleTime_ms;
+
+    /** maps Keys to a queue of IdleConnections (most recently idle last) */
+    private final ConcurrentHashMap idle = new ConcurrentHashMap();
+
+    /**
+     * @param maxIdlePerHost  the most idle connections to keep per host:port
+     * @param maxIdleTime_ms  connections idle for longer than this are closed
+     *                        rather than reused (servers usually close them
+     *                        after 15 seconds or so anyway)
+     */
+    public HTTPConnectionPool(int maxIdlePerHost, long maxIdleTime_ms) {
+        this.maxIdlePerHost = maxIdlePerHost;
+        this.maxIdleTime_ms = maxIdleTime_ms;
+    }
+
+    /**
+     * Returns an open, blocking connection to host:port: an idle one if there
+     * is one which is still usable, otherwise a new one.
+     */
+    public SocketChannel acquire(String host, int port) throws IOException {
+        return acquire(host, port, 0);
+    }
+
+    /**
+     * Like acquire(), but gives up on connecting after connectTimeout_ms (0
+     * to wait as long as the operating system does).
+     *
+     * @throws SocketTimeoutException  if connecting took too long
+     */
+    public SocketChannel acquire(String host, int port, int connectTimeout_ms) throws IOException {
+        SocketChannel channel = (SocketChannel)acquireIdle(new Key(host, port, null));
+        return (channel != null) ? channel : connect(host, port, connectTimeout_ms);
+    }
+
+    /**
+     * Returns an open TLS connection to host:port made by factory: an idle
+     * one if there is one which is still usable, otherwise a new one.
+     */
+    public SSLSocket acquireSecure(String host, int port, SSLSocketFactory factory) throws IOException {
+        return acquireSecure(host, port, factory, 0);
+    }
+
+    /**
+     * Like acquireSecure(), but gives up on connecting (including the TLS
+     * handshake) after connectTimeout_ms (0 for no limit).
+     *
+     * @throws SocketTimeoutException  if connecting took too long
+     */
+    public SSLSocket acquireSecure(String host, int port, SSLSocketFactory factory,
+                                   int connectTimeout_ms) throws IOException {
+        SSLSocket sock = (SSLSocket)acquireIdle(new Key(host, port, factory));
+        return (sock != null) ? sock : connectSecure(host, port, factory, connectTimeout_ms);
+    }
+
+    /** returns a usable idle connection for k (null if there isn't one) */
+    private Object acquireIdle(Key k) {
+        ConcurrentLinkedQueue q = (ConcurrentLinkedQueue)idle.get(k);
+        if(q != null) {
+            long now = System.currentTimeMillis();
+            IdleConnection c;
+            while((c = (IdleConnection)q.poll()) != null) {
+                if(now - c.idleSince < maxIdleTime_ms && isUsable(c.conn))
+                    return c.conn;
+                close(c.conn);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a connection to the pool.  It must have finished its last
+     * exchange (the response was fully read) and be reusable per HTTP/1.1.
+     */
+    public void release(String host, int port, SocketChannel channel) {
+        release(new Key(host, port, null), channel);
+    }
+
+    /** Like release(), but for a TLS connection from acquireSecure(). */
+    public void releaseSecure(String host, int port, SSLSocketFactory factory, SSLSocket sock) {
+        release(new Key(host, port, factory), sock);
+    }
+
+    private void release(Key k, Object conn) {
+        ConcurrentLinkedQueue q = (ConcurrentLinkedQueue)idle.get(k);
+        if(q == null) {
+            idle.putIfAbsent(k, new ConcurrentLinkedQueue());
+            q = (ConcurrentLinkedQueue)idle.get(k);
+        }
+
+        if(q.size() >= maxIdlePerHost)
+            close(conn); // we have plenty already
+        else
+            q.offer(new IdleConnection(conn, System.currentTimeMillis()));
+    }
+
+    /** closes every idle connection */
+    public void closeIdleConnections() {
+        Iterator itr = idle.values().iterator();
+        while(itr.hasNext()) {
+            ConcurrentLinkedQueue q = (ConcurrentLinkedQueue)itr.next();
+            IdleConnection c;
+            while((c = (IdleConnection)q.poll()) != null)
+                close(c.conn);
+        }
+    }
+
+    /**
+     * Opens a new blocking connection to host:port.  Nagle's algorithm is
+     * disabled: requests are written in large pieces anyway, and it would
+     * otherwise hold back the body after the headers until the server's
+     * (delayed) ACK arrives.
+     */
+    public static SocketChannel connect(String host, int port) throws IOException {
+        return connect(host, port, 0);
+    }
+
+    /**
+     * Like connect(), but gives up after connectTimeout_ms (0 to wait as long
+     * as the operating system does).
+     *
+     * @throws SocketTimeoutException  if connecting took too long
+     */
+    public static SocketChannel connect(String host, int port, int connectTimeout_ms) throws IOException {
+        InetSocketAddress addr = new InetSocketAddress(host, port);
+        if(addr.isUnresolved())
+            throw new UnknownHostException(host);
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(addr, connectTimeout_ms);
+            channel.socket().setTcpNoDelay(true);
+            return channel;
+        }
+        catch(IOException e) {
+            close(channel);
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a new TLS connection to host:port with factory and completes the
+     * handshake (resuming a cached session if the factory has one).
+     */
+    public static SSLSocket connectSecure(String host, int port, SSLSocketFactory factory) throws IOException {
+        return connectSecure(host, port, factory, 0);
+    }
+
+    /**
+     * Like connectSecure(), but gives up if connecting or the handshake (each)
+     * takes longer than connectTimeout_ms (0 for no limit).
+     *
+     * @throws SocketTimeoutException  if connecting took too long
+     */
+    public static SSLSocket connectSecure(String host, int port, SSLSocketFactory factory,
+                                          int connectTimeout_ms) throws IOException {
+        SocketChannel channel = connect(host, port, connectTimeout_ms);
+        try {
+            SSLSocket sock = (SSLSocket)factory.createSocket(channel.socket(), host, port, true);
+            sock.setSoTimeout(connectTimeout_ms);
+            sock.startHandshake();
+            sock.setSoTimeout(0);
+            plainSockets.put(sock, channel.socket());
+            return sock;
+        }
+        catch(IOException e) {
+            close(channel);
+            throw e;
+        }
+    }
+
+    /**
+     * Closes a connection from this pool (or one made by connect() or
+     * connectSecure()) from any thread, even while another thread is blocked
+     * writing to it: that write then fails.  Closing an SSLSocket would wait
+     * for the blocked write to finish, so the socket beneath it is closed
+     * instead.  The socket is shut down before it is closed since closing it
+     * alone does not wake up a blocked transferTo() (sendfile).
+     */
+    public static void abort(Socket sock) {
+        if(sock instanceof SSLSocket) {
+            Socket plain = (Socket)plainSockets.get(sock);
+            if(plain == null)
+                return; // not ours
+            sock = plain;
+        }
+        try { sock.shutdownOutput(); } catch(IOException e) {}
+        try { sock.close(); } catch(IOException e) {}
+    }
+
+    /**
+     * Returns true if conn is still open and has nothing waiting to be read
+     * (an idle connection which the server closed reads EOF).
+     */
+    private static boolean isUsable(Object conn) {
+        if(conn instanceof SSLSocket)
+            return isUsable((SSLSocket)conn);
+
+        SocketChannel channel = (SocketChannel)conn;
+        if(!channel.isOpen() || !channel.isConnected())
+            return false;
+
+        try {
+            channel.configureBlocking(false);
+            int n = channel.read(ByteBuffer.allocate(1));
+            channel.configureBlocking(true);
+            return n == 0;
+        } catch(IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * An SSLSocket can't be put in non-blocking mode, so this waits (very
+     * briefly) for something to read instead.
+     */
+    private static boolean isUsable(SSLSocket sock) {
+        if(sock.isClosed() || !sock.isConnected())
+            return false;
+
+        try {
+            sock.setSoTimeout(1);
+            try {
+                sock.getInputStream().read();
+                return false; // EOF or unexpected data
+            }
+            catch(SocketTimeoutException e) {
+                return true; // nothing to read: the connection is idle
+            }
+            finally {
+                sock.setSoTimeout(0);
+            }
+        } catch(IOException e) {
+            return false;
+        }
+    }
+
+    private static void close(Object conn) {
+        try {
+            if(conn instanceof Socket)
+                ((Socket)conn).close();
+            else
+                ((SocketChannel)conn).close();
+        } catch(IOException e) {}
+    }
+}
@@ -0,0 +1,505 @@
+package uploader.mechanisms;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+import uploader.mechanisms.event.ResponseBodyHandler;
+
+/**
+ * One HTTP/1.x response.  The body is framed as HTTP/1.1 requires
+ * (Content-Length, chunked Transfer-Encoding, or until the connection closes)
+ * so that exactly one response is consumed and the connection can carry
+ * another request afterward.  Interim (1xx) responses are skipped.
+ *
+ * Responses are parsed incrementally by a Parser as bytes arrive, so it works
+ * the same whether they come from a blocking stream (see read()) or a
+ * non-blocking channel.  The status line, headers, and (de-chunked) body are
+ * kept in one array which is only copied when it needs to grow; getText() and
+ * getBody() are views of it.  Alternatively, the body can be streamed to a
+ * ResponseBodyHandler as it arrives, and reading stops once the handler has
+ * what it needs.
+ *
+ * @author David Underhill
+ */
+class HTTPResponse {
+    /** the default limit on the size of a response's body */
+    public static final int DEFAULT_MAX_BODY_SIZE = 1024 * 1024;
+
+    /** the status code (e.g., 200) */
+    public final int code;
+
+    /** whether the connection may be used for another request */
+    public final boolean reusable;
+
+    /** the status line and headers followed by the body (if it was saved) */
+    private final byte[] buf;
+    private final int headLen;
+    private final int len;
+
+    /** the body's charset (from Content-Type; UTF-8 if it doesn't say) */
+    private final String charset;
+
+    private HTTPResponse(int code, boolean reusable, byte[] buf, int headLen, int len, String charset) {
+        this.code = code;
+        this.reusable = reusable;
+        this.buf = buf;
+        this.headLen = headLen;
+        this.len = len;
+        this.charset = (charset != null) ? charset : "UTF-8";
+    }
+
+    /**
+     * Returns a read-only view of the (de-chunked) body; it is empty if the
+     * body was not saved.
+     */
+    public ByteBuffer getBody() {
+        return ByteBuffer.wrap(buf, headLen, len - headLen).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the status line and headers (ISO-8859-1) and the body (decoded
+     * with its charset) as text.  This is a view of the response's bytes
+     * unless the body has non-ASCII characters, which must be decoded.
+     */
+    public CharSequence getText() {
+        String cs = charset.toUpperCase();
+        boolean wide = cs.startsWith("UTF-16") || cs.startsWith("UTF-32") || cs.startsWith("UTF16") || cs.startsWith("UTF32");
+        for(int i=headLen; i<len; i++) {
+            if(buf[i] < 0 || wide) {
+                // not ASCII: decode the body (the head is always ISO-8859-1)
+                return new ByteCharSequence(buf, 0, headLen) + decodeBody();
+            }
+        }
+        return new ByteCharSequence(buf, 0, len);
+    }
+
+    public String toString() {
+        return getText().toString();
+    }
+
+    /** decodes the body with its charset (or UTF-8 if that isn't supported) */
+    private String decodeBody() {
+        try {
+            return new String(buf, headLen, len - headLen, charset);
+        }
+        catch(Exception e) {
+            // unknown or malformed charset name
+            try {
+                return new String(buf, headLen, len - headLen, "UTF-8");
+            }
+            catch(UnsupportedEncodingException e2) {
+                return new String(buf, headLen, len - headLen); // every JVM supports UTF-8
+            }
+        }
+    }
+
+    /**
+     * Reads a response from in.  The body is only kept if saveBody is true
+     * and the response is successful (2xx); other bodies are read and
+     * discarded whatever their size.
+     *
+     * @throws IOException  if the response is truncated, malformed, or its
+     *                      body is kept and larger than maxBodySize
+     */
+    public static HTTPResponse read(InputStream in, boolean saveBody, int maxBodySize) throws IOException {
+        return read(in, saveBody, maxBodySize, null);
+    }
+
+    /**
+     * Reads a response from in, passing its body to handler (if not null)
+     * as it arrives if the response is successful (2xx).  Reading stops early if the handler is satisfied before
+     * the response ends; the connection then can't be reused.
+     */
+    public static HTTPResponse read(InputStream in, boolean saveBody, int maxBodySize,
+                                    ResponseBodyHandler handler) throws IOException {
+        Parser p = new Parser(saveBody, maxBodySize, handler);
+        byte[] b = new byte[4096];
+        while(!p.isDone() && !p.isSatisfied()) {
+            int n = in.read(b);
+            if(n < 0)
+                p.endOfStream();
+            else
+                p.feed(b, 0, n);
+        }
+        return p.getResponse();
+    }
+
+    /**
+     * Parses one response from bytes as they arrive.  Call feed() with each
+     * batch of bytes received and endOfStream() if the connection closes,
+     * until isDone() returns true.
+     *
+     * Memory is bounded: the status line and headers may be at most
+     * MAX_HEAD_SIZE bytes and a kept body at most maxBodySize bytes.  Bodies
+     * which aren't kept (streamed to a handler or discarded) may be any size.
+     *
+     * Not thread-safe.
+     */
+    static class Parser {
+        /** the most bytes the status line and headers may take up */
+        private static final int MAX_HEAD_SIZE = 64 * 1024;
+
+        /** the longest chunk-size line or trailer we accept */
+        private static final int MAX_LINE_SIZE = 8 * 1024;
+
+        // parser states
+        private static final int HEAD = 0;
+        private static final int BODY = 1;          // Content-Length bytes
+        private static final int BODY_UNTIL_EOF = 2;
+        private static final int CHUNK_SIZE = 3;
+        private static final int CHUNK_DATA = 4;
+        private static final int CHUNK_END = 5;     // the CRLF after a chunk's data
+        private static final int TRAILERS = 6;
+        private static final int DONE = 7;
+
+        private final boolean saveBody;
+        private final int maxBodySize;
+        private int state = HEAD;
+
+        /** what the body is passed to as it arrives (null if none) */
+        private final ResponseBodyHandler handler;
+
+        /** whether handler has all it needs */
+        private boolean satisfied = false;
+
+        /** the head (and then the saved body) */
+        private byte[] buf = new byte[1024];
+        private int len = 0;
+        private int headLen = 0;
+        private long bodySize = 0;
+
+        /** where the line being read starts in buf (while reading the head) */
+        private int lineStart = 0;
+
+        /** the chunk-size line or trailer being read */
+        private final StringBuffer line = new StringBuffer();
+
+        /** body bytes left to read (of the body or the current chunk) */
+        private long remaining;
+
+        // what we've learned from the head
+        private int code;
+        private long contentLength;
+        private boolean chunked;
+        private boolean close;
+        private String charset;
+
+        /**
+         * @param saveBody     whether to keep a successful (2xx) response's
+         *                     body (other bodies are always discarded)
+         * @param maxBodySize  responses whose kept bodies would be larger are
+         *                     rejected
+         */
+        public Parser(boolean saveBody, int maxBodySize) {
+            this(saveBody, maxBodySize, null);
+        }
+
+        /**
+         * @param handler  if not null, a successful (2xx) response's body is
+         *                 passed to it as it arrives (other bodies, e.g., an
+         *                 error page from a proxy, are not)
+         */
+        public Parser(boolean saveBody, int maxBodySize, ResponseBodyHandler handler) {
+            this.saveBody = saveBody;
+            this.maxBodySize = maxBodySize;
+            this.handler = handler;
+        }
+
+        /** returns true once a whole (non-interim) response has been parsed */
+        public boolean isDone() {
+            return state == DONE;
+        }
+
+        /**
+         * Returns true once the body handler (if any) has all it needs, so
+         * the rest of the response need not be read.
+         */
+        public boolean isSatisfied() {
+            return satisfied;
+        }
+
+        /**
+         * Returns the response once isDone() (or isSatisfied()) returns true.
+         * If the whole response wasn't read, the connection can't be reused.
+         */
+        public HTTPResponse getResponse() {
+            return new HTTPResponse(code, !close && state == DONE, buf, headLen, len, charset);
+        }
+
+        /**
+         * Parses n bytes from b starting at off.  Bytes beyond the end of the
+         * response are ignored (the connection is then not reused since we've
+         * lost track of what it carries).
+         *
+         * @throws IOException  if the response is malformed or too large
+         */
+        public void feed(byte[] b, int off, int n) throws IOException {
+            int end = off + n;
+            while(off < end) {
+                switch(state) {
+                    case HEAD:
+                        off = feedHead(b, off, end);
+                        break;
+
+                    case BODY:
+                    case CHUNK_DATA: {
+                        int k = (int)Math.min(remaining, end - off);
+                        body(b, off, k);
+                        off += k;
+                        remaining -= k;
+                        if(remaining == 0)
+                            state = (state == BODY) ? DONE : CHUNK_END;
+                        break;
+                    }
+
+                    case BODY_UNTIL_EOF:
+                        body(b, off, end - off);
+                        off = end;
+                        break;
+
+                    case CHUNK_SIZE:
+                    case CHUNK_END:
+                    case TRAILERS:
+                        off = feedLine(b, off, end);
+                        break;
+
+                    case DONE:
+                        close = true; // more than one response's worth
+                        return;
+                }
+            }
+        }
+
+        /**
+         * Tells the parser the server closed the connection.
+         *
+         * @throws IOException  if the response was not complete
+         */
+        public void endOfStream() throws IOException {
+            if(state == BODY_UNTIL_EOF)
+                state = DONE;
+            else if(state != DONE)
+                throw new IOException("response truncated");
+        }
+
+        /** copies bytes from b into the head until the head ends; returns where it stopped */
+        private int feedHead(byte[] b, int off, int end) throws IOException {
+            while(off < end) {
+                byte c = b[off++];
+                append(c, MAX_HEAD_SIZE, "response headers too large");
+                if(c != '\n')
+                    continue;
+
+                // a whole line: [lineStart, len) including the terminator
+                int lineEnd = len - 1;
+                if(lineEnd > lineStart && buf[lineEnd - 1] == '\r')
+                    lineEnd -= 1;
+                boolean first = (lineStart == 0);
+                String ln = new String(buf, lineStart, lineEnd - lineStart, "ISO-8859-1");
+                lineStart = len;
+
+                if(first)
+                    statusLine(ln);
+                else if(ln.length() > 0)
+                    header(ln);
+                else {
+                    headEnded();
+                    return off;
+                }
+            }
+            return off;
+        }
+
+        private void statusLine(String ln) throws IOException {
+            if(!ln.startsWith("HTTP/") || ln.length() < 12)
+                throw new IOException("bad response");
+            try {
+                code = Integer.parseInt(ln.substring(9, 12));
+            }
+            catch(NumberFormatException e) {
+                throw new IOException("bad response code");
+            }
+            contentLength = -1;
+            chunked = false;
+            charset = null;
+            close = !ln.startsWith("HTTP/1.1"); // HTTP/1.0 closes unless told otherwise
+        }
+
+        private void header(String ln) throws IOException {
+            int colon = ln.indexOf(':');
+            if(colon < 0)
+                return;
+
+            String name = ln.substring(0, colon).trim();
+            String value = ln.substring(colon + 1).trim();
+            if(name.equalsIgnoreCase("Content-Length")) {
+                try {
+                    contentLength = Long.parseLong(value);
+                }
+                catch(NumberFormatException e) {
+                    throw new IOException("bad Content-Length");
+                }
+            }
+            else if(name.equalsIgnoreCase("Content-Type")) {
+                int i = value.toLowerCase().indexOf("charset=");
+                if(i >= 0) {
+                    String cs = value.substring(i + 8);
+                    int semi = cs.indexOf(';');
+                    if(semi >= 0)
+                        cs = cs.substring(0, semi);
+                    cs = cs.trim();
+                    if(cs.length() >= 2 && cs.startsWith("\"") && cs.endsWith("\""))
+                        cs = cs.substring(1, cs.length() - 1);
+                    charset = (cs.length() > 0) ? cs : null;
+                }
+            }
+            else if(name.equalsIgnoreCase("Transfer-Encoding"))
+                chunked = value.toLowerCase().indexOf("chunked") >= 0;
+            else if(name.equalsIgnoreCase("Connection")) {
+                String v = value.toLowerCase();
+                if(v.indexOf("close") >= 0)
+                    close = true;
+                else if(v.indexOf("keep-alive") >= 0)
+                    close = false;
+            }
+        }
+
+        /** decides how the body is framed once the head has been read */
+        private void headEnded() throws IOException {
+            if(code >= 100 && code < 200) {
+                // interim response (e.g., 100 Continue): the real one follows
+                len = 0;
+                lineStart = 0;
+                return;
+            }
+
+            headLen = len;
+            if(code == 204 || code == 304)
+                state = DONE; // never has a body
+            else if(chunked)
+                state = CHUNK_SIZE;
+            else if(contentLength >= 0) {
+                if(keepsBody() && contentLength > maxBodySize)
+                    throw new IOException("response body too large");
+                remaining = contentLength;
+                state = (remaining == 0) ? DONE : BODY;
+            }
+            else {
+                // the body ends when the server closes the connection
+                close = true;
+                state = BODY_UNTIL_EOF;
+            }
+        }
+
+        /** reads a chunk-size line, the CRLF after a chunk, or a trailer */
+        private int feedLine(byte[] b, int off, int end) throws IOException {
+            while(off < end) {
+                char c = (char)(b[off++] & 0xFF);
+                if(c == '\r')
+                    continue;
+                if(c != '\n') {
+                    if(line.length() >= MAX_LINE_SIZE)
+                        throw new IOException("bad response");
+                    line.append(c);
+                    continue;
+                }
+
+                String ln = line.toString();
+                line.setLength(0);
+                if(state == CHUNK_SIZE) {
+                    int semi = ln.indexOf(';'); // ignore chunk extensions
+                    if(semi >= 0)
+                        ln = ln.substring(0, semi);
+                    try {
+                        remaining = Long.parseLong(ln.trim(), 16);
+                    }
+                    catch(NumberFormatException e) {
+                        throw new IOException("bad chunk size");
+                    }
+                    state = (remaining == 0) ? TRAILERS : CHUNK_DATA;
+                }
+                else if(state == CHUNK_END)
+                    state = CHUNK_SIZE;
+                else if(ln.length() == 0)
+                    state = DONE; // the blank line after the trailers (if any)
+                return off;
+            }
+            return off;
+        }
+
+        /** returns true if the body is to be kept (only successful responses' bodies are) */
+        private boolean keepsBody() {
+            return saveBody && code >= 200 && code < 300;
+        }
+
+        /** counts (and saves or hands off, if requested) n body bytes from b */
+        private void body(byte[] b, int off, int n) throws IOException {
+            bodySize += n;
+            if(handler != null && !satisfied && n > 0 && code >= 200 && code < 300)
+                satisfied = handler.bodyReceived(b, off, n);
+            if(keepsBody()) {
+                if(bodySize > maxBodySize)
+                    throw new IOException("response body too large");
+                ensureCapacity(len + n);
+                System.arraycopy(b, off, buf, len, n);
+                len += n;
+            }
+        }
+
+        /** appends c to buf, failing if that would make it longer than max */
+        private void append(byte c, int max, String tooBig) throws IOException {
+            if(len >= max)
+                throw new IOException(tooBig);
+            ensureCapacity(len + 1);
+            buf[len++] = c;
+        }
+
+        private void ensureCapacity(int n) {
+            if(n > buf.length) {
+                byte[] bigger = new byte[Math.max(n, buf.length * 2)];
+                System.arraycopy(buf, 0, bigger, 0, len);
+                buf = bigger;
+            }
+        }
+    }
+
+    /** a CharSequence view of bytes (each byte is one ISO-8859-1 character) */
+    private static class ByteCharSequence implements CharSequence {
+        private final byte[] buf;
+        private final int off;
+        private final int len;
+
+        ByteCharSequence(byte[] buf, int off, int len) {
+            this.buf = buf;
+            this.off = off;
+            this.len = len;
+        }
+
+        public char charAt(int i) {
+            if(i < 0 || i >= len)
+                throw new IndexOutOfBoundsException(String.valueOf(i));
+            return (char)(buf[off + i] & 0xFF);
+        }
+
+        public int length() {
+            return len;
+        }
+
+        public CharSequence subSequence(int start, int end) {
+            if(start < 0 || end > len || start > end)
+                throw new IndexOutOfBoundsException(start + "-" + end);
+            return new ByteCharSequence(buf, off + start, end - start);
+        }
+
+        public String toString() {
+            try {
+                return new String(buf, off, len, "ISO-8859-1");
+            }
+            catch(UnsupportedEncodingException e) {
+                return new String(buf, off, len); // every JVM supports ISO-8859-1
+            }
+        }
+    }
+}
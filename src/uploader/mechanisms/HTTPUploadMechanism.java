@@ -1,34 +1,79 @@
 package uploader.mechanisms;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
 
 import uploader.mechanisms.event.HTTPUploadListener;
+import uploader.mechanisms.event.ResponseBodyHandler;
 
 /**
- * Uploads files using HTTP/1.0.  Files can be uploaded as raw binary data or
+ * Uploads files using HTTP/1.1.  Files can be uploaded as raw binary data or
  * encoded as multipart/form-data.  An optional custom header
  * X-JCustomUploader-Filename can be included (its value is the file's name).
  *
+ * Unless the file getter transforms the file, the body is sent with
+ * FileChannel.transferTo() so the operating system can copy the file straight
+ * to the socket (e.g., with sendfile on Linux) rather than through the heap.
+ *
+ * If the file getter produces data whose length is not known up front (e.g.,
+ * an image which is encoded as it is read), the request body is sent with
+ * "Transfer-Encoding: chunked" so sending overlaps producing the data.
+ *
+ * Connections are kept open between uploads and shared with other mechanisms
+ * uploading to the same host:port (see HTTPConnectionPool), so a batch of
+ * small files does not pay for a TCP handshake per file.
+ *
+ * Uploads are sent over TLS (HTTPS) if an SSLSocketFactory is set (see
+ * setSSLSocketFactory()).  TLS connections are pooled too, and new ones
+ * resume a cached TLS session when they can, so neither costs a full
+ * handshake per file.  The body is copied through the heap since TLS has to
+ * encrypt it.
+ *
+ * A server which stops responding can't tie up an upload thread forever:
+ * connecting, each write, and waiting for the response each have a timeout
+ * (see setConnectTimeout(), setWriteTimeout() and setResponseTimeout()), and
+ * each fails the upload with its own (retryable) error.
+ *
  * @author David Underhill
  */
 public class HTTPUploadMechanism extends AbstractUploadMechanism {
-    /** the server:port to connect to */
-    private final String host;
-    private final int port;
+    /** a server to upload to and the request head for it (it names the server) */
+    static class Target {
+        final String host;
+        final int port;
+        final RequestTemplate template;
 
-    /** the request line and all headers EXCEPT content-length */
-    private final String request_line_and_headers;
+        Target(String host, int port, RequestTemplate template) {
+            this.host = host;
+            this.port = port;
+            this.template = template;
+        }
+    }
 
-    /** whether to include the X-JCustomUploader-Filename header */
+    /** what goes in each request (see the constructor) */
+    private final String method;
+    private final String path;
+    private final String headers;
     private final boolean addCustomHeaderWithFilename;
-
-    /** whether to encode the file as multipart/form-data */
     private final String multipartFormDataField;
 
+    /** the server to upload to next (and for the rest of the current upload) */
+    private Target target;
+
+    /** the status code of the current upload's response (-1 until it arrives) */
+    private int responseCode = -1;
+
     /** an object (if any) to notify whenever a response completes */
     private volatile HTTPUploadListener eventListener = null;
 
@@ -36,17 +81,72 @@ public class HTTPUploadMechanism extends AbstractUploadMechanism {
      * The boundary to use: if it overlaps with any data in the file, then it
      * is broken for that file, but the likelihood of an overlap is nil so I
      * went with the statically determined boundary instead of dynamically
-     * computing one which definitely does not overlap.
+     * computing one which definitely does not overlap.  (Shared with
+     * NonBlockingHTTPUploader.)
      */
-    private static final String BOUNDARY = "--------------------0ffc0f7fc30ad95021fc3b543ff06fe7dc8b79bd";
+    static final String BOUNDARY = "--------------------0ffc0f7fc30ad95021fc3b543ff06fe7dc8b79bd";
+
+    /** where to get connections and return them when done (null => close after each upload) */
+    private volatile HTTPConnectionPool connectionPool = HTTPConnectionPool.getDefault();
+
+    /** the pool the current connection came from (null if it is not pooled) */
+    private HTTPConnectionPool currentPool;
+
+    /** makes TLS connections (null => plain HTTP) */
+    private volatile SSLSocketFactory sslSocketFactory = null;
+
+    /** the factory the current connection came from (null if it is plain) */
+    private SSLSocketFactory currentSSLSocketFactory;
+
+    /** the default timeouts (milliseconds) */
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 30 * 1000;
+    public static final int DEFAULT_WRITE_TIMEOUT_MS = 60 * 1000;
+    public static final int DEFAULT_RESPONSE_TIMEOUT_MS = 120 * 1000;
+
+    /** how long connecting (and the TLS handshake) may take (0 => no limit) */
+    private volatile int connectTimeout_ms = DEFAULT_CONNECT_TIMEOUT_MS;
+
+    /** how long a write may block without finishing (0 => no limit) */
+    private volatile int writeTimeout_ms = DEFAULT_WRITE_TIMEOUT_MS;
 
-    /** the socket which we'll send the data over */
-    private Socket sock;
+    /** how long to wait for the response after sending the request (0 => no limit) */
+    private volatile int responseTimeout_ms = DEFAULT_RESPONSE_TIMEOUT_MS;
+
+    /** when (System.nanoTime()) the write in progress times out (0 if none is in progress) */
+    private volatile long writeDeadline = 0;
+
+    /** successful responses with larger bodies are rejected if the body is kept for the event listener */
+    private volatile int maxResponseBodySize = HTTPResponse.DEFAULT_MAX_BODY_SIZE;
+
+    /** how much to buffer before encrypting it into a TLS record */
+    private static final int TLS_BUFFER_SIZE = 16 * 1024;
+
+    /** whether the current request body is sent with chunked transfer-encoding */
+    private boolean chunked;
+
+    /** the end of a chunk (and its trailing CRLF) */
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    /** the last chunk (and an empty trailer) */
+    private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+    /** holds the head of each request (reused from one upload to the next) */
+    private ByteBuffer headBuffer = ByteBuffer.allocateDirect(1024);
+
+    /** copies direct buffers for the TLS stream */
+    private byte[] scratch = new byte[0];
+
+    /**
+     * the socket which we'll send the data over (channel is null for TLS);
+     * sock is volatile so interruptIO() can close it from another thread
+     */
+    private SocketChannel channel;
+    private volatile Socket sock;
     private OutputStream out;
 
     /**
      * Will upload to the specified path on the specified server on TCP port 80
-     * via HTTP/1.0 POST with no extra headers.
+     * via HTTP/1.1 POST with no extra headers.
      */
     public HTTPUploadMechanism(String host, String path) {
         this(host, 80, "POST", path, "");
@@ -63,7 +163,8 @@ public class HTTPUploadMechanism extends AbstractUploadMechanism {
 
     /**
      * Will upload to the specified path on the specified host:port via the
-     * HTTP/1.0 method and including the specified headers.
+     * HTTP/1.1 method and including the specified headers.  A Host header is
+     * added if headers does not include one.
      *
      * @param host     may be either an IP address or a hostname
      * @param port     the port to connect on (typically port 80)
@@ -81,57 +182,81 @@ public class HTTPUploadMechanism extends AbstractUploadMechanism {
     public HTTPUploadMechanism(String host, int port, String method, String path,
                                String headers, boolean addCustomHeaderWithFilename,
                                String multipartFormDataField) {
-        this.host = host;
-        this.port = port;
-        this.request_line_and_headers = method + " " + path + " HTTP/1.0\r\n" + headers;
-
+        this.method = method;
+        this.path = path;
+        this.headers = headers;
         this.addCustomHeaderWithFilename = addCustomHeaderWithFilename;
         this.multipartFormDataField = multipartFormDataField;
+        this.target = newTarget(host, port);
+    }
+
+    /** returns a Target for host:port which sends the requests this mechanism was configured with */
+    Target newTarget(String host, int port) {
+        return new Target(host, port, new RequestTemplate(host, port, method, path, headers,
+                                                          addCustomHeaderWithFilename, multipartFormDataField, BOUNDARY));
+    }
+
+    /** sets the server to upload to (takes effect with the next upload) */
+    void setTarget(Target t) {
+        target = t;
+    }
+
+    /** returns the status code of the current (or last) upload's response (-1 if none was received) */
+    int getResponseCode() {
+        return responseCode;
     }
 
     public boolean tryToStartUpload(File f) {
         try {
-            // open a TCP connection to the server
-            sock = new Socket(host, port);
-            out = sock.getOutputStream();
-
-            // build any additional headers for this request ...
-            String moreHeaders = "";
-
-            // prepare the multipart/form-data stuff if requested
-            String multiPartHeader = null;
-            long sz = getFileSize();
-            if(multipartFormDataField != null) {
-                multiPartHeader = "--" + BOUNDARY + "\r\n" +
-                                  "Content-Disposition: form-data; name=\"" + multipartFormDataField + "\"; filename=\"" + f.getName() + "\"\r\n" +
-                                  "Content-Type: application/octet-stream\r\n\r\n";
-
-                // update size to include the encoding overheard
-                sz += multiPartHeader.getBytes().length + BOUNDARY.getBytes().length + 8;
-
-                // provide a Content-Type header indicating that the body in multipart form data
-                moreHeaders += "Content-Type: multipart/form-data; boundary=" + BOUNDARY + "\r\n";
+            // get a connection to the server (an idle one if we can)
+            String host = target.host;
+            int port = target.port;
+            responseCode = -1;
+            HTTPConnectionPool pool = connectionPool;
+            SSLSocketFactory ssl = sslSocketFactory;
+            int connectTimeout = connectTimeout_ms;
+            currentPool = pool;
+            currentSSLSocketFactory = ssl;
+            if(ssl != null) {
+                channel = null;
+                if(pool != null)
+                    sock = pool.acquireSecure(host, port, ssl, connectTimeout);
+                else
+                    sock = HTTPConnectionPool.connectSecure(host, port, ssl, connectTimeout);
+
+                // don't encrypt each small write into a record of its own
+                out = new BufferedOutputStream(sock.getOutputStream(), TLS_BUFFER_SIZE);
+            }
+            else {
+                if(pool != null)
+                    channel = pool.acquire(host, port, connectTimeout);
+                else
+                    channel = HTTPConnectionPool.connect(host, port, connectTimeout);
+                sock = channel.socket();
+                out = sock.getOutputStream();
             }
+            if(writeTimeout_ms > 0)
+                WriteWatchdog.get().watch(this);
 
             // add any headers specific to this file
             String fileSpecificHeaders = getAdditionalHeaders(f);
             if(fileSpecificHeaders == null)
                 return false;
-            moreHeaders += fileSpecificHeaders;
 
-            // send the request line and headers
-            String data = request_line_and_headers + moreHeaders + "Content-Length: " + sz + "\r\n\r\n";
-            out.write(data.getBytes());
-
-            // send the multipart/form-data header (if we're doing this encoding)
-            if(multipartFormDataField != null) {
-                out.write(multiPartHeader.getBytes());
-            }
+            // send the request line, headers, and multipart/form-data header (if
+            // we're doing this encoding) with one write
+            chunked = !isLengthKnown();
+            headBuffer = target.template.fill(headBuffer, f.getName(), chunked ? -1 : getFileSize(),
+                                       fileSpecificHeaders, pool == null);
+            write(new ByteBuffer[] { headBuffer });
 
             return true;
         } catch (UnknownHostException e) {
             haltWithError(e.getMessage());
             return false;
+        } catch (SocketTimeoutException e) {
+            haltWithError("timed out connecting (after " + connectTimeout_ms + "ms)");
+            return false;
         } catch (IOException e) {
             haltWithError(e.getMessage());
             return false;
@@ -139,22 +264,105 @@ public class HTTPUploadMechanism extends AbstractUploadMechanism {
     }
 
     /**
-     * Returns the additional HTTP headers to send with the request for f.  By
-     * default, the X-JCustomUploader-Filename header will be returned if
-     * addCustomHeaderWithFilename=true was passed to the constructor.  null
-     * should be returned (after calling haltWithError()) if an error occurs.
+     * Returns the additional HTTP headers to send with the request for f (the
+     * X-JCustomUploader-Filename header, if requested, is added separately).
+     * By default there are none.  null should be returned (after calling
+     * haltWithError()) if an error occurs.
      */
     protected String getAdditionalHeaders(File f) {
-        if(addCustomHeaderWithFilename)
-            return "X-JCustomUploader-Filename: " + f.getName() + "\r\n";
+        return "";
+    }
+
+    /**
+     * Returns an object to pass the body of the current upload's response to
+     * as it arrives, or null (the default) to have the event listener (if
+     * any) get the whole body.  If there is a handler, the listener gets only
+     * the response's status line and headers, and reading stops as soon as
+     * the handler has what it needs.
+     */
+    protected ResponseBodyHandler newResponseBodyHandler() {
+        return null;
+    }
+
+    /**
+     * Writes bufs to the connection: with one gathering write if it is plain,
+     * else through the TLS stream.
+     */
+    private void write(ByteBuffer[] bufs) throws IOException {
+        if(channel != null) {
+            while(bufs[bufs.length - 1].hasRemaining()) {
+                beginWrite();
+                channel.write(bufs);
+                endWrite();
+            }
+        }
+        else {
+            beginWrite();
+            for(int i=0; i<bufs.length; i++) {
+                ByteBuffer b = bufs[i];
+                if(b.hasArray())
+                    out.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+                else {
+                    if(scratch.length < b.remaining())
+                        scratch = new byte[b.remaining()];
+                    int n = b.remaining();
+                    b.get(scratch, 0, n);
+                    out.write(scratch, 0, n);
+                }
+                b.position(b.limit());
+            }
+            endWrite();
+        }
+    }
+
+    /** starts the clock on a write (see WriteWatchdog) */
+    private void beginWrite() {
+        int timeout = writeTimeout_ms;
+        if(timeout > 0)
+            writeDeadline = System.nanoTime() + timeout * 1000000L;
+    }
+
+    /** notes that the write in progress (if any) has finished */
+    private void endWrite() {
+        writeDeadline = 0;
+    }
+
+    /**
+     * Called by the WriteWatchdog: aborts the upload if the write in progress
+     * (if any) was due to finish before now (System.nanoTime()).
+     */
+    void checkWriteDeadline(long now) {
+        long deadline = writeDeadline;
+        if(deadline != 0 && now - deadline > 0) {
+            writeDeadline = 0;
+            abortUpload("timed out sending (no progress for " + writeTimeout_ms + "ms)");
+        }
+    }
+
+    /**
+     * Returns buffers which hold prefix (if not null) followed by len bytes
+     * of buf starting at off framed as one chunk.
+     */
+    private static ByteBuffer[] chunk(ByteBuffer prefix, byte[] buf, int off, int len) {
+        ByteBuffer size = ByteBuffer.wrap((Integer.toHexString(len) + "\r\n").getBytes());
+        ByteBuffer data = ByteBuffer.wrap(buf, off, len);
+        ByteBuffer end = ByteBuffer.wrap(CRLF);
+        if(prefix == null)
+            return new ByteBuffer[] { size, data, end };
         else
-            return "";
+            return new ByteBuffer[] { prefix, size, data, end };
     }
 
     public boolean tryToUploadNextChunk(byte[] buf, int len) {
         try {
             // send the bytes over the socket
-            out.write(buf, 0, len);
+            if(chunked)
+                write(chunk(null, buf, 0, len));
+            else {
+                beginWrite();
+                out.write(buf, 0, len);
+                endWrite();
+            }
             return true;
         } catch (IOException e) {
             haltWithError(e.getMessage());
@@ -162,12 +370,57 @@ public class HTTPUploadMechanism extends AbstractUploadMechanism {
         }
     }
 
+    protected boolean canTransferFromFile() {
+        return channel != null && !chunked;
+    }
+
+    /** the request can be sent with chunked transfer-encoding */
+    protected boolean canUploadUnknownLength() {
+        return true;
+    }
+
+    protected long tryToTransferNextChunk(FileChannel file, long position, long count) {
+        try {
+            // transferTo() may send less than requested, so keep going
+            long sent = 0;
+            while(sent < count) {
+                beginWrite();
+                long n = file.transferTo(position + sent, count - sent, channel);
+                endWrite();
+                if(n <= 0)
+                    break; // the file got shorter
+                sent += n;
+            }
+            if(sent == 0) {
+                haltWithError("unexpected end of file");
+                return -1;
+            }
+            return sent;
+        } catch (IOException e) {
+            haltWithError(e.getMessage());
+            return -1;
+        }
+    }
+
     protected boolean finalizeUpload() {
         // send the multipart/form-data footer (if we're doing this encoding)
-        if(multipartFormDataField != null) {
-            String footer = "\r\n--" + BOUNDARY + "--\r\n";
+        // and the last chunk (if we're sending chunks)
+        RequestTemplate template = target.template;
+        if(template.isMultipart() || chunked) {
+            byte[] footer = template.isMultipart() ? template.getMultipartFooter() : new byte[0];
             try {
-                out.write(footer.getBytes());
+                if(chunked) {
+                    ByteBuffer[] bufs = (footer.length > 0) ? chunk(null, footer, 0, footer.length) : new ByteBuffer[0];
+                    ByteBuffer[] all = new ByteBuffer[bufs.length + 1];
+                    System.arraycopy(bufs, 0, all, 0, bufs.length);
+                    all[bufs.length] = ByteBuffer.wrap(LAST_CHUNK);
+                    write(all);
+                }
+                else {
+                    beginWrite();
+                    out.write(footer);
+                    endWrite();
+                }
             } catch (IOException e) {
                 haltWithError(e.getMessage());
                 return false;
@@ -176,59 +429,189 @@ public class HTTPUploadMechanism extends AbstractUploadMechanism {
 
         // check the response to make sure we get a 2xx code back
         try {
-            byte[] buf = new byte[1024];
-            int n = sock.getInputStream().read(buf, 0, 13);
-            if(n != 13)
-                throw new IOException("bad response");
-            else {
-                // response starts with: "HTTP/1.0 XYZ " where XYZ is the code
-                String strCode = new String(buf, 9, 3);
-                int code = Integer.parseInt(strCode);
-                if(code>=200 && code<300) {
-                    // be nice and read the rest of their response
-                    HTTPUploadListener listener = eventListener;
-                    String resp = "";
-                    while(n > 0) {
-                        if(listener != null)
-                            resp += new String(buf, 0, n); // only save the response if have to share it
-                        n = sock.getInputStream().read(buf, 0, 1024);
-                    }
+            beginWrite();
+            out.flush(); // send anything buffered for TLS
+            endWrite();
+            WriteWatchdog.get().unwatch(this); // we're done writing
+
+            // only save the response if we have to share it (and it isn't
+            // being streamed to a handler instead)
+            HTTPUploadListener listener = eventListener;
+            ResponseBodyHandler handler = newResponseBodyHandler();
+            HTTPResponse resp;
+            sock.setSoTimeout(responseTimeout_ms);
+            try {
+                resp = HTTPResponse.read(sock.getInputStream(), listener != null && handler == null,
+                                         maxResponseBodySize, handler);
+            }
+            catch(SocketTimeoutException e) {
+                haltWithError("timed out waiting for the response (after " + responseTimeout_ms + "ms)");
+                return false;
+            }
+            sock.setSoTimeout(0);
+            responseCode = resp.code;
+
+            // the whole response has been read, so the connection can carry
+            // another upload (if the server agrees)
+            if(resp.reusable && currentPool != null) {
+                if(currentSSLSocketFactory != null)
+                    currentPool.releaseSecure(target.host, target.port, currentSSLSocketFactory, (SSLSocket)sock);
+                else
+                    currentPool.release(target.host, target.port, channel);
+                out = null;
+                sock = null;
+                channel = null;
+            }
+            else
+                uploadCanceled(); // close it
 
-                    // if something is listening, fire an event to let them know about the response
-                    if(listener != null) {
-                        String errMsg = listener.responseReceived(this, code, resp);
-                        if(errMsg != null) {
-                            // something in the response indicated a failure ...
+            int code = resp.code;
+            if(code>=200 && code<300) {
+                // if something is listening, fire an event to let them know about the response
+                if(listener != null) {
+                    String errMsg = listener.responseReceived(this, code, resp.getText());
+                    if(errMsg != null) {
+                        // something in the response indicated a failure ...
+                        if(isResponseErrorPermanent(code, errMsg))
+                            haltWithPermanentError(errMsg);
+                        else
                             haltWithError(errMsg);
-                            return false;
-                        }
+                        return false;
                     }
-                    return true;
-                }
-                else {
-                    if(code >= 500)
-                        haltWithError("server error (" + code + ")");
-                    else
-                        haltWithError("bad response (" + code + ")");
-                    return false;
                 }
+                return true;
+            }
+            else {
+                if(code >= 500)
+                    haltWithError("server error (" + code + ")");
+                else if(code == 408 || code == 429)
+                    haltWithError("server busy (" + code + ")"); // timeout or too many requests: try again later
+                else
+                    haltWithPermanentError("bad response (" + code + ")");
+                return false;
             }
         }
         catch(IOException e) {
             haltWithError(e.getMessage());
             return false;
         }
-        catch(NumberFormatException e) {
-            haltWithError("bad response code");
-            return false;
-        }
+    }
+
+    /**
+     * Returns true if retrying won't help when the event listener says a 2xx
+     * response means the upload failed.  The server understood the request
+     * and rejected it (e.g., a bad API key or album), so by default it is
+     * permanent; subclasses which can tell a transient rejection (e.g., "try
+     * again later") from the response should override this.
+     */
+    protected boolean isResponseErrorPermanent(int code, String errMsg) {
+        return true;
     }
 
     protected void uploadCanceled() {
+        WriteWatchdog.get().unwatch(this);
+        endWrite();
         try { if( out!=null)  out.close(); } catch (IOException e) {}
         try { if(sock!=null) sock.close(); } catch (IOException e) {}
         out = null;
         sock = null;
+        channel = null;
+    }
+
+    /** closes the connection so a blocked read or write fails */
+    protected void interruptIO() {
+        Socket s = sock;
+        if(s != null)
+            HTTPConnectionPool.abort(s);
+    }
+
+    /** gets the pool connections are shared through (null if they are not reused) */
+    public HTTPConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * Sets the pool connections are shared through (HTTPConnectionPool.getDefault()
+     * unless set).  null means a new connection is opened for each upload and
+     * closed afterward.  Takes effect with the next upload.
+     */
+    public void setConnectionPool(HTTPConnectionPool pool) {
+        connectionPool = pool;
+    }
+
+    /** gets the factory which makes TLS connections (null if uploads use plain HTTP) */
+    public SSLSocketFactory getSSLSocketFactory() {
+        return sslSocketFactory;
+    }
+
+    /**
+     * Sets the factory used to make TLS connections, i.e., enables HTTPS
+     * (remember to use the HTTPS port, typically 443).  Use the same factory
+     * for every mechanism uploading to a server (e.g.,
+     * (SSLSocketFactory)SSLSocketFactory.getDefault()) so they share its TLS
+     * session cache and pooled connections.  null means plain HTTP (the
+     * default).  Takes effect with the next upload.
+     */
+    public void setSSLSocketFactory(SSLSocketFactory factory) {
+        sslSocketFactory = factory;
+    }
+
+    /** gets how long connecting may take (ms; 0 means no limit) */
+    public int getConnectTimeout() {
+        return connectTimeout_ms;
+    }
+
+    /**
+     * Sets how long connecting to the server (including the TLS handshake, if
+     * any) may take before the upload fails (30 seconds by default; 0 means
+     * no limit).  Takes effect with the next connection.
+     */
+    public void setConnectTimeout(int ms) {
+        connectTimeout_ms = ms;
+    }
+
+    /** gets how long a write may make no progress (ms; 0 means no limit) */
+    public int getWriteTimeout() {
+        return writeTimeout_ms;
+    }
+
+    /**
+     * Sets how long a single write (one chunk) may block before the upload is
+     * aborted, e.g., because the server stopped reading (60 seconds by
+     * default; 0 means no limit).  Takes effect with the next upload.
+     */
+    public void setWriteTimeout(int ms) {
+        writeTimeout_ms = ms;
+    }
+
+    /** gets how long to wait for the response (ms; 0 means no limit) */
+    public int getResponseTimeout() {
+        return responseTimeout_ms;
+    }
+
+    /**
+     * Sets how long to wait for the server's response once the whole request
+     * has been sent (2 minutes by default; 0 means no limit).  Takes effect
+     * with the next upload.
+     */
+    public void setResponseTimeout(int ms) {
+        responseTimeout_ms = ms;
+    }
+
+    /** gets the largest response body accepted (in bytes) */
+    public int getMaxResponseBodySize() {
+        return maxResponseBodySize;
+    }
+
+    /**
+     * Sets the largest response body accepted, in bytes (1MB by default).
+     * Uploads whose successful response has a larger body fail if the body
+     * is kept for the event listener, which bounds the memory used to hold
+     * it.  Bodies which aren't kept (e.g., error pages, or when there's no
+     * listener) are read and discarded whatever their size.
+     */
+    public void setMaxResponseBodySize(int n) {
+        maxResponseBodySize = n;
     }
 
     /** gets the object listening for upload events (may be null) */
@@ -0,0 +1,109 @@
+package uploader.mechanisms;
+
+import java.io.File;
+import java.util.HashMap;
+
+/**
+ * Uploads files like HTTPUploadMechanism, except that each upload goes to
+ * whichever of several equivalent servers an EndpointBalancer picks.  Give
+ * every mechanism in an UploadEngine the same balancer so that load spreads
+ * across the servers (rather than partitioning the mechanisms by hand) and
+ * servers which keep failing are avoided until they recover.
+ *
+ * An upload counts against its server if the server can't be reached, stops
+ * responding, or returns a 5xx, 408 or 429 response.  Other responses
+ * (including 4xx rejections of the file) show the server is healthy.
+ *
+ * @author David Underhill
+ */
+public class LoadBalancedHTTPUploadMechanism extends HTTPUploadMechanism {
+    /** picks the server for each upload */
+    private final EndpointBalancer balancer;
+
+    /** the request head for each endpoint we've uploaded to (built once per endpoint) */
+    private final HashMap targets = new HashMap();
+
+    /** the endpoint the current upload was sent to (null if its outcome has been reported) */
+    private EndpointBalancer.Endpoint endpoint = null;
+    private long endpointBytes;
+    private long startTime;
+
+    /**
+     * Will upload to the specified path on one of balancer's endpoints via the
+     * HTTP/1.1 method and including the specified headers.  The other
+     * parameters are the same as HTTPUploadMechanism's.
+     *
+     * @throws IllegalStateException  if balancer has no endpoints
+     */
+    public LoadBalancedHTTPUploadMechanism(EndpointBalancer balancer, String method, String path,
+                                           String headers, boolean addCustomHeaderWithFilename,
+                                           String multipartFormDataField) {
+        super(firstHost(balancer), firstPort(balancer), method, path, headers,
+              addCustomHeaderWithFilename, multipartFormDataField);
+        this.balancer = balancer;
+    }
+
+    private static String firstHost(EndpointBalancer balancer) {
+        EndpointBalancer.Endpoint[] endpoints = balancer.getEndpoints();
+        if(endpoints.length == 0)
+            throw new IllegalStateException("the balancer has no endpoints");
+        return endpoints[0].getHost();
+    }
+
+    private static int firstPort(EndpointBalancer balancer) {
+        return balancer.getEndpoints()[0].getPort();
+    }
+
+    /** returns the balancer which picks the server for each upload */
+    public EndpointBalancer getBalancer() {
+        return balancer;
+    }
+
+    public boolean tryToStartUpload(File f) {
+        // pick a server
+        endpointBytes = getFileSize();
+        endpoint = balancer.acquire(endpointBytes);
+        startTime = System.currentTimeMillis();
+
+        Target t = (Target)targets.get(endpoint);
+        if(t == null) {
+            t = newTarget(endpoint.getHost(), endpoint.getPort());
+            targets.put(endpoint, t);
+        }
+        setTarget(t);
+
+        boolean ok = super.tryToStartUpload(f);
+        if(!ok)
+            endpointDone(); // in case it failed without halting
+        return ok;
+    }
+
+    protected boolean finalizeUpload() {
+        boolean ok = super.finalizeUpload();
+        endpointDone();
+        return ok;
+    }
+
+    protected void uploadCanceled() {
+        super.uploadCanceled();
+        endpointDone();
+    }
+
+    /** tells the balancer how the current upload went (once per upload) */
+    private void endpointDone() {
+        if(endpoint == null)
+            return;
+
+        int outcome;
+        int code = getResponseCode();
+        if(isCanceled())
+            outcome = EndpointBalancer.ABANDONED;
+        else if(code < 0 || code >= 500 || code == 408 || code == 429)
+            outcome = EndpointBalancer.FAILED;
+        else
+            outcome = EndpointBalancer.SUCCEEDED;
+
+        balancer.release(endpoint, endpointBytes, outcome, System.currentTimeMillis() - startTime);
+        endpoint = null;
+    }
+}
@@ -0,0 +1,321 @@
+package uploader.mechanisms;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Uploads files over HTTP/1.1 like HTTPUploadMechanism, except that each
+ * upload is a non-blocking state machine (see Upload) rather than a series of
+ * blocking calls.  This lets one thread multiplex hundreds of uploads with a
+ * java.nio.channels.Selector instead of needing one thread (and one
+ * mechanism) per upload in flight.  See the UploadEngine constructor which
+ * takes a NonBlockingHTTPUploader.
+ *
+ * Files are sent straight from disk with FileChannel.transferTo(), so they
+ * cannot be transformed by an UploadFileGetter.  Each upload uses its own
+ * connection, which is closed when the response has been read.
+ *
+ * Thread-safe: one NonBlockingHTTPUploader may be shared by several selector
+ * threads, though each Upload must only be used by one thread.
+ *
+ * @author David Underhill
+ */
+public class NonBlockingHTTPUploader {
+    /** the server:port to connect to */
+    private final String host;
+    private final int port;
+
+    /** the request line and headers, encoded once for every upload */
+    private final RequestTemplate template;
+
+    /**
+     * the server's address (resolved once rather than for every upload since
+     * resolving it blocks; null until resolved or after a connect fails)
+     */
+    private volatile InetSocketAddress addr = null;
+
+    /**
+     * Will upload to the specified path on the specified host:port via the
+     * HTTP/1.1 method and including the specified headers.  The parameters
+     * are the same as HTTPUploadMechanism's.
+     */
+    public NonBlockingHTTPUploader(String host, int port, String method, String path,
+                                   String headers, boolean addCustomHeaderWithFilename,
+                                   String multipartFormDataField) {
+        this.host = host;
+        this.port = port;
+        this.template = new RequestTemplate(host, port, method, path, headers,
+                                            addCustomHeaderWithFilename, multipartFormDataField,
+                                            HTTPUploadMechanism.BOUNDARY);
+    }
+
+    /**
+     * Starts uploading the file fn: opens it and starts connecting to the
+     * server (without blocking, except perhaps to resolve the server's name
+     * the first time).  If this fails, the returned Upload is already done
+     * and describes the error.
+     */
+    public Upload startUpload(String fn) {
+        Upload u = new Upload();
+        u.start(new File(fn));
+        return u;
+    }
+
+    /**
+     * Returns the additional HTTP headers to send with the request for f (the
+     * X-JCustomUploader-Filename header, if requested, is added separately).
+     * By default there are none.  null should be returned if an error occurs.
+     * Called by the selector thread, so it must not block.
+     */
+    protected String getAdditionalHeaders(File f) {
+        return "";
+    }
+
+    /** returns the server's address (resolving it if needed) */
+    private InetSocketAddress getAddress() throws UnknownHostException {
+        InetSocketAddress a = addr;
+        if(a == null) {
+            a = new InetSocketAddress(host, port);
+            if(a.isUnresolved())
+                throw new UnknownHostException(host);
+            addr = a;
+        }
+        return a;
+    }
+
+    /**
+     * One upload in progress.  Call step() whenever its channel is ready for
+     * the operations returned by getInterestOps() until isDone() returns true,
+     * then call close().
+     *
+     * Not thread-safe: it must only be used by one thread at a time.
+     */
+    public class Upload {
+        private static final int CONNECTING = 0;
+        private static final int SENDING_HEAD = 1;
+        private static final int SENDING_BODY = 2;
+        private static final int SENDING_TAIL = 3;
+        private static final int READING_RESPONSE = 4;
+        private static final int DONE = 5;
+
+        private int phase = CONNECTING;
+        private SocketChannel channel;
+        private FileChannel file;
+        private long sz;
+        private long offset = 0;
+        private boolean bodySent = false;
+
+        /** request line, headers, and multipart/form-data header (if any) */
+        private ByteBuffer head;
+
+        /** multipart/form-data footer (null if not encoding the file) */
+        private ByteBuffer tail;
+
+        /** parses the response as it arrives (null until the request has been sent) */
+        private HTTPResponse.Parser response;
+
+        /** what the response is read into (allocated with the parser) */
+        private ByteBuffer responseBuf;
+
+        private String err = null;
+        private boolean errPermanent = false;
+
+        private Upload() {
+        }
+
+        /** opens f and starts connecting */
+        private void start(File f) {
+            if(!f.exists()) {
+                haltWithPermanentError("does not exist: " + f.getPath());
+                return;
+            }
+            else if(!f.isFile()) {
+                haltWithPermanentError("not a file: " + f.getPath());
+                return;
+            }
+
+            try {
+                file = new FileInputStream(f).getChannel();
+                sz = file.size();
+
+                // add any headers specific to this file
+                String fileSpecificHeaders = getAdditionalHeaders(f);
+                if(fileSpecificHeaders == null) {
+                    haltWithError("upload failed to start");
+                    return;
+                }
+
+                head = template.fill(null, f.getName(), sz, fileSpecificHeaders, true);
+                if(template.isMultipart())
+                    tail = ByteBuffer.wrap(template.getMultipartFooter());
+
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                if(channel.connect(getAddress()))
+                    phase = SENDING_HEAD;
+            }
+            catch(IOException e) {
+                addr = null; // resolve it again next time in case it moved
+                haltWithError(e.getMessage());
+            }
+        }
+
+        /**
+         * Does as much of the upload as can be done without blocking.  Returns
+         * the number of bytes of the file which were sent (not counting
+         * headers).  Errors are reported by isDone() and getErrorText().
+         */
+        public long step() {
+            long sent = 0;
+            try {
+                if(phase == CONNECTING) {
+                    if(!channel.finishConnect())
+                        return 0;
+                    phase = SENDING_HEAD;
+                }
+
+                if(phase == SENDING_HEAD) {
+                    channel.write(head);
+                    if(head.hasRemaining())
+                        return 0;
+                    phase = SENDING_BODY;
+                }
+
+                if(phase == SENDING_BODY) {
+                    // the socket takes as much as fits in its send buffer
+                    sent = file.transferTo(offset, sz - offset, channel);
+                    if(sent == 0 && offset >= file.size()) {
+                        haltWithError("unexpected end of file");
+                        return 0;
+                    }
+                    offset += sent;
+                    if(offset < sz)
+                        return sent;
+                    bodySent = true;
+                    phase = (tail != null) ? SENDING_TAIL : READING_RESPONSE;
+                }
+
+                if(phase == SENDING_TAIL) {
+                    channel.write(tail);
+                    if(tail.hasRemaining())
+                        return sent;
+                    phase = READING_RESPONSE;
+                }
+
+                if(phase == READING_RESPONSE)
+                    readResponse();
+            }
+            catch(IOException e) {
+                haltWithError(e.getMessage());
+            }
+            return sent;
+        }
+
+        /** reads whatever part of the response is available and checks it once complete */
+        private void readResponse() throws IOException {
+            if(response == null) {
+                response = new HTTPResponse.Parser(false, HTTPResponse.DEFAULT_MAX_BODY_SIZE);
+                responseBuf = ByteBuffer.allocate(4096);
+            }
+
+            ByteBuffer b = responseBuf;
+            int n;
+            while(!response.isDone() && (n = channel.read(b)) != 0) {
+                if(n < 0)
+                    response.endOfStream();
+                else
+                    response.feed(b.array(), 0, n);
+                b.clear();
+            }
+            if(!response.isDone())
+                return; // wait for the rest of it
+            HTTPResponse resp = response.getResponse();
+
+            // check the response to make sure we get a 2xx code back
+            int code = resp.code;
+            if(code>=200 && code<300)
+                finish();
+            else if(code >= 500)
+                haltWithError("server error (" + code + ")");
+            else if(code == 408 || code == 429)
+                haltWithError("server busy (" + code + ")"); // timeout or too many requests: try again later
+            else
+                haltWithPermanentError("bad response (" + code + ")");
+        }
+
+        /**
+         * Returns the operations (SelectionKey.OP_*) step() is waiting for (0
+         * once the upload is done).
+         */
+        public int getInterestOps() {
+            switch(phase) {
+                case CONNECTING:       return SelectionKey.OP_CONNECT;
+                case READING_RESPONSE: return SelectionKey.OP_READ;
+                case DONE:             return 0;
+                default:               return SelectionKey.OP_WRITE;
+            }
+        }
+
+        /** returns the channel to register with a selector (null if the upload failed to start) */
+        public SocketChannel getChannel() {
+            return channel;
+        }
+
+        /** returns the size of the file being uploaded */
+        public long length() {
+            return sz;
+        }
+
+        /** returns true once the whole file has been sent (the response may still be pending) */
+        public boolean isBodySent() {
+            return bodySent;
+        }
+
+        /** returns true if the upload has succeeded or failed */
+        public boolean isDone() {
+            return phase == DONE;
+        }
+
+        /** returns why the upload failed (null if it did not) */
+        public String getErrorText() {
+            return err;
+        }
+
+        /**
+         * Returns true if the upload failed in a way which retrying would not
+         * fix (e.g., the file is missing or the server rejected the request).
+         */
+        public boolean isErrorPermanent() {
+            return err != null && errPermanent;
+        }
+
+        private void haltWithPermanentError(String why) {
+            haltWithError(why);
+            errPermanent = true;
+        }
+
+        private void haltWithError(String why) {
+            err = (why != null) ? why : "upload failed";
+            errPermanent = false;
+            finish();
+        }
+
+        private void finish() {
+            phase = DONE;
+            close();
+        }
+
+        /** closes the connection and the file (the upload is abandoned if it is not done) */
+        public void close() {
+            try { if(channel!=null) channel.close(); } catch (IOException e) {}
+            try { if(   file!=null)    file.close(); } catch (IOException e) {}
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package uploader.mechanisms;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import uploader.util.Util;
+
+/**
+ * Makes OAuth 1.0 Authorization headers (signed with HMAC-SHA1) for requests
+ * to one URL with one set of credentials.  Everything which is the same for
+ * every request (the key, the encoded URL and parameters, and most of the
+ * header) is prepared once, so signing a request costs one HMAC over a reused
+ * buffer.  Each thread gets its own Mac (a Mac isn't thread-safe) and its own
+ * nonce generator.
+ *
+ * Thread-safe.
+ *
+ * @author David Underhill
+ */
+public class OAuthSigner {
+    /** the HMAC-SHA1 key: consumer secret & token secret */
+    private final SecretKeySpec key;
+
+    /** the signature base string, less the nonce and timestamp (ASCII) */
+    private final byte[] baseBeforeNonce, baseBeforeTimestamp, baseAfterTimestamp;
+
+    /** the Authorization header up to the signature */
+    private final String headerBeforeSignature;
+
+    /** each thread's Scratch */
+    private final ThreadLocal scratch = new ThreadLocal() {
+        protected Object initialValue() {
+            return new Scratch();
+        }
+    };
+
+    /** what a thread needs to sign a request */
+    private class Scratch {
+        Mac mac = null; // created when first needed
+        final Random random = new Random();
+
+        /** holds the signature base string (room for the longest nonce and timestamp) */
+        final byte[] base = new byte[baseBeforeNonce.length + 11 + baseBeforeTimestamp.length + 20 + baseAfterTimestamp.length];
+    }
+
+    /**
+     * Prepares to sign requests.
+     *
+     * @param consumerKey     the API key (aka Consumer Key)
+     * @param consumerSecret  the secret associated with the API key
+     * @param token           the access token
+     * @param tokenSecret     the secret associated with the access token
+     * @param method          the HTTP method of the requests (e.g., POST)
+     * @param url             the URL the requests are sent to
+     * @param realm           the realm to put in the header
+     */
+    public OAuthSigner(String consumerKey, String consumerSecret, String token, String tokenSecret,
+                       String method, String url, String realm) {
+        key = new SecretKeySpec((consumerSecret + "&" + tokenSecret).getBytes(), "HmacSHA1");
+        try {
+            // the parameters are in sorted order; the nonce and timestamp are filled in later
+            baseBeforeNonce = (method + "&" + Util.urlencode(url) + "&"
+                               + Util.urlencode("oauth_consumer_key=" + consumerKey + "&oauth_nonce=")).getBytes("US-ASCII");
+            baseBeforeTimestamp = Util.urlencode("&oauth_signature_method=HMAC-SHA1&oauth_timestamp=").getBytes("US-ASCII");
+            baseAfterTimestamp = Util.urlencode("&oauth_token=" + token + "&oauth_version=1.0").getBytes("US-ASCII");
+        }
+        catch(UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 and US-ASCII are always supported");
+        }
+
+        headerBeforeSignature = "Authorization: OAuth realm=\"" + realm + "\", " +
+                                "oauth_consumer_key=\""     + consumerKey + "\", " +
+                                "oauth_token=\""            + token       + "\", " +
+                                "oauth_signature_method=\"" + "HMAC-SHA1" + "\", " +
+                                "oauth_signature=\"";
+    }
+
+    /**
+     * Appends a signed Authorization header (including the trailing CRLF) for
+     * a new request to out.  The request gets a random nonce and the current
+     * time as its timestamp.
+     */
+    public void appendHeader(StringBuffer out) throws GeneralSecurityException {
+        Scratch s = (Scratch)scratch.get();
+        appendHeader(out, s, s.random.nextInt(), System.currentTimeMillis() / 1000);
+    }
+
+    /**
+     * Appends a signed Authorization header (including the trailing CRLF) for
+     * a request with the specified nonce and timestamp (in seconds) to out.
+     */
+    public void appendHeader(StringBuffer out, int nonce, long timestamp) throws GeneralSecurityException {
+        appendHeader(out, (Scratch)scratch.get(), nonce, timestamp);
+    }
+
+    private void appendHeader(StringBuffer out, Scratch s, int nonce, long timestamp) throws GeneralSecurityException {
+        if(s.mac == null) {
+            Mac mac = Mac.getInstance("HmacSHA1");
+            mac.init(key);
+            s.mac = mac;
+        }
+
+        // build the signature base string
+        byte[] base = s.base;
+        int len = put(base, 0, baseBeforeNonce);
+        len = putDecimal(base, len, nonce);
+        len = put(base, len, baseBeforeTimestamp);
+        len = putDecimal(base, len, timestamp);
+        len = put(base, len, baseAfterTimestamp);
+
+        // sign it (doFinal() also resets the Mac for the next signature)
+        s.mac.update(base, 0, len);
+        byte[] sig = s.mac.doFinal();
+
+        out.append(headerBeforeSignature);
+        appendEncodedBase64(out, sig);
+        out.append("\", oauth_timestamp=\"").append(timestamp)
+           .append("\", oauth_nonce=\"").append(nonce)
+           .append("\", oauth_version=\"1.0\"\r\n");
+    }
+
+    /** copies src into dst at pos and returns the position after it */
+    private static int put(byte[] dst, int pos, byte[] src) {
+        System.arraycopy(src, 0, dst, pos, src.length);
+        return pos + src.length;
+    }
+
+    /** writes v in decimal (ASCII) into dst at pos and returns the position after it */
+    private static int putDecimal(byte[] dst, int pos, long v) {
+        if(v < 0) {
+            dst[pos++] = '-';
+            if(v == Long.MIN_VALUE) {
+                // can't negate it: write all but the last digit first
+                pos = putDecimal(dst, pos, -(v / 10));
+                dst[pos++] = (byte)('0' - (v % 10));
+                return pos;
+            }
+            v = -v;
+        }
+
+        int numDigits = 1;
+        for(long t=v/10; t>0; t/=10)
+            numDigits += 1;
+        for(int i=pos+numDigits-1; i>=pos; i--) {
+            dst[i] = (byte)('0' + (v % 10));
+            v /= 10;
+        }
+        return pos + numDigits;
+    }
+
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    /** appends the base64 encoding of b to out, URL-encoded */
+    private static void appendEncodedBase64(StringBuffer out, byte[] b) {
+        int i = 0;
+        for(; i+2<b.length; i+=3) {
+            int v = ((b[i] & 0xFF) << 16) | ((b[i+1] & 0xFF) << 8) | (b[i+2] & 0xFF);
+            appendEncoded(out, BASE64[v >>> 18]);
+            appendEncoded(out, BASE64[(v >>> 12) & 0x3F]);
+            appendEncoded(out, BASE64[(v >>> 6) & 0x3F]);
+            appendEncoded(out, BASE64[v & 0x3F]);
+        }
+        if(i < b.length) {
+            int v = (b[i] & 0xFF) << 16;
+            if(i+1 < b.length)
+                v |= (b[i+1] & 0xFF) << 8;
+            appendEncoded(out, BASE64[v >>> 18]);
+            appendEncoded(out, BASE64[(v >>> 12) & 0x3F]);
+            if(i+1 < b.length)
+                appendEncoded(out, BASE64[(v >>> 6) & 0x3F]);
+            else
+                out.append("%3D");
+            out.append("%3D");
+        }
+    }
+
+    /** appends a base64 character to out, URL-encoded */
+    private static void appendEncoded(StringBuffer out, char c) {
+        if(c == '+')
+            out.append("%2B");
+        else if(c == '/')
+            out.append("%2F");
+        else
+            out.append(c);
+    }
+}
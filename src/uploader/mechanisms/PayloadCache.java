@@ -0,0 +1,353 @@
+package uploader.mechanisms;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import uploader.mechanisms.event.UploadFileGetter;
+import uploader.mechanisms.event.UploadFileGetter.InputStreamAndSizePair;
+
+/**
+ * Holds the data to upload for each file whose upload is in progress (or may
+ * be retried) along with its MD5.  A file getter which transforms files (e.g.,
+ * ScaledImageGetter) then runs once per file and the data is hashed once, no
+ * matter how many times it is read (e.g., once for a Content-MD5 header and
+ * again for the body) or how many times its upload is retried.
+ *
+ * Transformed data is kept in memory if it is small and spooled to a
+ * temporary file otherwise.  Files which the getter doesn't transform are read
+ * straight from disk each time; only their MD5 is cached.  The least recently
+ * used entries are evicted to stay within the memory and disk budgets (an
+ * entry larger than a budget by itself is kept until it is no longer the most
+ * recent).  An entry is also dropped when its upload succeeds or is canceled
+ * (see remove()), and ignored if its file has changed.
+ *
+ * Each payload returned by get() is pinned until it is released (see
+ * Payload.release()): it is neither evicted nor deleted while an upload may
+ * still be reading it, and it counts against the budgets until then.
+ *
+ * Thread-safe: mechanisms share a cache so that a retry on another uploader
+ * thread reuses the entry.  If several threads want the same payload at once,
+ * one makes it and the others wait for it.
+ *
+ * @author David Underhill
+ */
+public class PayloadCache {
+    private static final PayloadCache DEFAULT = new PayloadCache(32 * 1024 * 1024, 256 * 1024 * 1024);
+
+    /** returns the cache shared by mechanisms by default */
+    public static PayloadCache getDefault() {
+        return DEFAULT;
+    }
+
+    /** the largest transformed payload kept in memory (larger ones are spooled to disk) */
+    private static final int MAX_IN_MEMORY_SIZE = 4 * 1024 * 1024;
+
+    /** the data to upload for one file */
+    public static class Payload {
+        private final File source;
+        private final long sourceLength;
+        private final long sourceModified;
+        private final byte[] bytes;      // the transformed data if it's in memory (else null)
+        private final File spoolFile;    // the transformed data if it's on disk (else null)
+        private final long length;
+        private final String md5;
+
+        // guarded by the owning cache's lock
+        private PayloadCache owner;
+        private int numUsers = 0;       // how many get()s haven't been released
+        private boolean cached = false; // whether it's still in the cache's map
+
+        private Payload(File source, byte[] bytes, File spoolFile, long length, String md5) {
+            this.source = source;
+            this.sourceLength = source.length();
+            this.sourceModified = source.lastModified();
+            this.bytes = bytes;
+            this.spoolFile = spoolFile;
+            this.length = length;
+            this.md5 = md5;
+        }
+
+        /**
+         * Returns a new stream of the data.  It is a FileInputStream unless
+         * the data is in memory.
+         */
+        public InputStream openStream() throws IOException {
+            if(bytes != null)
+                return new ByteArrayInputStream(bytes);
+            else if(spoolFile != null)
+                return new FileInputStream(spoolFile);
+            else
+                return new FileInputStream(source);
+        }
+
+        /** returns the number of bytes of data */
+        public long length() {
+            return length;
+        }
+
+        /** returns the MD5 of the data (32 hex digits) */
+        public String getMD5() {
+            return md5;
+        }
+
+        /**
+         * Tells the cache this payload is no longer being read (each get()
+         * must be matched by one release()).  It stays cached for a retry
+         * unless it has been removed or evicted, in which case its data is
+         * deleted once nobody is using it.
+         */
+        public void release() {
+            owner.release(this);
+        }
+
+        /** returns true if the file has changed since the payload was made from it */
+        private boolean isStale() {
+            return source.length() != sourceLength || source.lastModified() != sourceModified;
+        }
+
+        private long getMemorySize() {
+            return (bytes == null) ? 0 : bytes.length;
+        }
+
+        private long getDiskSize() {
+            return (spoolFile == null) ? 0 : length;
+        }
+
+        /** deletes the spooled data (if any) */
+        private void discard() {
+            if(spoolFile != null && !spoolFile.delete())
+                spoolFile.deleteOnExit(); // still open (e.g., on Windows)
+        }
+    }
+
+    /** identifies a payload: the file and the getter which transformed it */
+    private static class Key {
+        final String path;
+        final UploadFileGetter getter;
+
+        Key(File f, UploadFileGetter getter) {
+            this.path = f.getAbsolutePath();
+            this.getter = getter;
+        }
+
+        public boolean equals(Object o) {
+            if(!(o instanceof Key))
+                return false;
+            Key k = (Key)o;
+            return path.equals(k.path) && getter == k.getter;
+        }
+
+        public int hashCode() {
+            return path.hashCode() * 31 + System.identityHashCode(getter);
+        }
+    }
+
+    private final long maxMemoryBytes;
+    private final long maxDiskBytes;
+
+    /** maps Keys to Payloads (least recently used first) */
+    private final LinkedHashMap entries = new LinkedHashMap(16, 0.75f, true);
+
+    /** the Keys whose payloads are being made */
+    private final HashSet building = new HashSet();
+
+    /** the size of every payload not yet deleted (cached or in use) */
+    private long memoryBytes = 0;
+    private long diskBytes = 0;
+
+    /**
+     * @param maxMemoryBytes  how much transformed data to keep in memory
+     * @param maxDiskBytes    how much transformed data to keep in temporary files
+     */
+    public PayloadCache(long maxMemoryBytes, long maxDiskBytes) {
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.maxDiskBytes = maxDiskBytes;
+    }
+
+    /**
+     * Returns the payload for f as transformed by getter: the cached one if
+     * there is one, else it is made (by running getter and hashing its
+     * output) and cached.  The payload is pinned until release() is called
+     * on it.
+     */
+    public Payload get(File f, UploadFileGetter getter) throws IOException {
+        Key k = new Key(f, getter);
+        synchronized(this) {
+            while(true) {
+                Payload p = (Payload)entries.get(k);
+                if(p != null && p.isStale()) {
+                    entries.remove(k);
+                    uncache(p);
+                    p = null;
+                }
+                if(p != null) {
+                    p.numUsers += 1;
+                    return p;
+                }
+                if(building.add(k))
+                    break; // we'll make it
+
+                // another thread is making it: use theirs (or make it if they fail)
+                try {
+                    wait();
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while waiting for " + f.getName());
+                }
+            }
+        }
+
+        // make it without holding the lock (transforming may be slow)
+        Payload p = null;
+        try {
+            p = makePayload(f, getter);
+        }
+        finally {
+            synchronized(this) {
+                building.remove(k);
+                notifyAll();
+                if(p != null) {
+                    p.owner = this;
+                    p.numUsers = 1;
+                    p.cached = true;
+                    entries.put(k, p);
+                    memoryBytes += p.getMemorySize();
+                    diskBytes += p.getDiskSize();
+                    evict(p);
+                }
+            }
+        }
+        return p;
+    }
+
+    /** drops the payload for f as transformed by getter (e.g., because it has been uploaded) */
+    public synchronized void remove(File f, UploadFileGetter getter) {
+        Payload p = (Payload)entries.remove(new Key(f, getter));
+        if(p != null)
+            uncache(p);
+    }
+
+    /** drops every payload (those in use are deleted when they are released) */
+    public synchronized void clear() {
+        Iterator itr = entries.values().iterator();
+        while(itr.hasNext())
+            uncache((Payload)itr.next());
+        entries.clear();
+    }
+
+    /** unpins p (see Payload.release()) */
+    private synchronized void release(Payload p) {
+        if(p.numUsers <= 0)
+            throw new IllegalStateException("payload released more times than it was gotten");
+        p.numUsers -= 1;
+        if(p.numUsers == 0 && !p.cached)
+            forget(p);
+        else if(p.numUsers == 0)
+            evict(null); // it may have been kept over budget while it was in use
+    }
+
+    /**
+     * Evicts the least recently used entries (except keep and those in use)
+     * until we're within budget.
+     */
+    private void evict(Payload keep) {
+        Iterator itr = entries.values().iterator();
+        while((memoryBytes > maxMemoryBytes || diskBytes > maxDiskBytes) && itr.hasNext()) {
+            Payload p = (Payload)itr.next();
+            if(p == keep || p.numUsers > 0)
+                continue;
+            itr.remove();
+            uncache(p);
+        }
+    }
+
+    /** notes that p has left the map (p is deleted now unless it's in use) */
+    private void uncache(Payload p) {
+        p.cached = false;
+        if(p.numUsers == 0)
+            forget(p);
+    }
+
+    /** accounts for p being deleted */
+    private void forget(Payload p) {
+        memoryBytes -= p.getMemorySize();
+        diskBytes -= p.getDiskSize();
+        p.discard();
+    }
+
+    /** runs getter on f and hashes (and, if it was transformed, saves) its output */
+    private static Payload makePayload(File f, UploadFileGetter getter) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch(NoSuchAlgorithmException e) {
+            throw new IOException("MD5 is not available");
+        }
+
+        InputStreamAndSizePair ret = getter.getInputStream(f);
+        InputStream in = ret.input;
+        boolean transformed = !(in instanceof FileInputStream) || ret.length != f.length();
+
+        byte[] buf = new byte[8192];
+        ByteArrayOutputStream mem = transformed ? new ByteArrayOutputStream() : null;
+        File spoolFile = null;
+        OutputStream spool = null;
+        long length = 0;
+        try {
+            int n;
+            while((n = in.read(buf)) >= 0) {
+                digest.update(buf, 0, n);
+                length += n;
+                if(!transformed)
+                    continue;
+
+                if(spool == null && length > MAX_IN_MEMORY_SIZE) {
+                    // too big to keep in memory: move it to a temporary file
+                    spoolFile = File.createTempFile("upload", ".tmp");
+                    spoolFile.deleteOnExit();
+                    spool = new FileOutputStream(spoolFile);
+                    mem.writeTo(spool);
+                    mem = null;
+                    spool.write(buf, 0, n);
+                }
+                else if(spool != null)
+                    spool.write(buf, 0, n);
+                else
+                    mem.write(buf, 0, n);
+            }
+        }
+        catch(IOException e) {
+            if(spool != null) {
+                spool.close();
+                spoolFile.delete();
+            }
+            throw e;
+        }
+        finally {
+            in.close();
+        }
+        if(spool != null)
+            spool.close();
+
+        String md5 = new BigInteger(1, digest.digest()).toString(16);
+        while(md5.length() < 32)
+            md5 = "0" + md5; // add any missing leading 0s
+
+        byte[] bytes = (mem != null) ? mem.toByteArray() : null;
+        return new Payload(f, bytes, spoolFile, length, md5);
+    }
+}
@@ -0,0 +1,197 @@
+package uploader.mechanisms;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * The head of an HTTP upload request with its static parts (the request line,
+ * the caller's headers, and the multipart/form-data boilerplate) encoded to
+ * bytes once.  Only the fields which vary per file (its name, its length, and
+ * any file-specific headers) are encoded for each request, straight into a
+ * buffer which the caller can reuse.
+ *
+ * Headers are ASCII; the few characters outside of it (e.g., in a filename)
+ * are encoded as UTF-8.
+ *
+ * Immutable and thread-safe.
+ *
+ * @author David Underhill
+ */
+class RequestTemplate {
+    private static final byte[] CRLF = ascii("\r\n");
+    private static final byte[] CONNECTION_CLOSE = ascii("Connection: close\r\n");
+    private static final byte[] CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+    private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    private static final byte[] FILENAME_HEADER = ascii("X-JCustomUploader-Filename: ");
+
+    /** room for a decimal or hex length */
+    private static final int MAX_NUMBER_LEN = 20;
+
+    /** the request line and the caller's headers (including Host) */
+    private final byte[] requestLineAndHeaders;
+
+    /** whether to include the X-JCustomUploader-Filename header */
+    private final boolean addCustomHeaderWithFilename;
+
+    /** multipart/form-data boilerplate (all null if the file is sent raw) */
+    private final byte[] multipartContentType;
+    private final byte[] multipartPrefix; // ... filename=" (the filename goes here)
+    private final byte[] multipartSuffix; // "\r\nContent-Type: ...\r\n\r\n
+    private final byte[] multipartFooter;
+
+    /**
+     * @param headers  headers to include in every request; one per line with
+     *                 each line followed by "\r\n".  A Host header is added
+     *                 if there isn't one.
+     * @param multipartFormDataField  the field name to encode the file as
+     *                 multipart/form-data with (null to send it raw)
+     * @param boundary  the multipart/form-data boundary
+     */
+    public RequestTemplate(String host, int port, String method, String path, String headers,
+                           boolean addCustomHeaderWithFilename, String multipartFormDataField,
+                           String boundary) {
+        String hostHeader = "";
+        if(!("\r\n" + headers).toLowerCase().contains("\r\nhost:"))
+            hostHeader = "Host: " + host + ((port == 80) ? "" : ":" + port) + "\r\n";
+        this.requestLineAndHeaders = utf8(method + " " + path + " HTTP/1.1\r\n" + hostHeader + headers);
+        this.addCustomHeaderWithFilename = addCustomHeaderWithFilename;
+
+        if(multipartFormDataField != null) {
+            multipartContentType = ascii("Content-Type: multipart/form-data; boundary=" + boundary + "\r\n");
+            multipartPrefix = utf8("--" + boundary + "\r\n" +
+                                   "Content-Disposition: form-data; name=\"" + multipartFormDataField + "\"; filename=\"");
+            multipartSuffix = ascii("\"\r\nContent-Type: application/octet-stream\r\n\r\n");
+            multipartFooter = ascii("\r\n--" + boundary + "--\r\n");
+        }
+        else {
+            multipartContentType = null;
+            multipartPrefix = null;
+            multipartSuffix = null;
+            multipartFooter = null;
+        }
+    }
+
+    /** returns true if files are encoded as multipart/form-data */
+    public boolean isMultipart() {
+        return multipartPrefix != null;
+    }
+
+    /** returns what follows the file when it is encoded as multipart/form-data (null if it isn't) */
+    public byte[] getMultipartFooter() {
+        return multipartFooter;
+    }
+
+    /**
+     * Writes the head of the request for one file: the request line and
+     * headers, then (if encoding as multipart/form-data) the part's header.
+     * The buffer is cleared first and flipped afterward, ready to be sent.
+     *
+     * @param buf           where to write it; if null or too small, a new
+     *                      buffer is allocated (so keep the returned one)
+     * @param filename      the name of the file
+     * @param fileLength    the length of the file, or -1 if it is unknown
+     *                      (the body is then sent with chunked encoding and
+     *                      the part's header is framed as the first chunk)
+     * @param extraHeaders  headers specific to this file (may be empty)
+     * @param close         whether to ask the server to close the connection
+     *
+     * @return the buffer holding the head
+     */
+    public ByteBuffer fill(ByteBuffer buf, String filename, long fileLength, String extraHeaders, boolean close) {
+        byte[] name = null;
+        int nameLen = 0;
+        if(addCustomHeaderWithFilename || isMultipart()) {
+            name = isASCII(filename) ? null : utf8(filename);
+            nameLen = (name == null) ? filename.length() : name.length;
+        }
+        int partHeaderLen = isMultipart() ? multipartPrefix.length + nameLen + multipartSuffix.length : 0;
+
+        // make sure it all fits
+        int needed = requestLineAndHeaders.length + CONNECTION_CLOSE.length + CHUNKED.length
+                     + CONTENT_LENGTH.length + MAX_NUMBER_LEN + 3 * CRLF.length
+                     + FILENAME_HEADER.length + nameLen + extraHeaders.length() * 3
+                     + ((multipartContentType == null) ? 0 : multipartContentType.length)
+                     + MAX_NUMBER_LEN + partHeaderLen;
+        if(buf == null)
+            buf = ByteBuffer.allocate(needed);
+        else if(buf.capacity() < needed)
+            buf = buf.isDirect() ? ByteBuffer.allocateDirect(needed * 2) : ByteBuffer.allocate(needed * 2);
+        buf.clear();
+
+        buf.put(requestLineAndHeaders);
+        if(close)
+            buf.put(CONNECTION_CLOSE);
+        if(addCustomHeaderWithFilename) {
+            buf.put(FILENAME_HEADER);
+            putString(buf, filename, name);
+            buf.put(CRLF);
+        }
+        if(isMultipart())
+            buf.put(multipartContentType);
+        putString(buf, extraHeaders, null);
+
+        if(fileLength < 0)
+            buf.put(CHUNKED);
+        else {
+            long contentLength = fileLength + (isMultipart() ? partHeaderLen + multipartFooter.length : 0);
+            buf.put(CONTENT_LENGTH);
+            putString(buf, Long.toString(contentLength), null);
+            buf.put(CRLF);
+        }
+        buf.put(CRLF);
+
+        if(isMultipart()) {
+            if(fileLength < 0) {
+                putString(buf, Integer.toHexString(partHeaderLen), null);
+                buf.put(CRLF);
+            }
+            buf.put(multipartPrefix);
+            putString(buf, filename, name);
+            buf.put(multipartSuffix);
+            if(fileLength < 0)
+                buf.put(CRLF);
+        }
+
+        buf.flip();
+        return buf;
+    }
+
+    /** puts s into buf (encoded is its UTF-8 encoding, or null if s is ASCII) */
+    private static void putString(ByteBuffer buf, String s, byte[] encoded) {
+        if(encoded != null) {
+            buf.put(encoded);
+            return;
+        }
+        if(!isASCII(s)) {
+            buf.put(utf8(s));
+            return;
+        }
+        for(int i=0; i<s.length(); i++)
+            buf.put((byte)s.charAt(i));
+    }
+
+    private static boolean isASCII(String s) {
+        for(int i=0; i<s.length(); i++)
+            if(s.charAt(i) >= 0x80)
+                return false;
+        return true;
+    }
+
+    private static byte[] ascii(String s) {
+        try {
+            return s.getBytes("US-ASCII");
+        }
+        catch(UnsupportedEncodingException e) {
+            throw new RuntimeException(e.getMessage()); // every JVM supports US-ASCII
+        }
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        }
+        catch(UnsupportedEncodingException e) {
+            throw new RuntimeException(e.getMessage()); // every JVM supports UTF-8
+        }
+    }
+}
@@ -1,23 +1,16 @@
 package uploader.mechanisms;
 
 import java.io.File;
-import java.io.UnsupportedEncodingException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.util.Random;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
+import java.util.HashMap;
 
 import uploader.mechanisms.event.HTTPUploadListener;
+import uploader.mechanisms.event.ResponseBodyHandler;
 import uploader.mechanisms.event.SmugMugUploadListener;
 import uploader.util.Util;
 
 /**
  * Uploads files to SmugMug.  Uploads will be posted to HOST:PORT with the
- * Request-URI set to PATH (HTTP/1.0).  The request will send the following
+ * Request-URI set to PATH (HTTP/1.1).  The request will send the following
  * headers: Host, X-Smug-Response, X-Smug-FileName, Content-MD5, X-Smug-AlbumID,
  * X-Smug-Version (1.2.2), and a header which authenticates the uploader (either
  * X-Smug-SessionID or an OAuth-compliant Authorization header).  If OAuth is
@@ -29,8 +22,6 @@ import uploader.util.Util;
  * @author David Underhill
  */
 public class SmugMugUploadMechanism extends HTTPUploadMechanism {
-    private static final Random rand = new Random();
-
     // information about the SmugMug API relevant to uploading
     private static final String HOST = "upload.smugmug.com";
     private static final int PORT = 80;
@@ -38,8 +29,14 @@ public class SmugMugUploadMechanism extends HTTPUploadMechanism {
     private static final String PATH = "/photos/xmlrawadd.mg";
     private static final String HEADERS = "Host: " + HOST + "\r\nX-Smug-Response: REST\r\nX-Smug-Version: 1.2.2\r\nUser-Agent: JCustomUploader\r\n";
 
-    /** OAuth parameters (null if authentication is being done via sessions */
-    private final String apiKey, consumerSecret, accessToken, accessTokenSecret;
+    /** signs each upload with OAuth (null if authentication is being done via sessions) */
+    private final OAuthSigner signer;
+
+    /** reused to build each upload's additional headers */
+    private final StringBuffer additionalHeaders = new StringBuffer(512);
+
+    /** what we learned from the current upload's response */
+    private SmugMugResponse response = null;
 
     /** an object (if any) to notify whenever a response completes */
     private volatile SmugMugUploadListener eventListener = null;
@@ -73,19 +70,52 @@ public class SmugMugUploadMechanism extends HTTPUploadMechanism {
     public SmugMugUploadMechanism(String albumID, String apiKey, String consumerSecret, String accessToken, String accessTokenSecret, String extraHeaders) {
         super(HOST, PORT, METHOD, PATH, HEADERS+extraHeaders+"X-Smug-AlbumID: "+albumID+"\r\n", false, null);
         super.setEventListener(new MyHTTPUploadListener());
-        this.apiKey = apiKey;
-        this.consumerSecret = consumerSecret;
-        this.accessToken = accessToken;
-        this.accessTokenSecret = accessTokenSecret;
+        if(apiKey != null)
+            signer = new OAuthSigner(apiKey, consumerSecret, accessToken, accessTokenSecret,
+                                     METHOD, "http://" + HOST + PATH, "http://" + HOST + "/");
+        else
+            signer = null;
+
+        // the Content-MD5 header and the body then share one read of each file
+        setPayloadCache(PayloadCache.getDefault());
     }
     public SmugMugUploadMechanism(String albumID, String apiKey, String consumerSecret, String accessToken, String accessTokenSecret) {
         this(albumID, apiKey, consumerSecret, accessToken, accessTokenSecret, "");
     }
 
-    // regular expressions for parsing out some info from SmugMug's responses
-    private static final Pattern RE_RESP_STAT  = Pattern.compile("<rsp stat=\"([^\"]+)\">");
-    private static final Pattern RE_RESP_ERR   = Pattern.compile("msg=\"([^\"]+)\"");
-    private static final Pattern RE_RESP_DATA  = Pattern.compile("<Image id=\"([^\"]+)\" Key=\"([^\"]+)\" URL=\"([^\"]+)\"/>");
+    /**
+     * Picks the status, error message and image info out of a SmugMug
+     * response as it arrives.  Reading stops at the image (or error) element
+     * since nothing after it is needed.
+     */
+    private static class SmugMugResponse extends StreamingXMLParser {
+        String stat = null;
+        String errMsg = null;
+        String errCode = null;
+        String imageID = null, imageKey = null, imageURL = null;
+
+        protected boolean startElement(String name, HashMap attrs) {
+            if(name.equals("rsp"))
+                stat = (String)attrs.get("stat");
+            else if(name.equals("err")) {
+                errMsg = (String)attrs.get("msg");
+                errCode = (String)attrs.get("code");
+                return true;
+            }
+            else if(name.equals("Image")) {
+                imageID = (String)attrs.get("id");
+                imageKey = (String)attrs.get("Key");
+                imageURL = (String)attrs.get("URL");
+                return true;
+            }
+            return false;
+        }
+    }
+
+    protected ResponseBodyHandler newResponseBodyHandler() {
+        response = new SmugMugResponse();
+        return response;
+    }
 
     /**
      * Checks the response to an upload and fires the SmugMug event listener (if
@@ -93,97 +123,85 @@ public class SmugMugUploadMechanism extends HTTPUploadMechanism {
      * the upload failed.
      */
     private class MyHTTPUploadListener implements HTTPUploadListener {
-        public String responseReceived(HTTPUploadMechanism u, int code, String resp) {
-            String stat = "fail";
-            Matcher match_stat = RE_RESP_STAT.matcher(resp);
-            if(match_stat.find())
-                stat = match_stat.group(1);
-
-            if(stat.equalsIgnoreCase("ok")) {
+        public String responseReceived(HTTPUploadMechanism u, int code, CharSequence resp) {
+            SmugMugResponse r = response;
+            if(r.stat != null && r.stat.equalsIgnoreCase("ok")) {
                 // upload succeeded: get the info about the image on their servers that they send back
                 SmugMugUploadListener listener = eventListener;
                 if(listener != null) {
-                    Matcher match_data = RE_RESP_DATA.matcher(resp);
-                    if(match_data.find())
-                        listener.responseReceived(SmugMugUploadMechanism.this, match_data.group(1), match_data.group(2), match_data.group(3));
+                    if(r.imageID != null && r.imageKey != null && r.imageURL != null)
+                        listener.responseReceived(SmugMugUploadMechanism.this, r.imageID, r.imageKey, r.imageURL);
                     else
-                        System.err.println("Warning: could not find image ID, key, and URL in SmugMug response: " + resp);
+                        System.err.println("Warning: could not find image ID, key, and URL in SmugMug response");
                 }
                 return null;
             }
             else {
                 // SmugMug indicated failure - get their error message if they sent one
-                Matcher match_err = RE_RESP_ERR.matcher(resp);
-                if(match_err.find())
-                    return match_err.group(1);
+                if(r.errMsg != null)
+                    return r.errMsg;
                 else
                     return "SmugMug indicated failure";
             }
         }
     }
 
+    /**
+     * SmugMug's "system error" (5), "service unavailable" (98) and "read only
+     * mode" (99) rejections are temporary; its other rejections (e.g., a bad
+     * API key, album or file) will recur if the upload is retried.  A response
+     * without a status isn't from SmugMug's API, so it may be transient too.
+     */
+    protected boolean isResponseErrorPermanent(int code, String errMsg) {
+        SmugMugResponse r = response;
+        if(r == null || r.stat == null)
+            return false;
+        String c = r.errCode;
+        return !("5".equals(c) || "98".equals(c) || "99".equals(c));
+    }
+
     /**
      * Returns X-Smug-FileName and Content-MD5 headers for f.
      */
     protected String getAdditionalHeaders(File f) {
-        String oauthHeaderIfNeeded;
-        try {
-            if(apiKey != null)
-                oauthHeaderIfNeeded = makeOAuthHeaders();  // using oauth
-            else
-                oauthHeaderIfNeeded = "";                 // using sessions
-        }
-        catch(Exception e) {
-            haltWithError(e.getMessage());
-            return null;
+        StringBuffer sb = additionalHeaders;
+        sb.setLength(0);
+        sb.append(super.getAdditionalHeaders(f));
+        if(signer != null) {
+            // using oauth (else using sessions)
+            try {
+                signer.appendHeader(sb);
+            }
+            catch(Exception e) {
+                haltWithError(e.getMessage());
+                return null;
+            }
         }
 
-        String xsmugfn = "X-Smug-FileName: " + f.getName() + "\r\n";
-        String md5;
+        sb.append("X-Smug-FileName: ").append(f.getName()).append("\r\n");
         try {
-            // we could do this slightly more efficiently if we cached the
-            // resized picture's bytes (or computed the MD5 up front) but that
-            // would require coupling this more tightly to the UploadFileGetter.
-            md5 = Util.md5(this.getUploadFileGetter().getInputStream(f).input);
+            // the payload cache hashed the data when it read it
+            PayloadCache.Payload payload = getPayload();
+            String md5;
+            if(payload != null)
+                md5 = payload.getMD5();
+            else
+                md5 = Util.md5(this.getUploadFileGetter().getInputStream(f).input);
+            sb.append("Content-MD5: ").append(md5).append("\r\n");
         }
         catch(Exception e) {
             // send it without the md5 sum if we can't compute it
-            return super.getAdditionalHeaders(f) + oauthHeaderIfNeeded + xsmugfn;
         }
-        String contentMD5 = "Content-MD5: " + md5 + "\r\n";
-        return super.getAdditionalHeaders(f) + oauthHeaderIfNeeded + xsmugfn + contentMD5;
+        return sb.toString();
     }
 
-    private String makeOAuthHeaders() throws UnsupportedEncodingException, NoSuchAlgorithmException, InvalidKeyException {
-        // build the arguments to the HMAC-SHA1 function
-        String key = consumerSecret + "&" + accessTokenSecret;
-        String baseURL = Util.urlencode("http://" + HOST + PATH);
-        int nonce = rand.nextInt();
-        long timestamp = System.currentTimeMillis() / 1000;
-        String quoted_params = Util.urlencode("oauth_consumer_key=" + apiKey + "&" +
-                                              "oauth_nonce=" + nonce + "&" +
-                                              "oauth_signature_method=HMAC-SHA1&" +
-                                              "oauth_timestamp=" + timestamp + "&" +
-                                              "oauth_token=" + accessToken + "&" +
-                                              "oauth_version=1.0");
-        String text = METHOD + "&" + baseURL + "&" + quoted_params;
-
-        // compute the HMAC-SHA1 signature
-        SecretKeySpec sks = new SecretKeySpec(key.getBytes(), "HmacSHA1");
-        Mac mac = Mac.getInstance("HmacSHA1");
-        mac.init(sks);
-        String base64sig = new String(Util.base64bytes( mac.doFinal(text.getBytes()) ));
-        String sig = Util.urlencode(base64sig);
-
-        // build and return the authorization header
-        return "Authorization: OAuth realm=\"http://" + HOST +"/\", " +
-               "oauth_consumer_key=\""     + apiKey      + "\", " +
-               "oauth_token=\""            + accessToken + "\", " +
-               "oauth_signature_method=\"" + "HMAC-SHA1" + "\", " +
-               "oauth_signature=\""        + sig         +  "\", " +
-               "oauth_timestamp=\""        + timestamp   + "\", " +
-               "oauth_nonce=\""            + nonce       + "\", " +
-               "oauth_version=\"1.0\"\r\n";
+    /**
+     * The Content-MD5 header needs all of the data before the request is
+     * sent, so nothing would be gained by streaming data of unknown length.
+     * (With a payload cache the length is always known anyway.)
+     */
+    protected boolean canUploadUnknownLength() {
+        return false;
     }
 
     /** gets the object listening for SmugMug upload events (may be null) */
@@ -0,0 +1,207 @@
+package uploader.mechanisms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+import uploader.mechanisms.event.ResponseBodyHandler;
+
+/**
+ * Parses an XML response body (UTF-8) as it arrives and reports each element's
+ * start tag, with its attributes in any order and their values unescaped, to
+ * startElement().  Parsing stops as soon as startElement() says it has what it
+ * needs.  Text, end tags, comments, CDATA sections, processing instructions
+ * and DOCTYPEs are skipped; only the tag being read is buffered.
+ *
+ * This is enough to pick values out of small API responses without keeping
+ * the body around; it does not check that the document is well-formed.
+ *
+ * Not thread-safe.
+ *
+ * @author David Underhill
+ */
+abstract class StreamingXMLParser implements ResponseBodyHandler {
+    /** the longest tag we accept */
+    private static final int MAX_TAG_SIZE = 64 * 1024;
+
+    /** whether we're inside a tag (else in text) */
+    private boolean inTag = false;
+
+    /** the tag being read (between '<' and '>') */
+    private final ByteArrayOutputStream tag = new ByteArrayOutputStream(256);
+
+    /** the quote the current attribute value started with (0 if not in a value) */
+    private int quote = 0;
+
+    /** the last two bytes of the tag being read (to spot the end of comments and CDATA) */
+    private int prev1 = -1, prev2 = -1;
+
+    /** the first byte of the tag being read (-1 if none yet) */
+    private int first = -1;
+
+    private boolean satisfied = false;
+
+    /**
+     * Called with each element's start tag.
+     *
+     * @param name   the element's name
+     * @param attrs  maps each attribute's name to its (unescaped) value
+     *
+     * @return true once no more elements need to be seen
+     */
+    protected abstract boolean startElement(String name, HashMap attrs);
+
+    public boolean bodyReceived(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        for(int i=off; i<end && !satisfied; i++) {
+            int c = b[i] & 0xFF;
+            if(!inTag) {
+                if(c == '<') {
+                    inTag = true;
+                    tag.reset();
+                    quote = 0;
+                    prev1 = prev2 = first = -1;
+                }
+                continue;
+            }
+
+            if(c == '>' && quote == 0 && tagEndsHere()) {
+                inTag = false;
+                if(first != '/' && first != '!' && first != '?')
+                    satisfied = parseStartTag(tag.toString("UTF-8"));
+                continue;
+            }
+
+            if(tag.size() >= MAX_TAG_SIZE)
+                throw new IOException("XML tag too large");
+            tag.write(c);
+            if(first == -1)
+                first = c;
+            else if(first != '!' && first != '?') {
+                // quotes only matter in elements' attribute values
+                if(quote == 0 && (c == '"' || c == '\''))
+                    quote = c;
+                else if(c == quote)
+                    quote = 0;
+            }
+            prev2 = prev1;
+            prev1 = c;
+        }
+        return satisfied;
+    }
+
+    /** returns true if a '>' now would end the tag being read */
+    private boolean tagEndsHere() {
+        if(first != '!')
+            return true;
+
+        byte[] t = tag.toByteArray();
+        if(startsWith(t, "!--"))
+            return t.length >= 5 && prev1 == '-' && prev2 == '-'; // "<!---->" is the shortest
+        else if(startsWith(t, "![CDATA["))
+            return prev1 == ']' && prev2 == ']';
+        else
+            return true; // DOCTYPE (internal subsets aren't supported)
+    }
+
+    private static boolean startsWith(byte[] t, String prefix) {
+        if(t.length < prefix.length())
+            return false;
+        for(int i=0; i<prefix.length(); i++)
+            if(t[i] != prefix.charAt(i))
+                return false;
+        return true;
+    }
+
+    /** parses a start tag (without its angle brackets) and calls startElement() */
+    private boolean parseStartTag(String t) throws IOException {
+        int n = t.length();
+        if(n > 0 && t.charAt(n - 1) == '/')
+            n -= 1; // empty-element tag
+
+        int i = 0;
+        while(i < n && !isSpace(t.charAt(i)))
+            i += 1;
+        String name = t.substring(0, i);
+
+        HashMap attrs = new HashMap();
+        while(true) {
+            while(i < n && isSpace(t.charAt(i)))
+                i += 1;
+            if(i >= n)
+                break;
+
+            int nameStart = i;
+            while(i < n && t.charAt(i) != '=' && !isSpace(t.charAt(i)))
+                i += 1;
+            String attrName = t.substring(nameStart, i);
+            while(i < n && isSpace(t.charAt(i)))
+                i += 1;
+            if(i >= n || t.charAt(i) != '=')
+                throw new IOException("bad XML attribute: " + attrName);
+            i += 1;
+            while(i < n && isSpace(t.charAt(i)))
+                i += 1;
+            if(i >= n || (t.charAt(i) != '"' && t.charAt(i) != '\''))
+                throw new IOException("bad XML attribute: " + attrName);
+
+            char q = t.charAt(i);
+            int valueEnd = t.indexOf(q, i + 1);
+            if(valueEnd < 0 || valueEnd > n)
+                throw new IOException("bad XML attribute: " + attrName);
+            attrs.put(attrName, unescape(t.substring(i + 1, valueEnd)));
+            i = valueEnd + 1;
+        }
+        return startElement(name, attrs);
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+    }
+
+    /** replaces character and predefined entity references in s */
+    private static String unescape(String s) throws IOException {
+        int amp = s.indexOf('&');
+        if(amp < 0)
+            return s;
+
+        StringBuffer sb = new StringBuffer(s.length());
+        int i = 0;
+        while(amp >= 0) {
+            sb.append(s.substring(i, amp));
+            int semi = s.indexOf(';', amp);
+            if(semi < 0)
+                throw new IOException("bad XML entity");
+            String ent = s.substring(amp + 1, semi);
+            if(ent.equals("lt"))
+                sb.append('<');
+            else if(ent.equals("gt"))
+                sb.append('>');
+            else if(ent.equals("amp"))
+                sb.append('&');
+            else if(ent.equals("quot"))
+                sb.append('"');
+            else if(ent.equals("apos"))
+                sb.append('\'');
+            else if(ent.startsWith("#")) {
+                try {
+                    int cp;
+                    if(ent.startsWith("#x") || ent.startsWith("#X"))
+                        cp = Integer.parseInt(ent.substring(2), 16);
+                    else
+                        cp = Integer.parseInt(ent.substring(1));
+                    sb.append(new String(Character.toChars(cp)));
+                }
+                catch(IllegalArgumentException e) {
+                    throw new IOException("bad XML entity: &" + ent + ";");
+                }
+            }
+            else
+                throw new IOException("unknown XML entity: &" + ent + ";");
+            i = semi + 1;
+            amp = s.indexOf('&', i);
+        }
+        sb.append(s.substring(i));
+        return sb.toString();
+    }
+}
@@ -14,7 +14,9 @@ package uploader.mechanisms;
 public interface UploadMechanism {
     /**
      * Called once for each file which is to be uploaded.  Initiates the upload.
-     * @return -1 on error; otherwise it returns the size of the file
+     * @return -1 on error; otherwise it returns the size of the file (an
+     *         estimate if the size will not be known until all of it has
+     *         been read, e.g., if it is being transformed on the fly)
      */
     public long startUpload(String fn);
 
@@ -25,7 +27,9 @@ public interface UploadMechanism {
      *
      * @param num_bytes_to_upload  the max number of bytes to upload with this chunk
      *
-     * @return the number of bytes successfully uploaded, or -1 if the upload failed
+     * @return the number of bytes successfully uploaded (which may be 0 if
+     *         the end of data of unknown length was just found), or -1 if
+     *         the upload failed
      */
     public long uploadNextChunk(long num_bytes_to_upload);
 
@@ -0,0 +1,16 @@
+package uploader.mechanisms;
+
+/**
+ * Creates UploadMechanisms on demand.  Used when the number of uploads done in
+ * parallel is adjusted at runtime (a new mechanism is requested each time
+ * another upload thread is needed).
+ *
+ * Each mechanism returned must be a new instance (or at least one which is not
+ * in use by any other thread) since a mechanism handles one upload at a time.
+ *
+ * @author David Underhill
+ */
+public interface UploadMechanismFactory {
+    /** returns a new UploadMechanism */
+    public UploadMechanism createUploadMechanism();
+}
@@ -0,0 +1,72 @@
+package uploader.mechanisms;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Aborts uploads whose writes stop making progress.  A read can be given a
+ * timeout (SO_TIMEOUT) but a blocking write cannot, so each watched mechanism
+ * publishes the deadline of the write it is blocked in (see
+ * HTTPUploadMechanism.checkWriteDeadline()) and one daemon thread shared by
+ * all of them aborts any which miss theirs.  Aborting closes the connection,
+ * which makes the blocked write fail.
+ *
+ * Thread-safe.
+ *
+ * @author David Underhill
+ */
+class WriteWatchdog {
+    /** how often deadlines are checked (so writes time out up to this late) */
+    private static final long CHECK_INTERVAL_MS = 250;
+
+    private static final WriteWatchdog INSTANCE = new WriteWatchdog();
+
+    /** returns the watchdog shared by every mechanism */
+    public static WriteWatchdog get() {
+        return INSTANCE;
+    }
+
+    /** the mechanisms being watched (the keys; values are unused) */
+    private final ConcurrentHashMap watched = new ConcurrentHashMap();
+
+    /** the thread which checks deadlines (null until something is watched) */
+    private Thread thread = null;
+
+    private WriteWatchdog() {
+    }
+
+    /** starts checking m's write deadlines */
+    public void watch(HTTPUploadMechanism m) {
+        watched.put(m, Boolean.TRUE);
+        startThread();
+    }
+
+    /** stops checking m's write deadlines */
+    public void unwatch(HTTPUploadMechanism m) {
+        watched.remove(m);
+    }
+
+    private synchronized void startThread() {
+        if(thread != null)
+            return;
+
+        thread = new Thread(new Runnable() {
+            public void run() {
+                while(true) {
+                    try {
+                        Thread.sleep(CHECK_INTERVAL_MS);
+                    } catch(InterruptedException e) {
+                        // ignore it
+                    }
+
+                    long now = System.nanoTime();
+                    Iterator itr = watched.keySet().iterator();
+                    while(itr.hasNext())
+                        ((HTTPUploadMechanism)itr.next()).checkWriteDeadline(now);
+                }
+            }
+        }, "UploadWriteWatchdog");
+        thread.setDaemon(true); // don't keep the JVM alive
+        thread.start();
+    }
+}
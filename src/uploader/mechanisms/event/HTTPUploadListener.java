@@ -12,7 +12,15 @@ public interface HTTPUploadListener {
      * Called when a response has been received.  This is only called if code
      * indicates a successful response (i.e., 2xx series code).
      *
-     * @return null if the upload succeeded, a string describing why it failed otherwise
+     * @param resp  the status line, headers and (de-chunked) body, which is
+     *              decoded with the charset its Content-Type names (UTF-8 if
+     *              none); a view of the response's bytes rather than a copy
+     *              when the body is ASCII
+     *
+     * @return null if the upload succeeded, a string describing why it failed
+     *         otherwise (such failures aren't retried unless the mechanism
+     *         knows they are transient; see
+     *         HTTPUploadMechanism.isResponseErrorPermanent())
      */
-    public String responseReceived(HTTPUploadMechanism u, int code, String resp);
+    public String responseReceived(HTTPUploadMechanism u, int code, CharSequence resp);
 }
@@ -0,0 +1,24 @@
+package uploader.mechanisms.event;
+
+import java.io.IOException;
+
+/**
+ * Consumes the body of an upload's response as it arrives (e.g., to parse
+ * it), so that the body doesn't have to be kept in memory and reading can
+ * stop as soon as the handler has what it needs.
+ *
+ * @author David Underhill
+ */
+public interface ResponseBodyHandler {
+    /**
+     * Called with each batch of (de-chunked) body bytes as they arrive.  Only
+     * successful (2xx) responses' bodies are passed to the handler.
+     *
+     * @return true once the handler has all it needs from the body; it is
+     *         then not called again and the rest of the body is not read
+     *         unless it has already arrived
+     *
+     * @throws IOException  if the body is malformed
+     */
+    public boolean bodyReceived(byte[] b, int off, int len) throws IOException;
+}
@@ -1,15 +1,22 @@
 package uploader.mechanisms.event;
 
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Iterator;
 
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStreamImpl;
 
 /**
- * Ensures that uploaded photos are no larger than a specified size.
+ * Ensures that uploaded photos are no larger than a specified size.  Resized
+ * photos are encoded on another thread as they are read, so a mechanism which
+ * can upload data of unknown length (e.g., HTTPUploadMechanism) sends the
+ * start of the photo while the rest is still being encoded.
  *
  * @author David Underhill
  */
@@ -17,6 +24,84 @@ public class ScaledImageGetter extends UploadFileGetter {
     /** maximum edge length allowed */
     private final int maxEdgeLength;
 
+    /** how much encoded data may be waiting to be sent */
+    private static final int PIPE_SIZE = 64 * 1024;
+
+    /** roughly how many bytes each pixel takes as a JPEG (at the default quality) */
+    private static final double JPEG_BYTES_PER_PIXEL = 0.5;
+
+    /**
+     * The reading end of a pipe which an encoder writes to.  Reading it
+     * throws the encoder's error (if any) rather than hitting the end of a
+     * truncated image.
+     */
+    private static class EncodedImageInputStream extends PipedInputStream {
+        private volatile IOException error = null;
+
+        EncodedImageInputStream() {
+            super(PIPE_SIZE);
+        }
+
+        public int read() throws IOException {
+            int ret = super.read();
+            if(ret < 0 && error != null)
+                throw error;
+            return ret;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int ret = super.read(b, off, len);
+            if(ret < 0 && error != null)
+                throw error;
+            return ret;
+        }
+    }
+
+    /**
+     * Passes what an ImageWriter writes straight to a pipe (ImageIO.write()
+     * would buffer the whole image in a cache until it is done).  It can't
+     * seek backward, which the JPEG writer doesn't need to.
+     */
+    private static class PipeImageOutputStream extends ImageOutputStreamImpl {
+        private final PipedOutputStream out;
+
+        PipeImageOutputStream(PipedOutputStream out) {
+            this.out = out;
+        }
+
+        public void write(int b) throws IOException {
+            flushBits();
+            out.write(b);
+            streamPos += 1;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            flushBits();
+            out.write(b, off, len);
+            out.flush(); // wakes the reader now rather than when it next polls the pipe
+            streamPos += len;
+        }
+
+        public int read() throws IOException {
+            throw new IOException("cannot read from a pipe");
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            throw new IOException("cannot read from a pipe");
+        }
+
+        public void seek(long pos) throws IOException {
+            if(pos != streamPos)
+                throw new IOException("cannot seek in a pipe");
+            super.seek(pos);
+        }
+
+        public void close() throws IOException {
+            super.close();
+            out.close();
+        }
+    }
+
     /**
      * Constructs a file getter which resizes images so that their longest edge
      * is no bigger than the specified length.
@@ -27,7 +112,8 @@ public class ScaledImageGetter extends UploadFileGetter {
 
     /**
      * Returns the InputStream containing the photo (resized if needed) and the
-     * number of bytes it contains.
+     * number of bytes it contains.  The length of a resized photo is not known
+     * until it has been encoded, so only an estimate of it is returned.
      */
     public InputStreamAndSizePair getInputStream(File f) throws IOException {
         BufferedImage img = ImageIO.read(f);
@@ -42,12 +128,39 @@ public class ScaledImageGetter extends UploadFileGetter {
         int w2 = (int)(w * scale);
         int h2 = (int)(h * scale);
 
-        BufferedImage image = new BufferedImage(w2, h2, BufferedImage.TYPE_INT_RGB);
+        final BufferedImage image = new BufferedImage(w2, h2, BufferedImage.TYPE_INT_RGB);
         image.getGraphics().drawImage(img, 0, 0, w2, h2, null);
 
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        ImageIO.write(image, "jpg", byteArrayOutputStream);
-        byte[] bytes = byteArrayOutputStream.toByteArray();
-        return new InputStreamAndSizePair(new ByteArrayInputStream(bytes), bytes.length);
+        Iterator writers = ImageIO.getImageWritersByFormatName("jpg");
+        if(!writers.hasNext())
+            throw new IOException("no JPEG encoder is available");
+        final ImageWriter writer = (ImageWriter)writers.next();
+
+        // encode the image as it is read (the pipe is closed by the reader if
+        // the upload is halted, which stops the encoder)
+        final EncodedImageInputStream in = new EncodedImageInputStream();
+        final PipeImageOutputStream out = new PipeImageOutputStream(new PipedOutputStream(in));
+        Thread encoder = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    writer.setOutput(out);
+                    writer.write(new IIOImage(image, null, null));
+                }
+                catch(IOException e) {
+                    in.error = e;
+                }
+                finally {
+                    writer.dispose();
+                    try { out.close(); } catch(IOException e) {}
+                }
+            }
+        }, "ImageEncoder");
+        encoder.setDaemon(true);
+        encoder.start();
+
+        // the size of a JPEG is roughly proportional to its area (the size of
+        // the original says little when it isn't a JPEG, e.g., a PNG)
+        long estimatedLength = Math.max(1, (long)((long)w2 * h2 * JPEG_BYTES_PER_PIXEL));
+        return new InputStreamAndSizePair(in, UNKNOWN_LENGTH, estimatedLength);
     }
 }
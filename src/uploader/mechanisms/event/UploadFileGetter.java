@@ -11,18 +11,31 @@ import java.io.InputStream;
  * @author David Underhill
  */
 public class UploadFileGetter {
+    /** the length of a stream whose length is not known until it has been read */
+    public static final long UNKNOWN_LENGTH = -1;
+
     /** returns an InputStream for file f and the size of the file */
     public InputStreamAndSizePair getInputStream(File f) throws IOException {
         return new InputStreamAndSizePair(new FileInputStream(f), f.length());
     }
 
-    /** contains an input stream and the length of the data on that stream */
+    /**
+     * Contains an input stream and the length of the data on that stream.  The
+     * length may be UNKNOWN_LENGTH if the data is produced as it is read
+     * (e.g., encoded on the fly); estimatedLength is then a guess at it which
+     * is only used to show progress.
+     */
     public class InputStreamAndSizePair {
         public final InputStream input;
         public final long length;
+        public final long estimatedLength;
         public InputStreamAndSizePair(final InputStream input, final long length ) {
+            this(input, length, length);
+        }
+        public InputStreamAndSizePair(final InputStream input, final long length, final long estimatedLength ) {
             this.input = input;
             this.length = length;
+            this.estimatedLength = estimatedLength;
         }
     }
 }